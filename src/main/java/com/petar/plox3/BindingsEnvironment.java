@@ -0,0 +1,90 @@
+package com.petar.plox3;
+
+import com.petar.plox3.scanner.Symbol;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Globals kept in an embedder's map, which the program reads and writes in
+ * place. Names it does not bind are looked up in the enclosing environment,
+ * such as another scope of the embedder's or an interpreter's natives.
+ * <p>
+ * There are no cells to hand out, so loops look these names up on every
+ * access. Other Java numbers read as plox numbers. An inherited base sits
+ * below the map, and a name is copied into the map the first time it is
+ * assigned, as with the cells of other globals.
+ */
+public final class BindingsEnvironment extends GlobalEnvironment {
+
+    private final Map<String, Object> values;
+    private volatile Map<Symbol, Object> base = Map.of();
+
+    public BindingsEnvironment(Map<String, Object> values,
+                               Environment enclosing) {
+        super(enclosing);
+        this.values = values;
+    }
+
+    @Override
+    public void inherit(Map<Symbol, Object> base) {
+        for (Symbol name : base.keySet()) {
+            values.remove(name.name());
+        }
+        this.base = base;
+    }
+
+    @Override
+    public Map<Symbol, Object> bindings() {
+        Map<Symbol, Object> all = new LinkedHashMap<>(base);
+        values.forEach((name, value) ->
+                               all.put(Symbol.of(name), fromJava(value)));
+        return Collections.unmodifiableMap(all);
+    }
+
+    // the map has no cells, so there is none to hand out even for a name
+    // that is bound; callers look the name up instead
+    @Override
+    public Binding binding(Symbol name) {
+        return null;
+    }
+
+    @Override
+    public void define(Symbol name, Object value) {
+        values.put(name.name(), value);
+    }
+
+    @Override
+    public void clear() {
+        values.clear();
+        base = Map.of();
+    }
+
+    @Override
+    Object lookup(Symbol name) {
+        Object value = values.get(name.name());
+        if (value == null && !values.containsKey(name.name())) {
+            Map<Symbol, Object> base = this.base;
+            return base.containsKey(name) ? base.get(name) : UNDEFINED;
+        }
+        return fromJava(value);
+    }
+
+    @Override
+    boolean update(Symbol name, Object value) {
+        if (!values.containsKey(name.name()) && !base.containsKey(name)) {
+            return false;
+        }
+        values.put(name.name(), value);
+        return true;
+    }
+
+    // the plox value of a Java one: numbers are doubles
+    public static Object fromJava(Object value) {
+        if (value instanceof Number number && !(value instanceof Double)) {
+            return number.doubleValue();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,43 @@
+package com.petar.plox3;
+
+import com.petar.plox3.parser.Interpreter;
+
+import java.util.List;
+
+/**
+ * A method read as a property, remembering the instance it was read from.
+ * Calls written as {@code object.method(...)} skip creating one.
+ */
+public final class BoundMethod implements PloxCallable {
+
+    private final PloxInstance receiver;
+    private final PloxFunction method;
+
+    public BoundMethod(PloxInstance receiver, PloxFunction method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    public PloxInstance receiver() {
+        return receiver;
+    }
+
+    public PloxFunction method() {
+        return method;
+    }
+
+    @Override
+    public int arity() {
+        return method.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return method.call(interpreter, receiver, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -0,0 +1,188 @@
+package com.petar.plox3;
+
+import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.scanner.Token;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution limits for one interpreter: an instruction count, a wall-clock
+ * timeout, a maximum call depth and an allocation quota. Every loop
+ * back-edge and function entry is one instruction. These only decrement a
+ * counter, and the clock and the instruction total are checked every
+ * {@link #POLL_INTERVAL} instructions. A caller polls with
+ * <pre>{@code if (budget.due()) budget.poll(token);}</pre>
+ * Tasks get a {@link #fork()} that shares the instruction total, the quota
+ * and the deadline but counts its own call depth.
+ * <p>
+ * The quota bounds the bytes a run allocates, not what it holds at once:
+ * the code that allocates charges an estimate for strings built by
+ * concatenation, environment frames, instances, functions and classes, and
+ * a value being collected is never seen, so its bytes stay charged. Frames
+ * are the exception and are given back when their scope exits, since
+ * functions only close over the globals and nothing can hold on to a frame.
+ * A fork takes from the shared quota {@link #ALLOCATION_BATCH} bytes at a
+ * time.
+ */
+public final class Budget {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    // estimated sizes of what the interpreter allocates, in bytes
+    public static final long FRAME_BYTES = 160;
+    public static final long INSTANCE_BYTES = 64;
+    public static final long FUNCTION_BYTES = 64;
+    public static final long STRING_BYTES = 40;
+
+    private static final int POLL_INTERVAL = 1024;
+    private static final long ALLOCATION_BATCH = 64 * 1024;
+
+    private final long maxInstructions;
+    private final long timeoutNanos;
+    private final long maxDepth;
+    private final long maxAllocation;
+
+    // instructions left besides those in the countdowns of every fork
+    private final AtomicLong remaining;
+    private int countdown;
+    private long deadline;
+    private long depth;
+    // bytes left besides those taken by every fork
+    private final AtomicLong allocationLeft;
+    // bytes taken from allocationLeft and not yet charged
+    private long allowance;
+    private boolean overAllocated;
+
+    // limits of UNLIMITED are not enforced, the timeout is in milliseconds
+    // and the allocation quota in bytes
+    public Budget(long maxInstructions, long timeoutMillis, long maxDepth,
+                  long maxAllocation) {
+        this.maxInstructions = maxInstructions;
+        this.timeoutNanos = timeoutMillis == UNLIMITED ? UNLIMITED :
+                timeoutMillis * 1_000_000;
+        this.maxDepth = maxDepth;
+        this.maxAllocation = maxAllocation;
+        this.remaining = new AtomicLong();
+        this.allocationLeft = new AtomicLong();
+        start();
+    }
+
+    private Budget(Budget parent) {
+        this.maxInstructions = parent.maxInstructions;
+        this.timeoutNanos = parent.timeoutNanos;
+        this.maxDepth = parent.maxDepth;
+        this.maxAllocation = parent.maxAllocation;
+        this.remaining = parent.remaining;
+        this.deadline = parent.deadline;
+        this.allocationLeft = parent.allocationLeft;
+    }
+
+    public Budget fork() {
+        return new Budget(this);
+    }
+
+    public static Budget unlimited() {
+        return new Budget(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED);
+    }
+
+    // restarts the clock and the instruction count for a new program
+    public void start() {
+        remaining.set(maxInstructions);
+        countdown = 0;
+        depth = 0;
+        allocationLeft.set(maxAllocation);
+        allowance = 0;
+        overAllocated = false;
+        deadline = timeoutNanos == UNLIMITED ? UNLIMITED :
+                System.nanoTime() + timeoutNanos;
+    }
+
+    // counts one instruction, true when poll must be called
+    public boolean due() {
+        return --countdown < 0;
+    }
+
+    // the instruction that made due() true is the first of a new batch
+    public void poll(Token at) {
+        if (overAllocated) {
+            countdown = 0;
+            throw new RuntimeError(at, "Allocation limit exceeded.");
+        }
+        if (nanosLeft() <= 0) {
+            countdown = 0;
+            throw new RuntimeError(at, "Time limit exceeded.");
+        }
+        long left = remaining.getAndAdd(-POLL_INTERVAL);
+        if (left <= 0) {
+            countdown = 0;
+            throw new RuntimeError(at, "Instruction budget exhausted.");
+        }
+        countdown = (int) Math.min(POLL_INTERVAL, left) - 1;
+    }
+
+    // time until the deadline, for operations that block
+    public long nanosLeft() {
+        return deadline == UNLIMITED ? UNLIMITED :
+                deadline - System.nanoTime();
+    }
+
+    // a function entry, to be paired with exit() unless it throws
+    public void enter(Token at) {
+        if (due()) {
+            poll(at);
+        }
+        if (depth == maxDepth) {
+            throw new RuntimeError(at, "Maximum call depth exceeded.");
+        }
+        depth++;
+    }
+
+    public void exit() {
+        depth--;
+    }
+
+    // charges bytes allocated at a token
+    public void allocate(Token at, long bytes) {
+        if (exhausts(bytes)) {
+            throw new RuntimeError(at, "Allocation limit exceeded.");
+        }
+    }
+
+    // charges bytes allocated where there is no token to report, failing
+    // the next poll instead
+    public void charge(long bytes) {
+        if (exhausts(bytes)) {
+            overAllocated = true;
+            countdown = 0;
+        }
+    }
+
+    // gives back the bytes of a frame whose scope has exited
+    public void release(long bytes) {
+        allowance += bytes;
+        if (allowance > 2 * ALLOCATION_BATCH) {
+            allocationLeft.getAndAdd(allowance - ALLOCATION_BATCH);
+            allowance = ALLOCATION_BATCH;
+        }
+    }
+
+    private boolean exhausts(long bytes) {
+        allowance -= bytes;
+        if (allowance >= 0) {
+            return false;
+        }
+        long taken = ALLOCATION_BATCH - allowance;
+        if (allocationLeft.getAndAdd(-taken) < taken) {
+            allowance = 0;
+            return true;
+        }
+        allowance = ALLOCATION_BATCH;
+        return false;
+    }
+
+    // the bytes charged and not given back since the program started, to
+    // within a batch for every fork
+    public long bytesAllocated() {
+        return Math.max(0, maxAllocation - allocationLeft.get() - allowance);
+    }
+}
@@ -1,6 +1,7 @@
 package com.petar.plox3;
 
 import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.scanner.Symbol;
 import com.petar.plox3.scanner.Token;
 
 import java.util.HashMap;
@@ -8,8 +9,13 @@ import java.util.Map;
 
 public class Environment {
 
+    // marks a missing binding, since nil is stored as null
+    static final Object UNDEFINED = new Object();
+
     private final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // symbols are canonical, so these lookups hash once at intern time and
+    // compare keys by identity
+    private final Map<Symbol, Object> values = new HashMap<>();
 
     public Environment() {
         this.enclosing = null;
@@ -20,30 +26,60 @@ public class Environment {
     }
 
     public void define(String name, Object value) {
+        define(Symbol.of(name), value);
+    }
+
+    public void define(Symbol name, Object value) {
         values.put(name, value);
     }
 
+    // drops every binding so the frame can be reused for a fresh scope
+    public void clear() {
+        values.clear();
+    }
+
     public Object get(Token name) {
-        if (values.containsKey(name.lexeme())) {
-            return values.get(name.lexeme());
-        }
-        // if value is not present in this scope, search in parent scope, if
-        // parent scope exists
-        if (enclosing != null) {
-            return enclosing.get(name);
+        Symbol symbol = name.symbol();
+        for (Environment env = this; env != null; env = env.enclosing) {
+            Object value = env.lookup(symbol);
+            if (value != UNDEFINED) {
+                return value;
+            }
         }
         throw new RuntimeError(name, "Undefined variable: " + name.lexeme());
     }
 
     public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme())) {
-            values.put(name.lexeme(), value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+        Symbol symbol = name.symbol();
+        for (Environment env = this; env != null; env = env.enclosing) {
+            if (env.update(symbol, value)) {
+                return;
+            }
         }
         throw new RuntimeError(name, "Undefined variable: " + name.lexeme());
     }
+
+    // the frame of this chain that binds name, null if none does
+    public Environment resolve(Symbol name) {
+        for (Environment env = this; env != null; env = env.enclosing) {
+            if (env.lookup(name) != UNDEFINED) {
+                return env;
+            }
+        }
+        return null;
+    }
+
+    // the binding in this frame alone, UNDEFINED if there is none
+    Object lookup(Symbol name) {
+        return values.getOrDefault(name, UNDEFINED);
+    }
+
+    // rebinds name in this frame alone, false if it is not bound here
+    boolean update(Symbol name, Object value) {
+        if (!values.containsKey(name)) {
+            return false;
+        }
+        values.put(name, value);
+        return true;
+    }
 }
@@ -0,0 +1,114 @@
+package com.petar.plox3;
+
+import com.petar.plox3.scanner.Symbol;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The outermost environment, shared by every task of a program. Each name
+ * is bound to a cell that is created once and then read and written with
+ * volatile accesses, so lookups take no locks and concurrent tasks see each
+ * other's assignments. Below the cells there may be a read only base, such
+ * as a loaded snapshot shared with other interpreters; a name is copied out
+ * of it the first time it is assigned.
+ */
+public class GlobalEnvironment extends Environment {
+
+    public static final class Binding {
+        private volatile Object value;
+
+        Binding(Object value) {
+            this.value = value;
+        }
+
+        public Object get() {
+            return value;
+        }
+
+        public void set(Object value) {
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentMap<Symbol, Binding> bindings =
+            new ConcurrentHashMap<>();
+    private volatile Map<Symbol, Object> base = Map.of();
+
+    public GlobalEnvironment() {
+    }
+
+    GlobalEnvironment(Environment enclosing) {
+        super(enclosing);
+    }
+
+    // names in the base replace what is defined here, natives included
+    public void inherit(Map<Symbol, Object> base) {
+        bindings.keySet().removeAll(base.keySet());
+        this.base = base;
+    }
+
+    // base and own bindings, own ones winning
+    public Map<Symbol, Object> bindings() {
+        Map<Symbol, Object> all = new LinkedHashMap<>(base);
+        bindings.forEach((name, binding) -> all.put(name, binding.value));
+        return Collections.unmodifiableMap(all);
+    }
+
+    // the cell of a defined name, which stays the same for as long as the
+    // name is bound; null if the name is not defined or, in environments
+    // that keep no cells, for every name
+    public Binding binding(Symbol name) {
+        Binding binding = bindings.get(name);
+        if (binding == null) {
+            Map<Symbol, Object> base = this.base;
+            if (!base.containsKey(name)) {
+                return null;
+            }
+            bindings.putIfAbsent(name, new Binding(base.get(name)));
+            binding = bindings.get(name);
+        }
+        return binding;
+    }
+
+    @Override
+    public void define(Symbol name, Object value) {
+        Binding binding = bindings.putIfAbsent(name, new Binding(value));
+        if (binding != null) {
+            binding.value = value;
+        }
+    }
+
+    @Override
+    public void clear() {
+        bindings.clear();
+        base = Map.of();
+    }
+
+    @Override
+    Object lookup(Symbol name) {
+        Binding binding = bindings.get(name);
+        if (binding != null) {
+            return binding.value;
+        }
+        Map<Symbol, Object> base = this.base;
+        return base.containsKey(name) ? base.get(name) : UNDEFINED;
+    }
+
+    @Override
+    boolean update(Symbol name, Object value) {
+        Binding binding = bindings.get(name);
+        if (binding != null) {
+            binding.value = value;
+            return true;
+        }
+        if (!base.containsKey(name)) {
+            return false;
+        }
+        define(name, value);
+        return true;
+    }
+}
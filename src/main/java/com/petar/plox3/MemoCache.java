@@ -0,0 +1,96 @@
+package com.petar.plox3;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of one pure function keyed on its argument values. Arguments
+ * compare with {@code equals}, so 0 and -0 are different keys. The cache is
+ * split into stripes by key hash so that parallel callers rarely contend,
+ * and each stripe evicts its least recently used entry once it holds its
+ * share of {@link #CAPACITY}. A cache whose function may no longer be pure
+ * is invalidated, and then stays empty.
+ */
+public final class MemoCache {
+
+    public static final int CAPACITY =
+            Integer.getInteger("plox3.memo.capacity", 1024);
+
+    // returned by lookup for arguments that are not cached
+    public static final Object MISS = new Object();
+
+    private static final int STRIPES = 16;
+
+    private final Map<List<Object>, Object>[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile boolean valid = true;
+
+    @SuppressWarnings("unchecked")
+    public MemoCache() {
+        int stripeCapacity = Math.max(1, CAPACITY / STRIPES);
+        stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<List<Object>, Object> eldest) {
+                    return size() > stripeCapacity;
+                }
+            };
+        }
+    }
+
+    private Map<List<Object>, Object> stripe(List<Object> arguments) {
+        int hash = arguments.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    public Object lookup(List<Object> arguments) {
+        if (!valid) {
+            return MISS;
+        }
+        Map<List<Object>, Object> stripe = stripe(arguments);
+        Object result;
+        synchronized (stripe) {
+            result = stripe.getOrDefault(arguments, MISS);
+        }
+        (result == MISS ? misses : hits).increment();
+        return result;
+    }
+
+    public void store(List<Object> arguments, Object result) {
+        Map<List<Object>, Object> stripe = stripe(arguments);
+        synchronized (stripe) {
+            if (valid) {
+                stripe.put(Arrays.asList(arguments.toArray()), result);
+            }
+        }
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    // a result stored while invalidating is dropped, since the stripe is
+    // cleared after valid is cleared
+    public void invalidate() {
+        valid = false;
+        for (Map<List<Object>, Object> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+}
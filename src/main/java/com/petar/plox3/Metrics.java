@@ -0,0 +1,250 @@
+package com.petar.plox3;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one interpreter and the tasks it forks, registered as the
+ * MBean {@code com.petar.plox3:type=Interpreter,id=n} until the
+ * interpreter is collected, which is checked every
+ * {@link #SWEEP_INTERVAL_MILLIS} once anything is registered. Statements,
+ * calls and frames are counted in a {@link Counts} per task, which only its
+ * own thread touches, and added to the shared totals every {@link #BATCH}
+ * events and when a run ends, so a running task's latest events may not
+ * show yet.
+ * <p>
+ * Starting the platform MBean server takes longer than a short script
+ * runs, so an interpreter is only registered once it has existed for
+ * {@link #REGISTER_DELAY_MILLIS}, on a background thread. Set
+ * {@code -Dplox3.jmx=false} to count without registering.
+ */
+public final class Metrics implements MetricsMBean {
+
+    private static final int BATCH = 1024;
+    private static final long REGISTER_DELAY_MILLIS = 1000;
+    private static final long SWEEP_INTERVAL_MILLIS = 10_000;
+
+    private static final boolean REGISTER =
+            Boolean.parseBoolean(System.getProperty("plox3.jmx", "true"));
+    private static final AtomicInteger ids = new AtomicInteger();
+    private static final ScheduledExecutorService registrar =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "plox3-jmx");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // only touched on the registrar thread
+    private static final ReferenceQueue<Object> collected =
+            new ReferenceQueue<>();
+    private static final Map<Reference<?>, ObjectName> registered =
+            new HashMap<>();
+    private static boolean sweeping = false;
+
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder nativeCalls = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder runtimeErrors = new LongAdder();
+    private final LongAdder scanningNanos = new LongAdder();
+    private final LongAdder parsingNanos = new LongAdder();
+    private final LongAdder executionNanos = new LongAdder();
+    // the budget of the interpreter itself, whose quota its forks share
+    private volatile Budget budget;
+
+    private Metrics() {
+    }
+
+    // new counters published for as long as owner is reachable
+    public static Metrics register(Object owner) {
+        Metrics metrics = new Metrics();
+        if (REGISTER) {
+            Reference<Object> reference =
+                    new WeakReference<>(owner, collected);
+            int id = ids.incrementAndGet();
+            registrar.schedule(() -> metrics.register(reference, id),
+                               REGISTER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return metrics;
+    }
+
+    private void register(Reference<Object> owner, int id) {
+        unregisterCollected();
+        if (owner.refersTo(null)) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(
+                    "com.petar.plox3:type=Interpreter,id=" + id);
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean(this, name);
+            registered.put(owner, name);
+        } catch (JMException e) {
+            // the counters still work, they are just not published
+            return;
+        }
+        if (!sweeping) {
+            sweeping = true;
+            registrar.scheduleWithFixedDelay(
+                    Metrics::unregisterCollected, SWEEP_INTERVAL_MILLIS,
+                    SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // on the registrar thread, so that interpreters no longer created
+    // still have their MBeans removed once they are collected
+    private static void unregisterCollected() {
+        Reference<?> stale = collected.poll();
+        if (stale == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (; stale != null; stale = collected.poll()) {
+            // null for an owner collected before it was registered
+            ObjectName name = registered.remove(stale);
+            try {
+                if (name != null) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                // unregistered by someone else
+            }
+        }
+    }
+
+    public void track(Budget budget) {
+        this.budget = budget;
+    }
+
+    public Counts counts() {
+        return new Counts();
+    }
+
+    public void runtimeError() {
+        runtimeErrors.increment();
+    }
+
+    public void scanned(long nanos) {
+        scanningNanos.add(nanos);
+    }
+
+    public void parsed(long nanos) {
+        parsingNanos.add(nanos);
+    }
+
+    public void executed(long nanos) {
+        executionNanos.add(nanos);
+    }
+
+    @Override
+    public long getStatementsExecuted() {
+        return statements.sum();
+    }
+
+    @Override
+    public long getFunctionCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getNativeCalls() {
+        return nativeCalls.sum();
+    }
+
+    @Override
+    public long getFramesAllocated() {
+        return frames.sum();
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+        return runtimeErrors.sum();
+    }
+
+    @Override
+    public long getScanningNanos() {
+        return scanningNanos.sum();
+    }
+
+    @Override
+    public long getParsingNanos() {
+        return parsingNanos.sum();
+    }
+
+    @Override
+    public long getExecutionNanos() {
+        return executionNanos.sum();
+    }
+
+    @Override
+    public long getBytesAllocated() {
+        Budget budget = this.budget;
+        return budget == null ? 0 : budget.bytesAllocated();
+    }
+
+    /**
+     * The counts of one task not yet added to the totals. Not thread safe.
+     */
+    public final class Counts {
+
+        private long statements;
+        private long calls;
+        private long nativeCalls;
+        private long frames;
+        private int countdown = BATCH;
+
+        private Counts() {
+        }
+
+        public void statement() {
+            statements++;
+            if (--countdown == 0) {
+                flush();
+            }
+        }
+
+        public void call() {
+            calls++;
+            if (--countdown == 0) {
+                flush();
+            }
+        }
+
+        public void nativeCall() {
+            nativeCalls++;
+            if (--countdown == 0) {
+                flush();
+            }
+        }
+
+        public void frame() {
+            frames++;
+            if (--countdown == 0) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            Metrics.this.statements.add(statements);
+            Metrics.this.calls.add(calls);
+            Metrics.this.nativeCalls.add(nativeCalls);
+            Metrics.this.frames.add(frames);
+            statements = 0;
+            calls = 0;
+            nativeCalls = 0;
+            frames = 0;
+            countdown = BATCH;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.petar.plox3;
+
+/**
+ * What {@link Metrics} publishes over JMX. Times are in nanoseconds, bytes
+ * are the estimate of {@link Budget#bytesAllocated()}.
+ */
+public interface MetricsMBean {
+
+    long getStatementsExecuted();
+
+    long getFunctionCalls();
+
+    long getNativeCalls();
+
+    long getFramesAllocated();
+
+    long getRuntimeErrors();
+
+    long getScanningNanos();
+
+    long getParsingNanos();
+
+    long getExecutionNanos();
+
+    long getBytesAllocated();
+}
@@ -0,0 +1,13 @@
+package com.petar.plox3;
+
+/**
+ * Thrown by natives, which do not know the call they were invoked from. The
+ * caller turns it into a {@link com.petar.plox3.parser.RuntimeError} at the
+ * call's closing parenthesis.
+ */
+public class NativeError extends RuntimeException {
+
+    public NativeError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,29 @@
+package com.petar.plox3;
+
+import com.petar.plox3.parser.Interpreter;
+
+import java.util.List;
+
+/**
+ * A callable implemented in Java. Bad arguments are reported by throwing
+ * {@link NativeError}.
+ */
+public record NativeFunction(String name, int arity, Body body)
+        implements PloxCallable {
+
+    @FunctionalInterface
+    public interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        interpreter.counts().nativeCall();
+        return body.call(interpreter, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
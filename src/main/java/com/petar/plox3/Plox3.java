@@ -1,36 +1,128 @@
 package com.petar.plox3;
 
+import com.petar.plox3.coverage.Coverage;
+import com.petar.plox3.jit.Aot;
+import com.petar.plox3.parser.FlatAst;
+import com.petar.plox3.parser.FlatInterpreter;
 import com.petar.plox3.parser.Interpreter;
 import com.petar.plox3.parser.Parser;
 import com.petar.plox3.parser.RuntimeError;
-import com.petar.plox3.scanner.Scanner;
+import com.petar.plox3.scanner.ParallelScanner;
+import com.petar.plox3.snapshot.Snapshot;
 import com.petar.plox3.scanner.Token;
 import com.petar.plox3.scanner.TokenType;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class Plox3 {
 
+    // an error found while scanning or parsing; where is empty or names
+    // the offending token, as in the printed form
+    public record CompileError(int line, String where, String message) {}
+
     private static final Interpreter interpreter = new Interpreter();
+    // set while a thread compiles for an embedder, who reports the errors
+    private static final ThreadLocal<List<CompileError>> collected =
+            new ThreadLocal<>();
     private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
+    private static volatile boolean hadRuntimeError = false;
+    private static boolean flat = false;
+    private static boolean memoStats = false;
+    private static Path saveSnapshot = null;
+    private static Coverage coverage = null;
+    private static Path coverageReport = null;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: plox3 <path_to_script>");
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        if (args.length > 0 && args[0].equals("compile")) {
+            if (args.length != 4 || !args[2].equals("-o")) {
+                usage();
+                return;
+            }
+            compile(args[1], Paths.get(args[3]));
+            return;
+        }
+        long maxInstructions = Budget.UNLIMITED;
+        long timeoutMillis = Budget.UNLIMITED;
+        long maxDepth = Budget.UNLIMITED;
+        long maxAllocation = Budget.UNLIMITED;
+        int argIndex = 0;
+        while (argIndex < args.length && args[argIndex].startsWith("--")) {
+            String option = args[argIndex++];
+            switch (option) {
+                case "--flat" -> flat = true;
+                case "--no-memoize" -> interpreter.setMemoize(false);
+                case "--memo-stats" -> memoStats = true;
+                case "--load-snapshot", "--save-snapshot", "--coverage" -> {
+                    if (argIndex == args.length) {
+                        usage();
+                        return;
+                    }
+                    Path path = Paths.get(args[argIndex++]);
+                    if (option.equals("--save-snapshot")) {
+                        saveSnapshot = path;
+                    } else if (option.equals("--coverage")) {
+                        coverage = new Coverage();
+                        coverageReport = path;
+                    } else if (!restore(path)) {
+                        System.exit(66);
+                    }
+                }
+                case "--max-instructions", "--timeout-ms", "--max-depth",
+                        "--max-allocation" -> {
+                    if (argIndex == args.length ||
+                            !args[argIndex].matches("\\d{1,18}")) {
+                        usage();
+                        return;
+                    }
+                    long limit = Long.parseLong(args[argIndex++]);
+                    switch (option) {
+                        case "--max-instructions" -> maxInstructions = limit;
+                        case "--timeout-ms" -> timeoutMillis = limit;
+                        case "--max-depth" -> maxDepth = limit;
+                        default -> maxAllocation = limit;
+                    }
+                }
+                default -> {
+                    usage();
+                    return;
+                }
+            }
+        }
+        interpreter.setBudget(new Budget(maxInstructions, timeoutMillis,
+                                         maxDepth, maxAllocation));
+        int remaining = args.length - argIndex;
+        // the flat interpreter records no coverage, and the REPL has no
+        // single source to report on
+        if (remaining > 1 || coverage != null && (flat || remaining == 0)) {
+            usage();
+        } else if (remaining == 1) {
+            runFile(args[argIndex]);
         } else {
             runRepl();
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage: plox3 [--flat] [--no-memoize] " +
+                                   "[--memo-stats] [--max-instructions n] " +
+                                   "[--timeout-ms n] [--max-depth n] " +
+                                   "[--max-allocation bytes] " +
+                                   "[--load-snapshot file] " +
+                                   "[--save-snapshot file] " +
+                                   "[--coverage lcov_file] <path_to_script>");
+        System.out.println("       plox3 compile <path_to_script> " +
+                                   "-o <jar_file>");
+    }
+
     public static void error(int line, String message) {
         report(line, "", message);
     }
@@ -44,51 +136,177 @@ public class Plox3 {
             if (line == null || line.equals("exit")) {
                 break;
             }
-            run(line);
+            run(line, Paths.get("").toAbsolutePath());
             hadError = false;
         }
     }
 
     private static void runFile(String path) throws IOException {
+        Path file = Paths.get(path).toAbsolutePath();
+        byte[] bytes = Files.readAllBytes(file);
+        run(new String(bytes, StandardCharsets.UTF_8), file.getParent());
+        if (memoStats) {
+            printMemoStats();
+        }
+        if (coverage != null && !hadError) {
+            try {
+                coverage.writeLcov(coverageReport, path);
+            } catch (IOException e) {
+                System.err.println("Could not write coverage: " +
+                                           e.getMessage());
+                System.exit(74);
+            }
+        }
+        if (hadError) {
+            System.exit(65);
+        }
+        if (hadRuntimeError) {
+            System.exit(70);
+        }
+        if (saveSnapshot != null) {
+            try {
+                Snapshot.write(interpreter.globalBindings(), saveSnapshot);
+            } catch (IOException e) {
+                System.err.println("Could not save snapshot: " +
+                                           e.getMessage());
+                System.exit(74);
+            }
+        }
+    }
+
+    private static void compile(String path, Path jar) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, StandardCharsets.UTF_8));
+        List<Token> tokens = new ParallelScanner(
+                new String(bytes, StandardCharsets.UTF_8)).scanTokens();
+        Parser parser = new Parser(tokens, null);
+        var stmts = parser.parse();
         if (hadError) {
             System.exit(65);
         }
+        boolean compiled;
+        try {
+            compiled = Aot.compile(stmts, parser.lines(), jar);
+        } catch (IOException e) {
+            System.err.println("Could not write jar: " + e.getMessage());
+            System.exit(74);
+            return;
+        }
+        if (!compiled) {
+            System.exit(65);
+        }
+    }
+
+    // the entry point of a jar written by compile
+    public static void runCompiled(Class<?> script) {
+        long start = System.nanoTime();
+        try {
+            Aot.run(script, interpreter);
+        } catch (RuntimeError error) {
+            interpreter.metrics().runtimeError();
+            runtimeError(error, interpreter.errorOutput());
+        } finally {
+            interpreter.finish(start);
+        }
         if (hadRuntimeError) {
             System.exit(70);
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+    private static boolean restore(Path path) {
+        try {
+            interpreter.restore(Snapshot.load(path).bindings());
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not load snapshot: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void printMemoStats() {
+        for (PloxFunction function : interpreter.memoizedFunctions()) {
+            MemoCache memo = function.memo();
+            System.err.printf("memo %s: %d hits, %d misses%n", function,
+                              memo.hits(), memo.misses());
+        }
+    }
+
+    // imports are found relative to directory
+    private static void run(String source, Path directory) {
+        Metrics metrics = interpreter.metrics();
+        long start = System.nanoTime();
+        List<Token> tokens = new ParallelScanner(source).scanTokens();
+        long scanned = System.nanoTime();
+        metrics.scanned(scanned - start);
+        Parser parser = new Parser(tokens, coverage);
         var stmts = parser.parse();
+        metrics.parsed(System.nanoTime() - scanned);
 
         if (hadError) {
             return;
         }
+        interpreter.load(stmts, directory);
+        if (hadError) {
+            return;
+        }
+
+        if (flat) {
+            FlatAst ast = FlatAst.of(stmts);
+            if (!hadError) {
+                new FlatInterpreter(interpreter).interpret(ast);
+            }
+        } else {
+            interpreter.interpret(stmts);
+        }
+    }
 
-        interpreter.interpret(stmts);
+    // runs compile with the errors it reports on this thread added to
+    // errors instead of printed
+    public static <T> T collectErrors(Supplier<T> compile,
+                                      List<CompileError> errors) {
+        List<CompileError> previous = collected.get();
+        collected.set(errors);
+        try {
+            return compile.get();
+        } finally {
+            collected.set(previous);
+        }
     }
 
     private static void report(int line, String where, String message) {
+        List<CompileError> errors = collected.get();
+        if (errors != null) {
+            errors.add(new CompileError(line, where, message));
+            return;
+        }
         System.out.printf("line=%d, error=%s, where=%s%n", line, message,
                           where);
         hadError = true;
     }
 
     public static void error(Token token, String message) {
+        report(token.line(), where(token), message);
+    }
+
+    // an error in file, a module of the program
+    public static void error(Path file, Token token, String message) {
+        error(file, new CompileError(token.line(), where(token), message));
+    }
+
+    public static void error(Path file, CompileError error) {
+        String where = error.where().isEmpty() ? " " : error.where();
+        report(error.line(), where + "in " + file + " ", error.message());
+    }
+
+    private static String where(Token token) {
         if (token.type() == TokenType.EOF) {
-            report(token.line(), " at the end ", message);
-        } else {
-            report(token.line(), " at " + token.lexeme() + " ", message);
+            return " at the end ";
         }
+        return " at " + token.lexeme() + " ";
     }
 
-    public static void runtimeError(RuntimeError error) {
-        System.err.println(
+    public static synchronized void runtimeError(RuntimeError error,
+                                                 PrintWriter errorOutput) {
+        errorOutput.println(
                 error.getMessage() + "\n[line" + error.getToken().line() + "]");
         hadRuntimeError = true;
     }
@@ -5,6 +5,10 @@ import com.petar.plox3.parser.Interpreter;
 import java.util.List;
 
 public interface PloxCallable {
+
+    // arity of a callable that checks its own argument count
+    int VARIADIC = -1;
+
     int arity();
 
     Object call(Interpreter interpreter, List<Object> arguments);
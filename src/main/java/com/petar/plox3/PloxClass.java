@@ -0,0 +1,92 @@
+package com.petar.plox3;
+
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Symbol;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class value. Calling it creates an instance and runs {@code init} on it
+ * with the arguments, if the class or a superclass has one.
+ */
+public final class PloxClass implements PloxCallable {
+
+    static final Symbol INIT = Symbol.of("init");
+
+    private final Stmt.Class declaration;
+    private final PloxClass superclass;
+    // whose globals the methods run over, null for the main program's
+    private final PloxModule module;
+    private final Map<Symbol, PloxFunction> methods = new HashMap<>();
+    private final Shape rootShape = new Shape(this);
+
+    public PloxClass(Stmt.Class declaration, PloxClass superclass) {
+        this(declaration, superclass, null);
+    }
+
+    public PloxClass(Stmt.Class declaration, PloxClass superclass,
+                     PloxModule module) {
+        this.declaration = declaration;
+        this.superclass = superclass;
+        this.module = module;
+        for (Stmt.Function method : declaration.methods()) {
+            methods.put(method.name().symbol(), new PloxFunction(method, this));
+        }
+    }
+
+    public Stmt.Class declaration() {
+        return declaration;
+    }
+
+    public String name() {
+        return declaration.name().lexeme();
+    }
+
+    public PloxClass superclass() {
+        return superclass;
+    }
+
+    public PloxModule module() {
+        return module;
+    }
+
+    Shape rootShape() {
+        return rootShape;
+    }
+
+    // null if neither this class nor a superclass defines it
+    public PloxFunction findMethod(Symbol name) {
+        for (PloxClass c = this; c != null; c = c.superclass) {
+            PloxFunction method = c.methods.get(name);
+            if (method != null) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int arity() {
+        PloxFunction initializer = findMethod(INIT);
+        return initializer == null ? 0 : initializer.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        interpreter.budget().charge(Budget.INSTANCE_BYTES);
+        PloxInstance instance = new PloxInstance(this);
+        PloxFunction initializer = findMethod(INIT);
+        if (initializer != null) {
+            initializer.call(interpreter, instance, arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
@@ -1,16 +1,69 @@
 package com.petar.plox3;
 
+import com.petar.plox3.jit.Jit;
+import com.petar.plox3.jit.JitRuntime;
 import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.Return;
 import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Symbol;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.SwitchPoint;
+import java.util.Arrays;
 import java.util.List;
 
 public class PloxFunction implements PloxCallable {
 
+    // compiled code whose guards keep failing is eventually given up on
+    private static final int MAX_COMPILATIONS = 3;
+
+    private static final Symbol THIS = Symbol.of("this");
+    private static final Symbol SUPER = Symbol.of("super");
+
     private final Stmt.Function declaration;
+    // results by arguments, only for functions proven pure
+    private final MemoCache memo;
+    // the class declaring this method, null for plain functions
+    private final PloxClass holder;
+    // whose globals the body runs over, null for the main program's
+    private final PloxModule module;
+    private volatile MethodHandle compiled;
+    // invalidated whenever compiled changes, so call sites relink
+    private volatile SwitchPoint linkage = new SwitchPoint();
+    private int calls = 0;
+    private int compilations = 0;
+    // per parameter: has every interpreted call passed a number
+    private final boolean[] numericArguments;
 
     public PloxFunction(Stmt.Function declaration) {
+        this(declaration, null, null, null);
+    }
+
+    public PloxFunction(Stmt.Function declaration, MemoCache memo) {
+        this(declaration, memo, null, null);
+    }
+
+    public PloxFunction(Stmt.Function declaration, MemoCache memo,
+                        PloxModule module) {
+        this(declaration, memo, null, module);
+    }
+
+    PloxFunction(Stmt.Function declaration, PloxClass holder) {
+        this(declaration, null, holder, holder.module());
+    }
+
+    private PloxFunction(Stmt.Function declaration, MemoCache memo,
+                         PloxClass holder, PloxModule module) {
         this.declaration = declaration;
+        this.memo = memo;
+        this.holder = holder;
+        this.module = module;
+        this.numericArguments = new boolean[declaration.params().size()];
+        Arrays.fill(numericArguments, true);
+    }
+
+    public Stmt.Function declaration() {
+        return declaration;
     }
 
     @Override
@@ -18,17 +71,131 @@ public class PloxFunction implements PloxCallable {
         return declaration.params().size();
     }
 
+    public MemoCache memo() {
+        return memo;
+    }
+
+    public PloxClass holder() {
+        return holder;
+    }
+
+    public PloxModule module() {
+        return module;
+    }
+
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        if (memo == null) {
+            return invoke(interpreter, null, arguments);
+        }
+        Object result = memo.lookup(arguments);
+        if (result == MemoCache.MISS) {
+            result = invoke(interpreter, null, arguments);
+            memo.store(arguments, result);
+        }
+        return result;
+    }
+
+    // calls a method on receiver; an initializer always returns it
+    public Object call(Interpreter interpreter, PloxInstance receiver,
+                       List<Object> arguments) {
+        Object result = invoke(interpreter, receiver, arguments);
+        if (holder != null && declaration.name().symbol() == PloxClass.INIT) {
+            return receiver;
+        }
+        return result;
+    }
+
+    private Object invoke(Interpreter interpreter, PloxInstance receiver,
+                          List<Object> arguments) {
+        // the body runs over the globals of the module declaring it
+        interpreter = interpreter.in(module);
+        Metrics.Counts counts = interpreter.counts();
+        counts.call();
+        MethodHandle compiled = this.compiled;
+        // methods only compile if they never use this or super
+        if (compiled != null) {
+            Object result = Jit.invoke(compiled, interpreter, arguments);
+            if (result != JitRuntime.DEOPT) {
+                return result;
+            }
+            deoptimize();
+        } else if (Jit.isEnabled()) {
+            profile(arguments);
+        }
         Environment environment = new Environment(interpreter.getGlobals());
+        counts.frame();
+        Budget budget = interpreter.budget();
+        budget.allocate(declaration.name(), Budget.FRAME_BYTES);
+        if (receiver != null) {
+            environment.define(THIS, receiver);
+            if (holder.superclass() != null) {
+                environment.define(SUPER, holder.superclass());
+            }
+        }
         for (int i = 0; i < declaration.params().size(); i++) {
-            environment.define(declaration.params().get(i).lexeme(),
+            environment.define(declaration.params().get(i).symbol(),
                                arguments.get(i));
         }
-        interpreter.executeBlock(declaration.body(), environment);
+        // compiled code does its own accounting
+        budget.enter(declaration.name());
+        try {
+            interpreter.executeBlock(declaration.body(), environment);
+        } catch (Return returned) {
+            return returned.getValue();
+        } finally {
+            budget.exit();
+            budget.release(Budget.FRAME_BYTES);
+        }
         return null;
     }
 
+    private void profile(List<Object> arguments) {
+        if (compilations == MAX_COMPILATIONS) {
+            return;
+        }
+        // only write on a change, this runs on every task's calls
+        for (int i = 0; i < numericArguments.length; i++) {
+            if (numericArguments[i] && !(arguments.get(i) instanceof Double)) {
+                numericArguments[i] = false;
+            }
+        }
+        if (++calls == Jit.THRESHOLD) {
+            compilations++;
+            Jit.submit(this, numericArguments.clone());
+        }
+    }
+
+    private void deoptimize() {
+        // recompile later against a fresh profile
+        setCompiled(null);
+        calls = 0;
+        Arrays.fill(numericArguments, true);
+    }
+
+    public void install(MethodHandle handle) {
+        setCompiled(handle);
+    }
+
+    public MethodHandle compiled() {
+        return compiled;
+    }
+
+    public SwitchPoint linkage() {
+        return linkage;
+    }
+
+    private synchronized void setCompiled(MethodHandle handle) {
+        compiled = handle;
+        SwitchPoint stale = linkage;
+        linkage = new SwitchPoint();
+        SwitchPoint.invalidateAll(new SwitchPoint[]{stale});
+    }
+
+    public void compilationFailed() {
+        compilations = MAX_COMPILATIONS;
+    }
+
     @Override
     public String toString() {
         return "<fn " + declaration.name().lexeme() + '>';
@@ -0,0 +1,71 @@
+package com.petar.plox3;
+
+import com.petar.plox3.scanner.Symbol;
+
+import java.util.Arrays;
+
+/**
+ * An object created by calling a class. Field values live in an array laid
+ * out by the instance's {@link Shape}. The shape is published after the
+ * array, so a reader that sees a shape also sees a long enough array.
+ * Adding fields is serialized per instance; writes to existing fields are
+ * not, as with any unsynchronized object shared between tasks.
+ */
+public final class PloxInstance {
+
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    private volatile Shape shape;
+    private Object[] fields = NO_FIELDS;
+
+    public PloxInstance(PloxClass owner) {
+        this.shape = owner.rootShape();
+    }
+
+    public Shape shape() {
+        return shape;
+    }
+
+    public PloxClass owner() {
+        return shape.owner();
+    }
+
+    public Object field(int slot) {
+        return fields[slot];
+    }
+
+    public void setField(int slot, Object value) {
+        fields[slot] = value;
+    }
+
+    // sets a field that may not exist yet
+    public void set(Symbol name, Object value) {
+        Shape current = shape;
+        int slot = current.slot(name);
+        if (slot >= 0) {
+            fields[slot] = value;
+        } else {
+            addField(current, current.with(name), value);
+        }
+    }
+
+    // moves from shape from to shape to, which has one more field
+    public synchronized void addField(Shape from, Shape to, Object value) {
+        if (shape != from) {
+            // another task changed the shape first
+            set(to.name(to.size() - 1), value);
+            return;
+        }
+        int slot = from.size();
+        if (slot == fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, slot * 2));
+        }
+        fields[slot] = value;
+        shape = to;
+    }
+
+    @Override
+    public String toString() {
+        return shape.owner().name() + " instance";
+    }
+}
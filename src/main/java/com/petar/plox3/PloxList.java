@@ -0,0 +1,45 @@
+package com.petar.plox3;
+
+import com.petar.plox3.parser.Interpreter;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable list value, compared by its elements. Scripts read it with the
+ * {@code length(list)} and {@code get(list, index)} natives.
+ */
+public record PloxList(List<Object> elements) {
+
+    public static void define(Environment globals) {
+        globals.define("length", new NativeFunction(
+                "length", 1, (interpreter, arguments) ->
+                (double) list(arguments.get(0)).elements.size()));
+        globals.define("get", new NativeFunction(
+                "get", 2, (interpreter, arguments) ->
+                list(arguments.get(0)).get(arguments.get(1))));
+    }
+
+    private static PloxList list(Object value) {
+        if (!(value instanceof PloxList list)) {
+            throw new NativeError("Expected a list.");
+        }
+        return list;
+    }
+
+    private Object get(Object index) {
+        if (!(index instanceof Double number) ||
+                number != Math.floor(number) || number < 0 ||
+                number >= elements.size()) {
+            throw new NativeError("Index out of range.");
+        }
+        return elements.get(number.intValue());
+    }
+
+    @Override
+    public String toString() {
+        return elements.stream()
+                       .map(Interpreter::stringify)
+                       .collect(Collectors.joining(", ", "[", "]"));
+    }
+}
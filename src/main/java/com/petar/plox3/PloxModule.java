@@ -0,0 +1,80 @@
+package com.petar.plox3;
+
+import com.petar.plox3.parser.Purity;
+import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Token;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A source file loaded by an import, and the value the import binds. Its
+ * code runs the first time it is imported, over globals of its own that
+ * see the natives but nothing of the programs importing it. The functions
+ * and classes it declares keep running over these globals wherever they
+ * are called from. Its globals read as properties of the value.
+ */
+public final class PloxModule {
+
+    private final Path path;
+    private final List<Statement> statements;
+    private final Set<Stmt.Function> pure;
+    private final GlobalEnvironment globals;
+    // guarded by this
+    private boolean started = false;
+
+    public PloxModule(Path path, List<Statement> statements,
+                      Environment natives) {
+        this.path = path;
+        this.statements = statements;
+        this.pure = Purity.analyze(statements);
+        this.globals = new GlobalEnvironment(natives);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public List<Statement> statements() {
+        return statements;
+    }
+
+    public Set<Stmt.Function> pure() {
+        return pure;
+    }
+
+    public GlobalEnvironment globals() {
+        return globals;
+    }
+
+    // true for the first caller only, who runs the code while holding the
+    // module's lock
+    public boolean start() {
+        assert Thread.holdsLock(this);
+        if (started) {
+            return false;
+        }
+        started = true;
+        return true;
+    }
+
+    public Object get(Token name) {
+        GlobalEnvironment.Binding binding = globals.binding(name.symbol());
+        if (binding == null) {
+            throw new RuntimeError(name, "Undefined property '" +
+                    name.lexeme() + "'.");
+        }
+        return binding.get();
+    }
+
+    @Override
+    public String toString() {
+        String file = path.getFileName().toString();
+        int extension = file.lastIndexOf('.');
+        return "<module " +
+                (extension < 0 ? file : file.substring(0, extension)) + '>';
+    }
+}
@@ -0,0 +1,117 @@
+package com.petar.plox3;
+
+import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+
+import java.util.Arrays;
+
+/**
+ * Polymorphic inline cache of one property access in the source. For each
+ * of the last few shapes seen it remembers where the property is: a field
+ * slot, a method of the shape's class, or for an assignment the shape that
+ * adding the field leads to. Shapes never change, so a hit needs no further
+ * checks. Sites that see more shapes than it keeps look properties up.
+ * Reading a property of a module reads its global, which is not cached.
+ */
+public final class PropertySite {
+
+    private static final int MAX_SHAPES = 4;
+
+    // slot is -1 when the property is a method, or a field not added yet
+    private record Entry(Shape shape, int slot, PloxFunction method,
+                         Shape next) {}
+
+    private final Token name;
+    private final Symbol symbol;
+    // replaced as a whole, so readers never see a half written entry
+    private volatile Entry[] entries = new Entry[0];
+
+    public PropertySite(Token name) {
+        this.name = name;
+        this.symbol = name.symbol();
+    }
+
+    public Object get(Object object) {
+        if (object instanceof PloxModule module) {
+            return module.get(name);
+        }
+        PloxInstance instance = instance(object, "properties");
+        Entry entry = find(instance.shape());
+        if (entry.slot >= 0) {
+            return instance.field(entry.slot);
+        }
+        return new BoundMethod(instance, entry.method);
+    }
+
+    // the method a call of the property invokes, null if it is a field or
+    // a global of a module
+    public PloxFunction method(Object object) {
+        if (object instanceof PloxModule) {
+            return null;
+        }
+        return find(instance(object, "properties").shape()).method;
+    }
+
+    public void set(PloxInstance instance, Object value) {
+        Shape shape = instance.shape();
+        Entry entry = lookup(shape);
+        if (entry == null) {
+            int slot = shape.slot(symbol);
+            entry = slot >= 0 ? new Entry(shape, slot, null, null) :
+                    new Entry(shape, -1, null, shape.with(symbol));
+            remember(entry);
+        }
+        if (entry.slot >= 0) {
+            instance.setField(entry.slot, value);
+        } else {
+            instance.addField(shape, entry.next, value);
+        }
+    }
+
+    // what is "properties" for reads and "fields" for assignments, which
+    // check their target before evaluating the value
+    public PloxInstance instance(Object object, String what) {
+        if (object instanceof PloxInstance instance) {
+            return instance;
+        }
+        throw new RuntimeError(name, "Only instances have " + what + ".");
+    }
+
+    private Entry find(Shape shape) {
+        Entry entry = lookup(shape);
+        if (entry == null) {
+            int slot = shape.slot(symbol);
+            PloxFunction method = null;
+            if (slot < 0) {
+                method = shape.owner().findMethod(symbol);
+                if (method == null) {
+                    throw new RuntimeError(name, "Undefined property '" +
+                            name.lexeme() + "'.");
+                }
+            }
+            entry = new Entry(shape, slot, method, null);
+            remember(entry);
+        }
+        return entry;
+    }
+
+    private Entry lookup(Shape shape) {
+        for (Entry entry : entries) {
+            if (entry.shape == shape) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // a racing update may drop an entry, which only costs another lookup
+    private void remember(Entry entry) {
+        Entry[] current = entries;
+        if (current.length < MAX_SHAPES) {
+            Entry[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = entry;
+            entries = grown;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.petar.plox3;
+
+import com.petar.plox3.scanner.Symbol;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The layout of an instance: its class and the field array slot of each
+ * field. Shapes form a tree per class whose root has no fields; adding a
+ * field moves an instance to the child shape for that name. Instances that
+ * got the same fields in the same order therefore share a shape, so a cache
+ * keyed on the shape knows where a field is without looking it up.
+ */
+public final class Shape {
+
+    private final PloxClass owner;
+    // field names in slot order
+    private final Symbol[] names;
+    private final Map<Symbol, Integer> slots;
+    private final ConcurrentMap<Symbol, Shape> transitions =
+            new ConcurrentHashMap<>();
+
+    Shape(PloxClass owner) {
+        this(owner, new Symbol[0], Map.of());
+    }
+
+    private Shape(PloxClass owner, Symbol[] names, Map<Symbol, Integer> slots) {
+        this.owner = owner;
+        this.names = names;
+        this.slots = slots;
+    }
+
+    public PloxClass owner() {
+        return owner;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public Symbol name(int slot) {
+        return names[slot];
+    }
+
+    // -1 if the shape has no such field
+    public int slot(Symbol name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // the shape after adding a field, shared by every instance adding it
+    public Shape with(Symbol name) {
+        return transitions.computeIfAbsent(name, added -> {
+            Symbol[] longer = Arrays.copyOf(names, names.length + 1);
+            longer[names.length] = added;
+            Map<Symbol, Integer> moreSlots = new HashMap<>(slots);
+            moreSlots.put(added, names.length);
+            return new Shape(owner, longer, moreSlots);
+        });
+    }
+}
@@ -0,0 +1,97 @@
+package com.petar.plox3.concurrent;
+
+import com.petar.plox3.Budget;
+import com.petar.plox3.NativeError;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded first-in first-out queue of values between tasks. Senders block
+ * while it is full and receivers while it is empty, but never past the
+ * deadline of their budget. Once closed, sends fail and receives drain what
+ * is left, then return nil.
+ */
+public final class Channel {
+
+    private final Object[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+
+    Channel(int capacity) {
+        this.buffer = new Object[capacity];
+    }
+
+    void send(Object value, Budget budget) {
+        lock.lock();
+        try {
+            while (count == buffer.length && !closed) {
+                await(notFull, budget);
+            }
+            if (closed) {
+                throw new NativeError("Send on a closed channel.");
+            }
+            buffer[(head + count) % buffer.length] = value;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Object receive(Budget budget) {
+        lock.lock();
+        try {
+            while (count == 0 && !closed) {
+                await(notEmpty, budget);
+            }
+            if (count == 0) {
+                return null;
+            }
+            Object value = buffer[head];
+            buffer[head] = null;
+            head = (head + 1) % buffer.length;
+            count--;
+            notFull.signal();
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void await(Condition condition, Budget budget) {
+        try {
+            long nanos = budget.nanosLeft();
+            if (nanos == Budget.UNLIMITED) {
+                condition.await();
+            } else if (nanos <= 0 ||
+                    !condition.await(nanos, TimeUnit.NANOSECONDS)) {
+                throw new NativeError("Time limit exceeded.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
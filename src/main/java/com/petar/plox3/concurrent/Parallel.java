@@ -0,0 +1,149 @@
+package com.petar.plox3.concurrent;
+
+import com.petar.plox3.Environment;
+import com.petar.plox3.NativeError;
+import com.petar.plox3.NativeFunction;
+import com.petar.plox3.PloxCallable;
+import com.petar.plox3.PloxList;
+import com.petar.plox3.parser.Interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * {@code parallelMap(fn, from, to)} returns the list of {@code fn(i)} for
+ * {@code i} from {@code from} up to but excluding {@code to}.
+ * {@code parallelReduce(fn, init, from, to)} folds the same range with
+ * {@code acc = fn(acc, i)}; {@code fn} must be associative with
+ * {@code init} as its identity, since every chunk starts from {@code init}
+ * and the chunk results are folded with {@code fn} too.
+ * <p>
+ * The range is cut into chunks by its length alone and chunk results are
+ * combined in order, so results do not depend on the number of threads.
+ * Each chunk runs on a forked interpreter. If calls fail, the error of the
+ * earliest chunk is the one reported.
+ */
+public final class Parallel {
+
+    private static final int MAX_CHUNKS = 256;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            Integer.getInteger("plox3.parallelism",
+                               Runtime.getRuntime().availableProcessors()));
+
+    private Parallel() {
+    }
+
+    public static void define(Environment globals) {
+        globals.define("parallelMap", new NativeFunction(
+                "parallelMap", 3, Parallel::map));
+        globals.define("parallelReduce", new NativeFunction(
+                "parallelReduce", 4, Parallel::reduce));
+    }
+
+    private static Object map(Interpreter interpreter, List<Object> arguments) {
+        PloxCallable function = function(arguments.get(0), 1);
+        double from = number(arguments.get(1));
+        int count = count(from, number(arguments.get(2)));
+        // the array of results, which are charged where they are made
+        interpreter.budget().charge(16 + 8L * count);
+        Object[] results = new Object[count];
+        run(interpreter, count, (child, start, end) -> {
+            for (int i = start; i < end; i++) {
+                results[i] = function.call(child, Arrays.asList(from + i));
+            }
+            return null;
+        });
+        return new PloxList(Collections.unmodifiableList(
+                Arrays.asList(results)));
+    }
+
+    private static Object reduce(Interpreter interpreter,
+                                 List<Object> arguments) {
+        PloxCallable function = function(arguments.get(0), 2);
+        Object init = arguments.get(1);
+        double from = number(arguments.get(2));
+        int count = count(from, number(arguments.get(3)));
+        List<Object> partials = run(interpreter, count, (child, start, end) -> {
+            Object acc = init;
+            for (int i = start; i < end; i++) {
+                acc = function.call(child, Arrays.asList(acc, from + i));
+            }
+            return acc;
+        });
+        Object result = init;
+        for (Object partial : partials) {
+            result = function.call(interpreter, Arrays.asList(result, partial));
+        }
+        return result;
+    }
+
+    private interface Chunk {
+        Object run(Interpreter interpreter, int start, int end);
+    }
+
+    // runs chunk over [0, count) and returns the chunk results in order
+    private static List<Object> run(Interpreter interpreter, int count,
+                                    Chunk chunk) {
+        int size = Math.max(1, (count + MAX_CHUNKS - 1) / MAX_CHUNKS);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int start = 0; start < count; start += size) {
+            int from = start;
+            int to = Math.min(count, start + size);
+            Interpreter child = interpreter.fork();
+            tasks.add(() -> {
+                try {
+                    return chunk.run(child, from, to);
+                } finally {
+                    child.counts().flush();
+                }
+            });
+        }
+        List<Object> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<Object> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw (Error) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted.");
+        }
+        return results;
+    }
+
+    private static PloxCallable function(Object value, int arity) {
+        if (!(value instanceof PloxCallable function) ||
+                (function.arity() != arity &&
+                        function.arity() != PloxCallable.VARIADIC)) {
+            throw new NativeError("Expected a function of %d arguments."
+                                          .formatted(arity));
+        }
+        return function;
+    }
+
+    private static double number(Object value) {
+        if (!(value instanceof Double number)) {
+            throw new NativeError("Range bounds must be numbers.");
+        }
+        return number;
+    }
+
+    private static int count(double from, double to) {
+        double count = Math.ceil(to - from);
+        if (!(count <= Integer.MAX_VALUE - 8)) {
+            throw new NativeError("Range is too large.");
+        }
+        return (int) Math.max(0, count);
+    }
+}
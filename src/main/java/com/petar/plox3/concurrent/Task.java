@@ -0,0 +1,62 @@
+package com.petar.plox3.concurrent;
+
+import com.petar.plox3.Budget;
+import com.petar.plox3.NativeError;
+import com.petar.plox3.Plox3;
+import com.petar.plox3.PloxCallable;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.RuntimeError;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One spawned call. A runtime error is reported as soon as it happens, like
+ * one in the main program, and the task then yields nil.
+ */
+public final class Task {
+
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+    void run(Interpreter interpreter, PloxCallable function,
+             List<Object> arguments) {
+        try {
+            result.complete(function.call(interpreter, arguments));
+        } catch (RuntimeError error) {
+            interpreter.metrics().runtimeError();
+            Plox3.runtimeError(error, interpreter.errorOutput());
+            result.complete(null);
+        } catch (RuntimeException | Error e) {
+            result.complete(null);
+            throw e;
+        } finally {
+            interpreter.counts().flush();
+        }
+    }
+
+    Object join(Budget budget) {
+        try {
+            long nanos = budget.nanosLeft();
+            if (nanos == Budget.UNLIMITED) {
+                return result.get();
+            }
+            return result.get(Math.max(nanos, 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new NativeError("Time limit exceeded.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted.");
+        } catch (ExecutionException e) {
+            // run() always completes normally
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
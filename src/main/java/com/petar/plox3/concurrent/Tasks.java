@@ -0,0 +1,111 @@
+package com.petar.plox3.concurrent;
+
+import com.petar.plox3.Environment;
+import com.petar.plox3.NativeError;
+import com.petar.plox3.NativeFunction;
+import com.petar.plox3.PloxCallable;
+import com.petar.plox3.parser.Interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Natives for concurrent tasks: {@code spawn(fn, args...)} runs a call on
+ * its own thread with its own interpreter state and returns a task,
+ * {@code join(task)} waits for its result, and {@code channel(capacity)},
+ * {@code send}, {@code receive} and {@code close} pass values between
+ * tasks. Tasks are daemons, so the program ends with its main script.
+ */
+public final class Tasks {
+
+    private static final ExecutorService executor = createExecutor();
+
+    private Tasks() {
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            // virtual threads where the JDK has them (21+), looked up
+            // reflectively so the build keeps targeting 17
+            return (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "plox3-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public static void define(Environment globals) {
+        globals.define("spawn", new NativeFunction(
+                "spawn", PloxCallable.VARIADIC, Tasks::spawn));
+        globals.define("join", new NativeFunction(
+                "join", 1, (interpreter, arguments) ->
+                task(arguments.get(0)).join(interpreter.budget())));
+        globals.define("channel", new NativeFunction(
+                "channel", 1, (interpreter, arguments) ->
+                new Channel(capacity(arguments.get(0)))));
+        globals.define("send", new NativeFunction(
+                "send", 2, (interpreter, arguments) -> {
+            channel(arguments.get(0)).send(arguments.get(1),
+                                           interpreter.budget());
+            return null;
+        }));
+        globals.define("receive", new NativeFunction(
+                "receive", 1, (interpreter, arguments) ->
+                channel(arguments.get(0)).receive(interpreter.budget())));
+        globals.define("close", new NativeFunction(
+                "close", 1, (interpreter, arguments) -> {
+            channel(arguments.get(0)).close();
+            return null;
+        }));
+    }
+
+    private static Object spawn(Interpreter interpreter,
+                                List<Object> arguments) {
+        // a native could only fail without a line to report
+        if (arguments.isEmpty() ||
+                !(arguments.get(0) instanceof PloxCallable function) ||
+                function instanceof NativeFunction) {
+            throw new NativeError("spawn expects a function.");
+        }
+        List<Object> rest = new ArrayList<>(
+                arguments.subList(1, arguments.size()));
+        if (function.arity() != PloxCallable.VARIADIC &&
+                function.arity() != rest.size()) {
+            throw new NativeError("Expected %d arguments, got %d".formatted(
+                    function.arity(), rest.size()));
+        }
+        Interpreter child = interpreter.fork();
+        Task task = new Task();
+        executor.execute(() -> task.run(child, function, rest));
+        return task;
+    }
+
+    private static Task task(Object value) {
+        if (!(value instanceof Task task)) {
+            throw new NativeError("Expected a task.");
+        }
+        return task;
+    }
+
+    private static Channel channel(Object value) {
+        if (!(value instanceof Channel channel)) {
+            throw new NativeError("Expected a channel.");
+        }
+        return channel;
+    }
+
+    private static int capacity(Object value) {
+        if (!(value instanceof Double number) || number < 1 ||
+                number != Math.floor(number) || number > Integer.MAX_VALUE) {
+            throw new NativeError("Channel capacity must be a positive " +
+                                          "integer.");
+        }
+        return number.intValue();
+    }
+}
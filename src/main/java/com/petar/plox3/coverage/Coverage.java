@@ -0,0 +1,107 @@
+package com.petar.plox3.coverage;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statement and branch coverage of one script. The parser gives every
+ * statement one index and every if and and/or two, one per outcome, and
+ * running code sets the bit of each index it reaches. A bit is only
+ * written while it is still clear, so hot code just reads it. Tasks write
+ * without synchronization and may lose a bit set at the same moment in the
+ * same word, which at worst reports a statement that did run as missed.
+ */
+public final class Coverage {
+
+    private long[] bits = new long[1];
+    // by index, the line it was assigned for
+    private int[] lines = new int[64];
+    private int size = 0;
+    private final List<Integer> statements = new ArrayList<>();
+    // the first index of each branch pair
+    private final List<Integer> branches = new ArrayList<>();
+
+    // indices are only assigned while parsing, before anything runs
+
+    public CoveragePoint statement(int line) {
+        int index = add(line);
+        statements.add(index);
+        return new CoveragePoint(this, index);
+    }
+
+    public CoveragePoint branch(int line) {
+        int index = add(line);
+        add(line);
+        branches.add(index);
+        return new CoveragePoint(this, index);
+    }
+
+    private int add(int line) {
+        if (size == lines.length) {
+            lines = Arrays.copyOf(lines, size * 2);
+        }
+        if (size >>> 6 == bits.length) {
+            bits = Arrays.copyOf(bits, bits.length * 2);
+        }
+        lines[size] = line;
+        return size++;
+    }
+
+    void hit(int index) {
+        long[] bits = this.bits;
+        int word = index >>> 6;
+        long mask = 1L << index;
+        if ((bits[word] & mask) == 0) {
+            bits[word] |= mask;
+        }
+    }
+
+    boolean isHit(int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    // writes an LCOV tracefile; a line counts as hit when any statement
+    // starting on it ran
+    public void writeLcov(Path report, String source) throws IOException {
+        Map<Integer, Boolean> lineHits = new TreeMap<>();
+        for (int index : statements) {
+            lineHits.merge(lines[index], isHit(index), Boolean::logicalOr);
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(
+                report, StandardCharsets.UTF_8))) {
+            out.println("TN:");
+            out.println("SF:" + source);
+            int linesHit = 0;
+            for (Map.Entry<Integer, Boolean> line : lineHits.entrySet()) {
+                out.println("DA:" + line.getKey() + ',' +
+                                    (line.getValue() ? 1 : 0));
+                linesHit += line.getValue() ? 1 : 0;
+            }
+            out.println("LF:" + lineHits.size());
+            out.println("LH:" + linesHit);
+            int branchesHit = 0;
+            for (int block = 0; block < branches.size(); block++) {
+                int index = branches.get(block);
+                boolean reached = isHit(index) || isHit(index + 1);
+                for (int outcome = 0; outcome < 2; outcome++) {
+                    boolean taken = isHit(index + outcome);
+                    out.println("BRDA:" + lines[index] + ',' + block + ',' +
+                                        outcome + ',' +
+                                        (taken ? "1" : reached ? "0" : "-"));
+                    branchesHit += taken ? 1 : 0;
+                }
+            }
+            out.println("BRF:" + branches.size() * 2);
+            out.println("BRH:" + branchesHit);
+            out.println("end_of_record");
+        }
+    }
+}
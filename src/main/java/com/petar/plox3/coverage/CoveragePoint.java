@@ -0,0 +1,35 @@
+package com.petar.plox3.coverage;
+
+/**
+ * What a covered syntax tree node holds: its index, or for a branch the
+ * first of its two. Bits are never cleared, so compilers can leave out the
+ * recording of a point that has already been hit.
+ */
+public final class CoveragePoint {
+
+    private final Coverage coverage;
+    private final int index;
+
+    CoveragePoint(Coverage coverage, int index) {
+        this.coverage = coverage;
+        this.index = index;
+    }
+
+    public void hit() {
+        coverage.hit(index);
+    }
+
+    // outcome 0 is the then branch of an if and the short circuit of an
+    // and/or, 1 the else branch and the evaluation of the right operand
+    public void hit(int outcome) {
+        coverage.hit(index + outcome);
+    }
+
+    public boolean isHit() {
+        return coverage.isHit(index);
+    }
+
+    public boolean isHit(int outcome) {
+        return coverage.isHit(index + outcome);
+    }
+}
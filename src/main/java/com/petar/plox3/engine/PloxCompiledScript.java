@@ -0,0 +1,40 @@
+package com.petar.plox3.engine;
+
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A parsed and analyzed program that can be evaluated any number of times.
+ * The inline caches and loop traces in its tree are kept between
+ * evaluations, so later ones start warm.
+ */
+final class PloxCompiledScript extends CompiledScript {
+
+    private final PloxScriptEngine engine;
+    final List<Statement> statements;
+    final Set<Stmt.Function> pure;
+
+    PloxCompiledScript(PloxScriptEngine engine, List<Statement> statements,
+                       Set<Stmt.Function> pure) {
+        this.engine = engine;
+        this.statements = statements;
+        this.pure = pure;
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        return engine.eval(this, context);
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+}
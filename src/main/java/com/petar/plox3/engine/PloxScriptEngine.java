@@ -0,0 +1,307 @@
+package com.petar.plox3.engine;
+
+import com.petar.plox3.BindingsEnvironment;
+import com.petar.plox3.Environment;
+import com.petar.plox3.GlobalEnvironment;
+import com.petar.plox3.Metrics;
+import com.petar.plox3.Plox3;
+import com.petar.plox3.PloxCallable;
+import com.petar.plox3.PropertySite;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.Parser;
+import com.petar.plox3.parser.Purity;
+import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.scanner.ParallelScanner;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs plox3 through {@code javax.script}. Globals live in the context's
+ * engine scope, which the program reads and writes in place, then in its
+ * global scope and then among the natives. Each evaluation gets its own
+ * interpreter state, so one compiled script may be evaluated on several
+ * threads, each with its own bindings.
+ * <p>
+ * Evaluating returns the value of the program's last statement when that
+ * is an expression statement, and null otherwise. Modules imported by any
+ * script run once per engine. Printing goes to the context's writer and
+ * errors in spawned tasks to its error writer.
+ */
+public final class PloxScriptEngine extends AbstractScriptEngine
+        implements Compilable, Invocable {
+
+    private final ScriptEngineFactory factory;
+    // the natives and settings every evaluation starts from
+    private final Interpreter interpreter = new Interpreter();
+
+    PloxScriptEngine(ScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context)
+            throws ScriptException {
+        return compile(script, context).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context)
+            throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        return compile(script, context);
+    }
+
+    @Override
+    public CompiledScript compile(Reader reader) throws ScriptException {
+        return compile(read(reader));
+    }
+
+    @Override
+    public Bindings createBindings() {
+        // tasks of a program may assign globals at the same time
+        return new SimpleBindings(Collections.synchronizedMap(
+                new HashMap<>()));
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public Object invokeFunction(String name, Object... args)
+            throws ScriptException, NoSuchMethodException {
+        GlobalEnvironment globals = globals(context);
+        Token token = name(name);
+        if (globals.resolve(token.symbol()) == null) {
+            throw new NoSuchMethodException(name);
+        }
+        Object function = globals.get(token);
+        if (!(function instanceof PloxCallable)) {
+            throw new NoSuchMethodException(name);
+        }
+        return call(globals, function, args);
+    }
+
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args)
+            throws ScriptException, NoSuchMethodException {
+        Object method;
+        try {
+            method = new PropertySite(name(name)).get(thiz);
+        } catch (RuntimeError error) {
+            throw new NoSuchMethodException(name);
+        }
+        if (!(method instanceof PloxCallable)) {
+            throw new NoSuchMethodException(name);
+        }
+        return call(globals(context), method, args);
+    }
+
+    @Override
+    public <T> T getInterface(Class<T> type) {
+        return getInterface(null, type);
+    }
+
+    // null if some method of the interface is not implemented
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> type) {
+        if (type == null || !type.isInterface()) {
+            throw new IllegalArgumentException("Not an interface: " + type);
+        }
+        for (Method method : type.getMethods()) {
+            if (!implemented(thiz, method.getName())) {
+                return null;
+            }
+        }
+        Object proxy = Proxy.newProxyInstance(
+                type.getClassLoader(), new Class<?>[]{type},
+                (self, method, args) -> {
+                    Object[] arguments = args == null ? new Object[0] : args;
+                    if (method.getDeclaringClass() == Object.class) {
+                        return switch (method.getName()) {
+                            case "equals" -> self == arguments[0];
+                            case "hashCode" -> System.identityHashCode(self);
+                            default -> "plox3 " + type.getName();
+                        };
+                    }
+                    return thiz == null ?
+                            invokeFunction(method.getName(), arguments) :
+                            invokeMethod(thiz, method.getName(), arguments);
+                });
+        return type.cast(proxy);
+    }
+
+    Object eval(PloxCompiledScript script, ScriptContext context)
+            throws ScriptException {
+        Interpreter evaluator = evaluator(globals(context), context);
+        try {
+            return evaluator.run(script.statements, script.pure);
+        } catch (RuntimeError error) {
+            throw scriptException(error, context);
+        } finally {
+            evaluator.output().flush();
+        }
+    }
+
+    private CompiledScript compile(String script, ScriptContext context)
+            throws ScriptException {
+        List<Plox3.CompileError> errors = new ArrayList<>();
+        Metrics metrics = interpreter.metrics();
+        List<Statement> statements = Plox3.collectErrors(() -> {
+            long start = System.nanoTime();
+            List<Token> tokens = new ParallelScanner(script).scanTokens();
+            long scanned = System.nanoTime();
+            metrics.scanned(scanned - start);
+            List<Statement> parsed = new Parser(tokens).parse();
+            metrics.parsed(System.nanoTime() - scanned);
+            if (errors.isEmpty()) {
+                interpreter.load(parsed, directory(context));
+            }
+            return parsed;
+        }, errors);
+        if (!errors.isEmpty()) {
+            ScriptException exception = null;
+            for (Plox3.CompileError error : errors) {
+                ScriptException next = new ScriptException(
+                        ("Error" + error.where()).trim() + ": " +
+                                error.message(), fileName(context),
+                        error.line());
+                if (exception == null) {
+                    exception = next;
+                } else {
+                    exception.addSuppressed(next);
+                }
+            }
+            throw exception;
+        }
+        return new PloxCompiledScript(this, statements,
+                                      Purity.analyze(statements));
+    }
+
+    // the engine scope in front of the global scope and the natives
+    private GlobalEnvironment globals(ScriptContext context) {
+        Environment natives = interpreter.getGlobals();
+        Bindings global = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+        return new BindingsEnvironment(
+                context.getBindings(ScriptContext.ENGINE_SCOPE),
+                global == null ? natives :
+                        new BindingsEnvironment(global, natives));
+    }
+
+    private boolean implemented(Object thiz, String name) {
+        try {
+            if (thiz == null) {
+                GlobalEnvironment globals = globals(context);
+                Token token = name(name);
+                return globals.resolve(token.symbol()) != null &&
+                        globals.get(token) instanceof PloxCallable;
+            }
+            return new PropertySite(name(name)).get(thiz)
+                    instanceof PloxCallable;
+        } catch (RuntimeError error) {
+            return false;
+        }
+    }
+
+    private Object call(GlobalEnvironment globals, Object callee,
+                        Object[] args) throws ScriptException {
+        List<Object> arguments = new ArrayList<>(args.length);
+        for (Object arg : args) {
+            arguments.add(BindingsEnvironment.fromJava(arg));
+        }
+        Token paren = new Token(TokenType.RIGHT_PAREN, ")", null, 0);
+        Interpreter caller = evaluator(globals, context);
+        long start = System.nanoTime();
+        try {
+            return caller.call(callee, arguments, paren);
+        } catch (RuntimeError error) {
+            interpreter.metrics().runtimeError();
+            throw scriptException(error, context);
+        } finally {
+            caller.finish(start);
+            caller.output().flush();
+        }
+    }
+
+    // interpreter state over globals that prints to the context's writers,
+    // read on every evaluation since they may be replaced in between
+    private Interpreter evaluator(GlobalEnvironment globals,
+                                  ScriptContext context) {
+        Interpreter evaluator = interpreter.withGlobals(globals);
+        evaluator.setOutput(printWriter(context.getWriter()),
+                            printWriter(context.getErrorWriter()));
+        return evaluator;
+    }
+
+    private static PrintWriter printWriter(Writer writer) {
+        return writer instanceof PrintWriter print ? print :
+                new PrintWriter(writer, true);
+    }
+
+    private static ScriptException scriptException(RuntimeError error,
+                                                   ScriptContext context) {
+        ScriptException exception = new ScriptException(
+                error.getMessage(), fileName(context),
+                error.getToken().line());
+        exception.initCause(error);
+        return exception;
+    }
+
+    private static String fileName(ScriptContext context) {
+        Object name = context.getAttribute(ScriptEngine.FILENAME);
+        return name == null ? null : name.toString();
+    }
+
+    // where imports are found: next to the script if the context names
+    // its file, in the working directory otherwise
+    private static Path directory(ScriptContext context) {
+        String name = fileName(context);
+        Path file = Paths.get(name == null ? "" : name).toAbsolutePath();
+        return name == null ? file : file.getParent();
+    }
+
+    private static Token name(String name) {
+        return new Token(TokenType.IDENTIFIER, name, Symbol.of(name), 0);
+    }
+
+    private static String read(Reader reader) throws ScriptException {
+        StringWriter source = new StringWriter();
+        try {
+            reader.transferTo(source);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return source.toString();
+    }
+}
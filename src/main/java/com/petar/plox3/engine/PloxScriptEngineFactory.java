@@ -0,0 +1,94 @@
+package com.petar.plox3.engine;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.List;
+
+/**
+ * Makes plox3 available to {@code javax.script}, under the names plox3 and
+ * plox and for {@code .px} files.
+ */
+public final class PloxScriptEngineFactory implements ScriptEngineFactory {
+
+    private static final String NAME = "plox3";
+    private static final String VERSION = "0.1.0";
+
+    @Override
+    public String getEngineName() {
+        return NAME;
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("px");
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return List.of("application/x-plox3");
+    }
+
+    @Override
+    public List<String> getNames() {
+        return List.of(NAME, "plox");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return NAME;
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        return switch (key) {
+            case ScriptEngine.ENGINE, ScriptEngine.NAME,
+                    ScriptEngine.LANGUAGE -> NAME;
+            case ScriptEngine.ENGINE_VERSION,
+                    ScriptEngine.LANGUAGE_VERSION -> VERSION;
+            // every evaluation has its own interpreter state
+            case "THREADING" -> "MULTITHREADED";
+            default -> null;
+        };
+    }
+
+    @Override
+    public String getMethodCallSyntax(String object, String method,
+                                      String... arguments) {
+        return object + "." + method + "(" + String.join(", ", arguments) +
+                ")";
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        // strings have no escapes, so quotes cannot be displayed this way
+        return "print \"" + toDisplay + "\";";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        StringBuilder program = new StringBuilder();
+        for (String statement : statements) {
+            program.append(statement);
+            if (!statement.endsWith(";") && !statement.endsWith("}")) {
+                program.append(';');
+            }
+            program.append('\n');
+        }
+        return program.toString();
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new PloxScriptEngine(this);
+    }
+}
@@ -0,0 +1,140 @@
+package com.petar.plox3.instrument;
+
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attaches {@link ProbeListener}s to the lines of a parsed program, also
+ * while it runs. Only statements that sit in a statement list (the program,
+ * blocks and function bodies) can be probed: attaching swaps the statement
+ * for a {@link Stmt.Probed} wrapper in its list, detaching the last
+ * listener swaps it back, so code without probes runs exactly as before.
+ * <p>
+ * Compiled functions and loop traces predate any wrapper swapped in later,
+ * so every swap invalidates {@link #switchPoint()}, which makes them fall
+ * back to the interpreter. Functions and loops containing wrappers stay
+ * interpreted. A memoized function that is already running only reports
+ * its cache misses; attach before the program starts to see every call.
+ */
+public final class Instrumenter {
+
+    private static volatile SwitchPoint switchPoint = new SwitchPoint();
+
+    // by line, the statements starting there
+    private final Map<Integer, List<Probe>> statements = new HashMap<>();
+    // by line, the top level statements of the functions declared there
+    private final Map<Integer, List<Probe>> functions = new HashMap<>();
+    private final Map<Statement, Integer> lines;
+
+    // lines is the parser's line table for the program
+    public Instrumenter(List<Statement> program,
+                        Map<Statement, Integer> lines) {
+        this.lines = lines;
+        index(program, null);
+    }
+
+    // invalidated whenever a wrapper is swapped in
+    public static SwitchPoint switchPoint() {
+        return switchPoint;
+    }
+
+    static synchronized void invalidate() {
+        SwitchPoint stale = switchPoint;
+        switchPoint = new SwitchPoint();
+        SwitchPoint.invalidateAll(new SwitchPoint[]{stale});
+    }
+
+    // null if nothing on the line can be probed
+    public synchronized Attachment attach(int line, ProbeListener listener) {
+        List<Probe> onLine = statements.getOrDefault(line, List.of());
+        List<Probe> inFunctions = functions.getOrDefault(line, List.of());
+        if (onLine.isEmpty() && inFunctions.isEmpty()) {
+            return null;
+        }
+        onLine.forEach(probe -> probe.add(listener));
+        inFunctions.forEach(probe -> probe.addFunctionListener(listener));
+        return new Attachment(listener, onLine, inFunctions);
+    }
+
+    public final class Attachment {
+        private final ProbeListener listener;
+        private final List<Probe> onLine;
+        private final List<Probe> inFunctions;
+        private boolean detached = false;
+
+        private Attachment(ProbeListener listener, List<Probe> onLine,
+                           List<Probe> inFunctions) {
+            this.listener = listener;
+            this.onLine = onLine;
+            this.inFunctions = inFunctions;
+        }
+
+        public void detach() {
+            synchronized (Instrumenter.this) {
+                if (detached) {
+                    return;
+                }
+                detached = true;
+                onLine.forEach(probe -> probe.remove(listener));
+                inFunctions.forEach(probe ->
+                        probe.removeFunctionListener(listener));
+            }
+        }
+    }
+
+    // function is the declaration whose body list this is, if any
+    private void index(List<Statement> list, Stmt.Function function) {
+        List<Probe> body = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++) {
+            Statement statement = list.get(i);
+            if (statement instanceof Stmt.Probed) {
+                throw new IllegalStateException(
+                        "program is already instrumented");
+            }
+            Integer line = lines.get(statement);
+            if (line == null) {
+                // a parse error, or a statement the parser desugared
+                if (statement != null) {
+                    children(statement);
+                }
+                continue;
+            }
+            Probe probe = new Probe(list, i, line, function);
+            statements.computeIfAbsent(line, l -> new ArrayList<>())
+                      .add(probe);
+            body.add(probe);
+            children(statement);
+        }
+        if (function != null && !body.isEmpty()) {
+            functions.computeIfAbsent(function.name().line(),
+                                      l -> new ArrayList<>()).addAll(body);
+        }
+    }
+
+    private void children(Statement statement) {
+        if (statement instanceof Stmt.Covered covered) {
+            children(covered.statement());
+        } else if (statement instanceof Stmt.BlockStatement block) {
+            index(block.statementList(), null);
+        } else if (statement instanceof Stmt.IfStmt ifStmt) {
+            children(ifStmt.then());
+            if (ifStmt.elseStmt() != null) {
+                children(ifStmt.elseStmt());
+            }
+        } else if (statement instanceof Stmt.WhileStatement whileStatement) {
+            children(whileStatement.body());
+        } else if (statement instanceof Stmt.CountedFor countedFor) {
+            children(countedFor.body());
+        } else if (statement instanceof Stmt.Function function) {
+            index(function.body(), function);
+        } else if (statement instanceof Stmt.Class klass) {
+            klass.methods().forEach(method -> index(method.body(), method));
+        }
+    }
+}
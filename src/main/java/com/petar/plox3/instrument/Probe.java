@@ -0,0 +1,143 @@
+package com.petar.plox3.instrument;
+
+import com.petar.plox3.Environment;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Token;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The probes of one statement in a statement list: listeners attached to
+ * the statement's line, and if it is a top level statement of a function
+ * body, listeners attached to the function's line. The interpreter reports
+ * to it while the statement is swapped for its {@link Stmt.Probed} wrapper.
+ */
+public final class Probe {
+
+    private static final ProbeListener[] NONE = new ProbeListener[0];
+
+    private final List<Statement> list;
+    private final int index;
+    private final Statement statement;
+    private final int line;
+    // the function this is a top level statement of, or null
+    private final Stmt.Function function;
+    private final boolean first;
+    private final boolean last;
+    private final Stmt.Probed wrapper;
+    // replaced as a whole, so events never see a half updated array
+    private volatile ProbeListener[] listeners = NONE;
+    private volatile ProbeListener[] functionListeners = NONE;
+
+    Probe(List<Statement> list, int index, int line, Stmt.Function function) {
+        this.list = list;
+        this.index = index;
+        this.statement = list.get(index);
+        this.line = line;
+        this.function = function;
+        this.first = function != null && index == 0;
+        this.last = function != null && index == list.size() - 1;
+        this.wrapper = new Stmt.Probed(statement, this);
+    }
+
+    public int line() {
+        return line;
+    }
+
+    public void enter(Environment environment) {
+        if (first) {
+            for (ProbeListener listener : functionListeners) {
+                listener.onCall(function, environment);
+            }
+        }
+        for (ProbeListener listener : listeners) {
+            listener.onEnter(line, statement, environment);
+        }
+    }
+
+    public void exit(Environment environment) {
+        for (ProbeListener listener : listeners) {
+            listener.onExit(line, statement, environment);
+        }
+    }
+
+    public void wrote(Token name, Object value) {
+        for (ProbeListener listener : listeners) {
+            listener.onWrite(line, name, value);
+        }
+    }
+
+    // a return statement inside this one left the function
+    public void returned(Object value) {
+        for (ProbeListener listener : functionListeners) {
+            listener.onReturn(function, value);
+        }
+    }
+
+    // falling off the end of the body returns nil
+    public void completed() {
+        if (last) {
+            returned(null);
+        }
+    }
+
+    // the add and remove methods are only called under the instrumenter's
+    // lock
+
+    void add(ProbeListener listener) {
+        listeners = added(listeners, listener);
+        swap();
+    }
+
+    void remove(ProbeListener listener) {
+        listeners = removed(listeners, listener);
+        swap();
+    }
+
+    void addFunctionListener(ProbeListener listener) {
+        functionListeners = added(functionListeners, listener);
+        swap();
+    }
+
+    void removeFunctionListener(ProbeListener listener) {
+        functionListeners = removed(functionListeners, listener);
+        swap();
+    }
+
+    // puts the wrapper in the list while anything listens, the plain
+    // statement otherwise
+    private void swap() {
+        boolean probed = listeners.length > 0 || functionListeners.length > 0;
+        Statement current = list.get(index);
+        if (probed && current != wrapper) {
+            list.set(index, wrapper);
+            Instrumenter.invalidate();
+        } else if (!probed && current == wrapper) {
+            list.set(index, statement);
+        }
+    }
+
+    private static ProbeListener[] added(ProbeListener[] listeners,
+                                         ProbeListener listener) {
+        ProbeListener[] grown = Arrays.copyOf(listeners, listeners.length + 1);
+        grown[listeners.length] = listener;
+        return grown;
+    }
+
+    private static ProbeListener[] removed(ProbeListener[] listeners,
+                                           ProbeListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                ProbeListener[] shrunk =
+                        new ProbeListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, shrunk, 0, i);
+                System.arraycopy(listeners, i + 1, shrunk, i,
+                                 shrunk.length - i);
+                return shrunk;
+            }
+        }
+        return listeners;
+    }
+}
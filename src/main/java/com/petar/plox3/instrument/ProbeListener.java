@@ -0,0 +1,34 @@
+package com.petar.plox3.instrument;
+
+import com.petar.plox3.Environment;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Token;
+
+/**
+ * Receives the events of the lines it is attached to. Tasks run in
+ * parallel, so a listener may be called from several threads at once.
+ */
+public interface ProbeListener {
+
+    // environment holds the variables visible to the statement
+    default void onEnter(int line, Statement statement,
+                         Environment environment) {
+    }
+
+    // only when the statement completes normally or returns
+    default void onExit(int line, Statement statement,
+                        Environment environment) {
+    }
+
+    // for functions declared on the line; arguments holds the parameters
+    default void onCall(Stmt.Function function, Environment arguments) {
+    }
+
+    default void onReturn(Stmt.Function function, Object value) {
+    }
+
+    // a var declaration or an assignment statement on the line
+    default void onWrite(int line, Token name, Object value) {
+    }
+}
@@ -0,0 +1,263 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.Plox3;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.Purity;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Token;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * Compiles a whole script ahead of time into a runnable jar. Every function
+ * declaration becomes a class with a static {@code run} method, the top
+ * level statements are split over a few more, and each global is a static
+ * field of one class. Next to them go the interpreter's runtime classes,
+ * for values, natives and error reporting, so the jar runs on a plain JVM
+ * with {@code java -jar} and never scans, parses or interprets.
+ * <p>
+ * Classes, {@code this} and {@code super} are not compiled yet, as in the
+ * JIT; a script using them is reported and no jar is written.
+ */
+public final class Aot {
+
+    static final String PACKAGE = "plox3/script/";
+    static final String MAIN = PACKAGE + "Main";
+    static final String GLOBALS = PACKAGE + "Globals";
+
+    // top level statements per class, halved while the code is too large
+    private static final int STATEMENTS_PER_CLASS = 256;
+    private static final String RUNTIME = "com/petar/plox3/";
+
+    private final Set<Stmt.Function> pure;
+    private final Map<Statement, Integer> lines;
+    private final Map<Stmt.Function, String> functions =
+            new IdentityHashMap<>();
+    private final Deque<Stmt.Function> pending = new ArrayDeque<>();
+    private final Set<String> globals = new LinkedHashSet<>();
+    private final List<String> topLevel = new ArrayList<>();
+    // internal name -> class file
+    private final Map<String, byte[]> classes = new LinkedHashMap<>();
+    private boolean failed = false;
+
+    private Aot(List<Statement> program, Map<Statement, Integer> lines) {
+        this.pure = Purity.analyze(program);
+        this.lines = lines;
+    }
+
+    // false if the program could not be compiled, which has been reported
+    public static boolean compile(List<Statement> program,
+                                  Map<Statement, Integer> lines, Path jar)
+            throws IOException {
+        Aot aot = new Aot(program, lines);
+        for (int i = 0; i < program.size(); i += STATEMENTS_PER_CLASS) {
+            aot.topLevel(program.subList(
+                    i, Math.min(program.size(), i + STATEMENTS_PER_CLASS)));
+        }
+        while (!aot.pending.isEmpty()) {
+            aot.compileFunction(aot.pending.poll());
+        }
+        if (aot.failed) {
+            return false;
+        }
+        aot.classes.put(GLOBALS, aot.globalsClass());
+        aot.classes.put(MAIN, aot.mainClass());
+        aot.write(jar);
+        return true;
+    }
+
+    // the top level code of a compiled script
+    public static void run(Class<?> script, Interpreter interpreter) {
+        AotRuntime.run(script, interpreter);
+    }
+
+    // name of the field for a global
+    String global(Token name) {
+        globals.add(name.lexeme());
+        return name.lexeme();
+    }
+
+    // name of the class for a function declaration
+    String function(Stmt.Function declaration) {
+        String name = functions.get(declaration);
+        if (name == null) {
+            name = PACKAGE + "Fn" + functions.size() + '_' +
+                    declaration.name().lexeme();
+            functions.put(declaration, name);
+            pending.add(declaration);
+        }
+        return name;
+    }
+
+    boolean isPure(Stmt.Function declaration) {
+        return pure.contains(declaration);
+    }
+
+    private void topLevel(List<Statement> statements) {
+        String name = PACKAGE + "Top" + topLevel.size();
+        try {
+            classes.put(name, new ScriptCompiler(this, statements, name)
+                    .compile().bytes());
+            topLevel.add(name);
+        } catch (Unsupported e) {
+            if (e.at() == null && statements.size() > 1) {
+                int half = statements.size() / 2;
+                topLevel(statements.subList(0, half));
+                topLevel(statements.subList(half, statements.size()));
+            } else if (e.at() != null) {
+                unsupported(e);
+            } else {
+                Plox3.error(lines.getOrDefault(statements.get(0), 0),
+                            "Statement too large to compile (" +
+                                    e.getMessage() + ").");
+                failed = true;
+            }
+        }
+    }
+
+    private void compileFunction(Stmt.Function declaration) {
+        String name = functions.get(declaration);
+        try {
+            classes.put(name, new ScriptCompiler(this, declaration, name)
+                    .compile().bytes());
+        } catch (Unsupported e) {
+            if (e.at() != null) {
+                unsupported(e);
+            } else {
+                Plox3.error(declaration.name(),
+                            "Function too large to compile (" +
+                                    e.getMessage() + ").");
+                failed = true;
+            }
+        }
+    }
+
+    private void unsupported(Unsupported e) {
+        Plox3.error(e.at(), "Can't compile " + e.getMessage() +
+                " ahead of time.");
+        failed = true;
+    }
+
+    private byte[] globalsClass() {
+        ClassWriter classWriter = new ClassWriter(GLOBALS);
+        Code clinit = new Code(classWriter, 0);
+        for (String global : globals) {
+            // volatile like the cells of GlobalEnvironment, for tasks
+            classWriter.field(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC |
+                                      ClassWriter.ACC_VOLATILE, global,
+                              "Ljava/lang/Object;");
+            clinit.ldcString(global);
+            clinit.invokestatic("com/petar/plox3/jit/AotRuntime", "global",
+                                "(Ljava/lang/String;)Ljava/lang/Object;");
+            clinit.putstatic(GLOBALS, global, "Ljava/lang/Object;");
+        }
+        clinit.op(Code.RETURN, 0);
+        classWriter.method(ClassWriter.ACC_STATIC, "<clinit>", "()V", clinit);
+        return classWriter.toByteArray();
+    }
+
+    private byte[] mainClass() {
+        ClassWriter classWriter = new ClassWriter(MAIN);
+        Code main = new Code(classWriter, 1);
+        main.ldcClass(MAIN);
+        main.invokestatic("com/petar/plox3/Plox3", "runCompiled",
+                          "(Ljava/lang/Class;)V");
+        main.op(Code.RETURN, 0);
+        classWriter.method(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC,
+                           "main", "([Ljava/lang/String;)V", main);
+        Code run = new Code(classWriter, 2);
+        for (String chunk : topLevel) {
+            run.aload(0);
+            run.aload(1);
+            run.invokestatic(chunk, "run", FunctionCompiler.RUN_DESCRIPTOR);
+            run.op(Code.POP, -1);
+        }
+        run.op(Code.ACONST_NULL, 1);
+        run.op(Code.ARETURN, -1);
+        classWriter.method(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC,
+                           "run", FunctionCompiler.RUN_DESCRIPTOR, run);
+        return classWriter.toByteArray();
+    }
+
+    private void write(Path jar) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(Attributes.Name.MAIN_CLASS, MAIN.replace('/', '.'));
+        try (JarOutputStream out = new JarOutputStream(
+                Files.newOutputStream(jar), manifest)) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey() + ".class"));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+            copyRuntime(out);
+        }
+    }
+
+    // the classes of this interpreter, from its jar or class directory
+    private static void copyRuntime(JarOutputStream out) throws IOException {
+        Path location;
+        try {
+            location = Paths.get(Aot.class.getProtectionDomain()
+                                          .getCodeSource().getLocation()
+                                          .toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (Files.isDirectory(location)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(location.resolve(RUNTIME))) {
+                files = walk.filter(path -> path.toString().endsWith(".class"))
+                            .sorted().toList();
+            }
+            for (Path file : files) {
+                String name = location.relativize(file).toString()
+                                      .replace(file.getFileSystem()
+                                                   .getSeparator(), "/");
+                try (InputStream in = Files.newInputStream(file)) {
+                    copy(name, in, out);
+                }
+            }
+            return;
+        }
+        try (JarFile runtime = new JarFile(location.toFile())) {
+            for (JarEntry entry : runtime.stream().toList()) {
+                if (entry.getName().startsWith(RUNTIME) &&
+                        entry.getName().endsWith(".class")) {
+                    try (InputStream in = runtime.getInputStream(entry)) {
+                        copy(entry.getName(), in, out);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void copy(String name, InputStream in, JarOutputStream out)
+            throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        in.transferTo(out);
+        out.closeEntry();
+    }
+}
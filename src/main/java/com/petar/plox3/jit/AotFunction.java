@@ -0,0 +1,51 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.MemoCache;
+import com.petar.plox3.PloxCallable;
+import com.petar.plox3.parser.Interpreter;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+
+/**
+ * A function of a script compiled ahead of time: the static
+ * {@code run(Interpreter, List)} method of its class, with a cache of
+ * results if the compiler found it pure.
+ */
+final class AotFunction implements PloxCallable {
+
+    private final String name;
+    private final int arity;
+    private final MethodHandle body;
+    private final MemoCache memo;
+
+    AotFunction(String name, int arity, MethodHandle body, MemoCache memo) {
+        this.name = name;
+        this.arity = arity;
+        this.body = body;
+        this.memo = memo;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        if (memo == null) {
+            return Jit.invoke(body, interpreter, arguments);
+        }
+        Object result = memo.lookup(arguments);
+        if (result == MemoCache.MISS) {
+            result = Jit.invoke(body, interpreter, arguments);
+            memo.store(arguments, result);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + '>';
+    }
+}
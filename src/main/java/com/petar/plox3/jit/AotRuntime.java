@@ -0,0 +1,84 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.MemoCache;
+import com.petar.plox3.PloxCallable;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers called from code compiled ahead of time, besides those it shares
+ * with the JIT in {@link JitRuntime}.
+ */
+public final class AotRuntime {
+
+    // the value of a global that has not been declared yet
+    private static final Object UNDEFINED = new Object();
+
+    private static final MethodType RUN_TYPE =
+            MethodType.methodType(Object.class, Interpreter.class, List.class);
+    private static final ClassValue<MethodHandle> RUN = new ClassValue<>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                return MethodHandles.publicLookup().findStatic(type, "run",
+                                                               RUN_TYPE);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    // what the globals start out as: the natives of the running interpreter
+    private static volatile Map<Symbol, Object> natives = Map.of();
+
+    private AotRuntime() {
+    }
+
+    // runs a compiled script's top level code
+    static void run(Class<?> script, Interpreter interpreter) {
+        natives = interpreter.globalBindings();
+        Jit.invoke(RUN.get(script), interpreter, List.of());
+    }
+
+    public static Object global(String name) {
+        Symbol symbol = Symbol.of(name);
+        Map<Symbol, Object> natives = AotRuntime.natives;
+        return natives.containsKey(symbol) ? natives.get(symbol) : UNDEFINED;
+    }
+
+    public static Object defined(Object value, Token name) {
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name,
+                                   "Undefined variable: " + name.lexeme());
+        }
+        return value;
+    }
+
+    public static void checkDefined(Object value, Token name) {
+        defined(value, name);
+    }
+
+    public static Token token(String type, String lexeme, int line) {
+        TokenType tokenType = TokenType.valueOf(type);
+        // as the scanner makes them, names carry their symbol
+        Object literal = tokenType == TokenType.IDENTIFIER ||
+                tokenType == TokenType.THIS || tokenType == TokenType.SUPER ?
+                Symbol.of(lexeme) : null;
+        return new Token(tokenType, lexeme, literal, line);
+    }
+
+    public static PloxCallable function(Class<?> body, String name, int arity,
+                                        boolean pure) {
+        return new AotFunction(name, arity, RUN.get(body),
+                               pure ? new MemoCache() : null);
+    }
+}
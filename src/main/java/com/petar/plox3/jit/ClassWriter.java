@@ -0,0 +1,204 @@
+package com.petar.plox3.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file writer. Classes are emitted as version 49 so that the
+ * verifier infers types itself and no stack map frames are needed.
+ */
+final class ClassWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_VOLATILE = 0x0040;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String name;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassWriter(String name) {
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int nameIndex = utf8(internalName);
+        return entry("C" + internalName, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    int string(String value) {
+        int valueIndex = utf8(value);
+        return entry("S" + value, 1, out -> {
+            out.writeByte(8);
+            out.writeShort(valueIndex);
+        });
+    }
+
+    int integerConstant(int value) {
+        return entry("I" + value, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        // doubles take two pool slots
+        return entry("D" + bits, 2, out -> {
+            out.writeByte(6);
+            out.writeLong(bits);
+        });
+    }
+
+    int fieldRef(String owner, String fieldName, String descriptor) {
+        return memberRef(9, owner, fieldName, descriptor);
+    }
+
+    int methodRef(String owner, String methodName, String descriptor) {
+        return memberRef(10, owner, methodName, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String methodName,
+                           String descriptor) {
+        return memberRef(11, owner, methodName, descriptor);
+    }
+
+    void field(int access, String fieldName, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, out -> {
+            out.writeShort(access);
+            out.writeShort(utf8(fieldName));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        });
+        fields.add(bytes.toByteArray());
+    }
+
+    void method(int access, String methodName, String descriptor, Code code) {
+        byte[] instructions = code.toByteArray();
+        if (instructions.length > 65535) {
+            throw new Unsupported("method too large");
+        }
+        int codeAttribute = utf8("Code");
+        int nameIndex = utf8(methodName);
+        int descriptorIndex = utf8(descriptor);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, out -> {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + instructions.length);
+            out.writeShort(code.maxStack());
+            out.writeShort(code.maxLocals());
+            out.writeInt(instructions.length);
+            out.write(instructions);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        });
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, out -> {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        });
+        return bytes.toByteArray();
+    }
+
+    private int memberRef(int tag, String owner, String memberName,
+                          String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(memberName);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = entry("N" + memberName + ' ' + descriptor, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return entry(tag + owner + '.' + memberName + descriptor, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private int entry(String key, int slots, Writer writer) {
+        Integer existing = entries.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        write(pool, writer);
+        int index = poolCount;
+        poolCount += slots;
+        if (poolCount > 65535) {
+            throw new Unsupported("constant pool overflow");
+        }
+        entries.put(key, index);
+        return index;
+    }
+
+    private static void write(ByteArrayOutputStream bytes, Writer writer) {
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            writer.write(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,301 @@
+package com.petar.plox3.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bytecode buffer for one method. Tracks the operand stack depth of every
+ * emitted instruction so that max_stack can be written exactly.
+ */
+final class Code {
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP_X2 = 0x5b;
+    static final int DUP2 = 0x5c;
+    static final int DUP2_X2 = 0x5e;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int DRETURN = 0xaf;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int IFNULL = 0xc6;
+    static final int IFNONNULL = 0xc7;
+
+    private final ClassWriter classWriter;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<>();
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    Code(ClassWriter classWriter, int parameterSlots) {
+        this.classWriter = classWriter;
+        this.maxLocals = parameterSlots;
+    }
+
+    int maxStack() {
+        return maxStack;
+    }
+
+    int maxLocals() {
+        return maxLocals;
+    }
+
+    Label newLabel() {
+        Label label = new Label();
+        labels.add(label);
+        return label;
+    }
+
+    // resolves every jump, all labels must have been marked by now
+    byte[] toByteArray() {
+        byte[] code = bytes.toByteArray();
+        for (Label label : labels) {
+            for (int[] jump : label.jumps) {
+                int offset = label.position - jump[0];
+                if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+                    throw new Unsupported("branch too far");
+                }
+                code[jump[1]] = (byte) (offset >> 8);
+                code[jump[1] + 1] = (byte) offset;
+            }
+        }
+        return code;
+    }
+
+    // plain instruction without operands, adjusting the stack by delta
+    void op(int opcode, int delta) {
+        bytes.write(opcode);
+        adjust(delta);
+    }
+
+    void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            bytes.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(SIPUSH, 1);
+            u2(value);
+        } else {
+            op(LDC_W, 1);
+            u2(classWriter.integerConstant(value));
+        }
+    }
+
+    void dconst(double value) {
+        op(LDC2_W, 2);
+        u2(classWriter.doubleConstant(value));
+    }
+
+    void ldcString(String value) {
+        op(LDC_W, 1);
+        u2(classWriter.string(value));
+    }
+
+    void ldcClass(String internalName) {
+        op(LDC_W, 1);
+        u2(classWriter.classRef(internalName));
+    }
+
+    void aload(int slot) {
+        local(ALOAD, slot, 1, 1);
+    }
+
+    void astore(int slot) {
+        local(ASTORE, slot, -1, 1);
+    }
+
+    void dload(int slot) {
+        local(DLOAD, slot, 2, 2);
+    }
+
+    void dstore(int slot) {
+        local(DSTORE, slot, -2, 2);
+    }
+
+    void typeOp(int opcode, String internalName) {
+        // anewarray, checkcast and instanceof replace the top of the stack
+        op(opcode, opcode == NEW ? 1 : 0);
+        u2(classWriter.classRef(internalName));
+    }
+
+    void getstatic(String owner, String name, String descriptor) {
+        op(GETSTATIC, slots(descriptor));
+        u2(classWriter.fieldRef(owner, name, descriptor));
+    }
+
+    void putstatic(String owner, String name, String descriptor) {
+        op(PUTSTATIC, -slots(descriptor));
+        u2(classWriter.fieldRef(owner, name, descriptor));
+    }
+
+    void invokestatic(String owner, String name, String descriptor) {
+        op(INVOKESTATIC, stackEffect(descriptor));
+        u2(classWriter.methodRef(owner, name, descriptor));
+    }
+
+    void invokevirtual(String owner, String name, String descriptor) {
+        op(INVOKEVIRTUAL, stackEffect(descriptor) - 1);
+        u2(classWriter.methodRef(owner, name, descriptor));
+    }
+
+    void invokespecial(String owner, String name, String descriptor) {
+        op(INVOKESPECIAL, stackEffect(descriptor) - 1);
+        u2(classWriter.methodRef(owner, name, descriptor));
+    }
+
+    void invokeinterface(String owner, String name, String descriptor) {
+        op(INVOKEINTERFACE, stackEffect(descriptor) - 1);
+        u2(classWriter.interfaceMethodRef(owner, name, descriptor));
+        bytes.write(1 + argumentSlots(descriptor));
+        bytes.write(0);
+    }
+
+    void jump(int opcode, Label label) {
+        int position = bytes.size();
+        int delta = switch (opcode) {
+            case GOTO -> 0;
+            case IF_ACMPEQ, IF_ACMPNE -> -2;
+            default -> -1;
+        };
+        op(opcode, delta);
+        label.jumpFrom(position, bytes.size(), stack);
+        u2(0);
+        if (opcode == GOTO) {
+            // nothing falls through a goto, the next label sets the depth
+            stack = -1;
+        }
+    }
+
+    void mark(Label label) {
+        label.position = bytes.size();
+        if (label.stack >= 0) {
+            stack = label.stack;
+        } else {
+            label.stack = stack;
+        }
+    }
+
+    private void local(int opcode, int slot, int delta, int size) {
+        if (slot > 255) {
+            // wide form
+            op(0xc4, 0);
+            op(opcode, delta);
+            u2(slot);
+        } else {
+            op(opcode, delta);
+            bytes.write(slot);
+        }
+        maxLocals = Math.max(maxLocals, slot + size);
+    }
+
+    private void adjust(int delta) {
+        if (stack < 0) {
+            throw new IllegalStateException("unreachable code emitted");
+        }
+        stack += delta;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void u2(int value) {
+        bytes.write(value >> 8);
+        bytes.write(value);
+    }
+
+    private static int stackEffect(String descriptor) {
+        return returnSlots(descriptor) - argumentSlots(descriptor);
+    }
+
+    private static int returnSlots(String descriptor) {
+        return slots(descriptor.substring(descriptor.indexOf(')') + 1));
+    }
+
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'D' || c == 'J') {
+                slots += 2;
+                i++;
+            } else {
+                slots++;
+                while (descriptor.charAt(i) == '[') {
+                    i++;
+                }
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                i++;
+            }
+        }
+        return slots;
+    }
+
+    private static int slots(String type) {
+        return switch (type.charAt(0)) {
+            case 'V' -> 0;
+            case 'D', 'J' -> 2;
+            default -> 1;
+        };
+    }
+
+    static final class Label {
+
+        private int position = -1;
+        private int stack = -1;
+        private final List<int[]> jumps = new ArrayList<>();
+
+        private Label() {
+        }
+
+        private void jumpFrom(int instruction, int operand, int depth) {
+            jumps.add(new int[]{instruction, operand});
+            if (stack < 0) {
+                stack = depth;
+            }
+        }
+    }
+}
@@ -0,0 +1,1062 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.PropertySite;
+import com.petar.plox3.coverage.CoveragePoint;
+import com.petar.plox3.parser.Expr;
+import com.petar.plox3.parser.ExprVisitor;
+import com.petar.plox3.parser.Expression;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.parser.StmtVisitor;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates one {@link Stmt.Function} into a class with a static
+ * {@code run(Interpreter, List)} method. How constants, globals and nested
+ * functions are reached is left to the methods {@link ScriptCompiler}
+ * overrides for code that is compiled ahead of time.
+ * <p>
+ * Functions only see their parameters, their own blocks and the globals, so
+ * every name is resolved statically: declared earlier in an enclosing block
+ * means a JVM local, anything else is a global looked up at run time.
+ * Locals that provably always hold numbers are kept as unboxed doubles.
+ * Parameters observed to be numbers are guarded on entry; a failed guard
+ * returns {@link JitRuntime#DEOPT} before anything has been executed.
+ */
+class FunctionCompiler implements ExprVisitor<Void>, StmtVisitor<Void> {
+
+    static final String INTERPRETER = "com/petar/plox3/parser/Interpreter";
+    static final String RUN_DESCRIPTOR =
+            "(L" + INTERPRETER + ";Ljava/util/List;)Ljava/lang/Object;";
+
+    static final String TOKEN = "com/petar/plox3/scanner/Token";
+    static final String OBJECT = "java/lang/Object";
+    static final String DOUBLE = "java/lang/Double";
+    static final String METHOD_HANDLE_DESCRIPTOR =
+            "Ljava/lang/invoke/MethodHandle;";
+
+    private static final String ENVIRONMENT = "com/petar/plox3/Environment";
+    private static final String PLOX_FUNCTION = "com/petar/plox3/PloxFunction";
+    private static final String FUNCTION = "com/petar/plox3/parser/Stmt$Function";
+    static final String PROPERTY_SITE =
+            "com/petar/plox3/PropertySite";
+    private static final String INSTANCE = "com/petar/plox3/PloxInstance";
+    private static final String COVERAGE_POINT =
+            "com/petar/plox3/coverage/CoveragePoint";
+    private static final String RUNTIME = "com/petar/plox3/jit/JitRuntime";
+    private static final String BUDGET = "com/petar/plox3/Budget";
+    private static final String BOOLEAN = "java/lang/Boolean";
+
+    private static final int INTERPRETER_SLOT = 0;
+    private static final int ARGUMENTS_SLOT = 1;
+    private static final int GLOBALS_SLOT = 2;
+    private static final int BUDGET_SLOT = 3;
+
+    // null for top level code, whose outermost names are globals
+    private final Stmt.Function function;
+    private final List<Statement> body;
+    private final boolean[] numericParams;
+    final ClassWriter classWriter;
+    Code code;
+    private int nextSlot = BUDGET_SLOT + 1;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+    // constant index of the invoker behind each S<i> field
+    private final List<Integer> callSites = new ArrayList<>();
+    // Variable, Assignment and declaring statement -> local
+    private final Map<Object, Local> resolved = new IdentityHashMap<>();
+    private final Map<Stmt.CountedFor, Statement> lowered =
+            new IdentityHashMap<>();
+    private final List<Local> locals = new ArrayList<>();
+    private final List<Local> params = new ArrayList<>();
+
+    FunctionCompiler(Stmt.Function function, boolean[] numericParams,
+                     String className) {
+        this.function = function;
+        this.body = function.body();
+        this.numericParams = numericParams;
+        this.classWriter = new ClassWriter(className);
+    }
+
+    // top level statements; run(Interpreter, List) ignores its list
+    FunctionCompiler(List<Statement> statements, String className) {
+        this.function = null;
+        this.body = statements;
+        this.numericParams = new boolean[0];
+        this.classWriter = new ClassWriter(className);
+    }
+
+    record Result(byte[] bytes, Object[] constants) {}
+
+    Result compile() {
+        new Resolver().resolveFunction();
+        inferNumbers();
+
+        code = new Code(classWriter, 2);
+        emitEntry();
+        for (Statement statement : body) {
+            statement.accept(this);
+        }
+        code.op(Code.ACONST_NULL, 1);
+        emitReturn();
+        classWriter.method(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC,
+                           "run", RUN_DESCRIPTOR, code);
+        emitClassInitializer();
+        return new Result(classWriter.toByteArray(), constants.toArray());
+    }
+
+    // ---- analysis ----
+
+    private static final class Local {
+        boolean numeric;
+        int slot = -1;
+        // every expression whose value is stored into the local
+        final List<Expression> values = new ArrayList<>();
+    }
+
+    private void inferNumbers() {
+        // optimistic fixed point: start from "numeric" and demote locals that
+        // are assigned anything that is not provably a number
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Local local : locals) {
+                if (!local.numeric) {
+                    continue;
+                }
+                for (Expression value : local.values) {
+                    if (!isNumber(value)) {
+                        local.numeric = false;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isNumber(Expression expression) {
+        if (expression instanceof Expr.Literal literal) {
+            return literal.value() instanceof Double;
+        }
+        if (expression instanceof Expr.Grouping grouping) {
+            return isNumber(grouping.expr());
+        }
+        if (expression instanceof Expr.Variable ||
+                expression instanceof Expr.Assignment) {
+            Local local = resolved.get(expression);
+            return local != null && local.numeric;
+        }
+        if (expression instanceof Expr.Unary unary) {
+            return unary.operator().type() == TokenType.MINUS;
+        }
+        if (expression instanceof Expr.Binary binary) {
+            return switch (binary.operator().type()) {
+                case MINUS, STAR, SLASH -> true;
+                case PLUS -> isNumber(binary.left()) && isNumber(binary.right());
+                default -> false;
+            };
+        }
+        return false;
+    }
+
+    private final class Resolver
+            implements ExprVisitor<Void>, StmtVisitor<Void> {
+
+        private final Deque<Map<Symbol, Local>> scopes = new ArrayDeque<>();
+
+        void resolveFunction() {
+            if (function == null) {
+                body.forEach(this::resolve);
+                return;
+            }
+            scopes.push(new HashMap<>());
+            for (int i = 0; i < function.params().size(); i++) {
+                Local param = declare(function.params().get(i));
+                param.numeric = numericParams[i];
+                params.add(param);
+            }
+            body.forEach(this::resolve);
+            scopes.pop();
+        }
+
+        // null for a global, declared outside of any block at top level
+        private Local declare(Token name) {
+            if (scopes.isEmpty()) {
+                return null;
+            }
+            Local local = new Local();
+            locals.add(local);
+            scopes.peek().put(name.symbol(), local);
+            return local;
+        }
+
+        private Local lookup(Token name) {
+            for (Map<Symbol, Local> scope : scopes) {
+                Local local = scope.get(name.symbol());
+                if (local != null) {
+                    return local;
+                }
+            }
+            return null;
+        }
+
+        private void resolve(Statement statement) {
+            statement.accept(this);
+        }
+
+        private void resolve(Expression expression) {
+            expression.accept(this);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            resolve(expr.left());
+            resolve(expr.right());
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary unary) {
+            resolve(unary.expr());
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping grouping) {
+            resolve(grouping.expr());
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal literal) {
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable variable) {
+            Local local = lookup(variable.name());
+            if (local != null) {
+                resolved.put(variable, local);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitAssignmentExpr(Expr.Assignment assignment) {
+            resolve(assignment.expression());
+            Local local = lookup(assignment.name());
+            if (local != null) {
+                resolved.put(assignment, local);
+                local.values.add(assignment.expression());
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical logical) {
+            resolve(logical.left());
+            resolve(logical.right());
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call call) {
+            resolve(call.callee());
+            call.arguments().forEach(this::resolve);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get get) {
+            resolve(get.object());
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set set) {
+            resolve(set.object());
+            resolve(set.value());
+            return null;
+        }
+
+        // methods reach this and super through their call environment,
+        // which compiled code does not have
+        @Override
+        public Void visitThisExpr(Expr.This thisExpr) {
+            throw new Unsupported("this", thisExpr.keyword());
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super superExpr) {
+            throw new Unsupported("super", superExpr.keyword());
+        }
+
+        @Override
+        public Void visitInlinedExpr(Expr.Inlined inlined) {
+            return visitCallExpr(inlined.call());
+        }
+
+        @Override
+        public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
+            resolve(printStatement.expression());
+            return null;
+        }
+
+        @Override
+        public Void visitExprStatement(Stmt.ExprStatement exprStatement) {
+            resolve(exprStatement.expression());
+            return null;
+        }
+
+        @Override
+        public Void visitVarStatement(Stmt.VarStatement varStatement) {
+            // the initializer still sees the outer binding
+            if (varStatement.expression() != null) {
+                resolve(varStatement.expression());
+            }
+            Local local = declare(varStatement.name());
+            if (local == null) {
+                return null;
+            }
+            local.numeric = varStatement.expression() != null;
+            if (varStatement.expression() != null) {
+                local.values.add(varStatement.expression());
+            }
+            resolved.put(varStatement, local);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
+            scopes.push(new HashMap<>());
+            blockStatement.statementList().forEach(this::resolve);
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitIfStatement(Stmt.IfStmt ifStmt) {
+            resolve(ifStmt.condition());
+            resolve(ifStmt.then());
+            if (ifStmt.elseStmt() != null) {
+                resolve(ifStmt.elseStmt());
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
+            resolve(whileStatement.condition());
+            resolve(whileStatement.body());
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStatement(Stmt.Function stmt) {
+            // the nested body runs in its own PloxFunction
+            Local local = declare(stmt.name());
+            if (local != null) {
+                local.numeric = false;
+                resolved.put(stmt, local);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitClassStatement(Stmt.Class classStatement) {
+            throw new Unsupported("class declaration",
+                                  classStatement.name());
+        }
+
+        @Override
+        public Void visitImportStatement(Stmt.Import importStatement) {
+            throw new Unsupported("import", importStatement.keyword());
+        }
+
+        // probes are reported by the interpreter
+        @Override
+        public Void visitProbedStatement(Stmt.Probed probed) {
+            throw new Unsupported("probe");
+        }
+
+        @Override
+        public Void visitCoveredStatement(Stmt.Covered covered) {
+            resolve(covered.statement());
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+            if (returnStatement.value() != null) {
+                resolve(returnStatement.value());
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitCountedForStatement(Stmt.CountedFor countedFor) {
+            Statement desugared = countedFor.desugar();
+            lowered.put(countedFor, desugared);
+            resolve(desugared);
+            return null;
+        }
+    }
+
+    // ---- code generation ----
+
+    private void emitEntry() {
+        for (int i = 0; i < params.size(); i++) {
+            if (params.get(i).numeric) {
+                Code.Label ok = code.newLabel();
+                argument(i);
+                code.typeOp(Code.INSTANCEOF, DOUBLE);
+                code.jump(Code.IFNE, ok);
+                code.getstatic(RUNTIME, "DEOPT", "Ljava/lang/Object;");
+                code.op(Code.ARETURN, -1);
+                code.mark(ok);
+            }
+        }
+        code.aload(INTERPRETER_SLOT);
+        code.invokevirtual(INTERPRETER, "getGlobals",
+                           "()L" + ENVIRONMENT + ";");
+        code.astore(GLOBALS_SLOT);
+        // a function entry counts against the budget like in PloxFunction;
+        // an exception leaves the depth raised, Budget.start() resets it
+        code.aload(INTERPRETER_SLOT);
+        code.invokevirtual(INTERPRETER, "budget", "()L" + BUDGET + ";");
+        code.astore(BUDGET_SLOT);
+        if (function != null) {
+            code.aload(BUDGET_SLOT);
+            token(function.name());
+            code.invokevirtual(BUDGET, "enter", "(L" + TOKEN + ";)V");
+        }
+        for (int i = 0; i < params.size(); i++) {
+            Local param = params.get(i);
+            allocate(param);
+            argument(i);
+            if (param.numeric) {
+                unbox();
+                code.dstore(param.slot);
+            } else {
+                code.astore(param.slot);
+            }
+        }
+    }
+
+    // returns the value on top of the stack
+    private void emitReturn() {
+        if (function != null) {
+            code.aload(BUDGET_SLOT);
+            code.invokevirtual(BUDGET, "exit", "()V");
+        }
+        code.op(Code.ARETURN, -1);
+    }
+
+    private void argument(int index) {
+        code.aload(ARGUMENTS_SLOT);
+        code.iconst(index);
+        code.invokeinterface("java/util/List", "get", "(I)Ljava/lang/Object;");
+    }
+
+    // ---- linkage, replaced for code compiled ahead of time ----
+
+    // constants come from the class data the class is defined with
+    void emitClassInitializer() {
+        classWriter.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC |
+                                  ClassWriter.ACC_FINAL, "K",
+                          "[Ljava/lang/Object;");
+        Code clinit = new Code(classWriter, 0);
+        clinit.invokestatic("java/lang/invoke/MethodHandles", "lookup",
+                            "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        clinit.ldcString("_");
+        clinit.ldcClass("[Ljava/lang/Object;");
+        clinit.invokestatic("java/lang/invoke/MethodHandles", "classData",
+                            "(Ljava/lang/invoke/MethodHandles$Lookup;" +
+                                    "Ljava/lang/String;Ljava/lang/Class;)" +
+                                    "Ljava/lang/Object;");
+        clinit.typeOp(Code.CHECKCAST, "[Ljava/lang/Object;");
+        clinit.putstatic(classWriter.name(), "K", "[Ljava/lang/Object;");
+        for (int i = 0; i < callSites.size(); i++) {
+            clinit.getstatic(classWriter.name(), "K", "[Ljava/lang/Object;");
+            clinit.iconst(callSites.get(i));
+            clinit.op(Code.AALOAD, -1);
+            clinit.typeOp(Code.CHECKCAST, "java/lang/invoke/MethodHandle");
+            clinit.putstatic(classWriter.name(), "S" + i,
+                             METHOD_HANDLE_DESCRIPTOR);
+        }
+        clinit.op(Code.RETURN, 0);
+        classWriter.method(ClassWriter.ACC_STATIC, "<clinit>", "()V", clinit);
+    }
+
+    // leaves a constant on the stack, typed Object
+    void constant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+        code.getstatic(classWriter.name(), "K", "[Ljava/lang/Object;");
+        code.iconst(index);
+        code.op(Code.AALOAD, -1);
+    }
+
+    // name of the static field holding the site's invoker
+    String callSite(Expr.Call call) {
+        String name = "S" + callSites.size();
+        classWriter.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC |
+                                  ClassWriter.ACC_FINAL, name,
+                          METHOD_HANDLE_DESCRIPTOR);
+        callSites.add(constants.size());
+        constants.add(new PloxCallSite(call.paren(), call.arguments().size())
+                              .invoker());
+        return name;
+    }
+
+    void propertySite(PropertySite site, Token name) {
+        constant(site);
+        code.typeOp(Code.CHECKCAST, PROPERTY_SITE);
+    }
+
+    void readGlobal(Token name) {
+        code.aload(GLOBALS_SLOT);
+        token(name);
+        code.invokevirtual(ENVIRONMENT, "get",
+                           "(L" + TOKEN + ";)Ljava/lang/Object;");
+    }
+
+    // leaves the assigned value on the stack
+    void assignGlobal(Token name, Expression value) {
+        code.aload(GLOBALS_SLOT);
+        token(name);
+        value(value);
+        code.op(Code.DUP_X2, 1);
+        code.invokevirtual(ENVIRONMENT, "assign",
+                           "(L" + TOKEN + ";Ljava/lang/Object;)V");
+    }
+
+    // binds the value on the stack; only top level code declares globals
+    void defineGlobal(Token name) {
+        throw new IllegalStateException("global in a function: " + name);
+    }
+
+    // leaves a new function for the declaration on the stack
+    void function(Stmt.Function declaration) {
+        code.typeOp(Code.NEW, PLOX_FUNCTION);
+        code.op(Code.DUP, 1);
+        constant(declaration);
+        code.typeOp(Code.CHECKCAST, FUNCTION);
+        code.invokespecial(PLOX_FUNCTION, "<init>", "(L" + FUNCTION + ";)V");
+    }
+
+    // ---- code generation helpers ----
+
+    private void allocate(Local local) {
+        if (local.slot < 0) {
+            local.slot = nextSlot;
+            nextSlot += local.numeric ? 2 : 1;
+        }
+    }
+
+    void token(Token token) {
+        constant(token);
+        code.typeOp(Code.CHECKCAST, TOKEN);
+    }
+
+    private void box() {
+        code.invokestatic(DOUBLE, "valueOf", "(D)Ljava/lang/Double;");
+    }
+
+    private void unbox() {
+        code.typeOp(Code.CHECKCAST, DOUBLE);
+        code.invokevirtual(DOUBLE, "doubleValue", "()D");
+    }
+
+    // leaves the value of the expression on the stack as an Object
+    void value(Expression expression) {
+        if (!(expression instanceof Expr.Literal) && isNumber(expression)) {
+            number(expression);
+            box();
+        } else {
+            expression.accept(this);
+        }
+    }
+
+    // leaves the value of a numeric expression on the stack as a double
+    private void number(Expression expression) {
+        if (expression instanceof Expr.Literal literal) {
+            code.dconst((Double) literal.value());
+        } else if (expression instanceof Expr.Grouping grouping) {
+            number(grouping.expr());
+        } else if (expression instanceof Expr.Variable) {
+            code.dload(resolved.get(expression).slot);
+        } else if (expression instanceof Expr.Assignment assignment) {
+            number(assignment.expression());
+            code.op(Code.DUP2, 2);
+            code.dstore(resolved.get(assignment).slot);
+        } else if (expression instanceof Expr.Unary unary) {
+            if (isNumber(unary.expr())) {
+                number(unary.expr());
+                code.op(Code.DNEG, 0);
+            } else {
+                generic(unary);
+                unbox();
+            }
+        } else if (expression instanceof Expr.Binary binary) {
+            if (!isNumber(binary.left()) || !isNumber(binary.right())) {
+                generic(binary);
+                unbox();
+                return;
+            }
+            number(binary.left());
+            number(binary.right());
+            switch (binary.operator().type()) {
+                case PLUS -> code.op(Code.DADD, -2);
+                case MINUS -> code.op(Code.DSUB, -2);
+                case STAR -> code.op(Code.DMUL, -2);
+                case SLASH -> {
+                    token(binary.operator());
+                    code.invokestatic(RUNTIME, "divide",
+                                      "(DDL" + TOKEN + ";)D");
+                }
+                default -> throw new IllegalStateException(
+                        "not numeric: " + binary.operator());
+            }
+        } else {
+            throw new IllegalStateException("not numeric: " + expression);
+        }
+    }
+
+    private void generic(Expr.Binary binary) {
+        code.aload(BUDGET_SLOT);
+        token(binary.operator());
+        value(binary.left());
+        value(binary.right());
+        code.invokestatic(INTERPRETER, "binary",
+                          "(L" + BUDGET + ";L" + TOKEN + ";" +
+                                  "Ljava/lang/Object;Ljava/lang/Object;)" +
+                                  "Ljava/lang/Object;");
+    }
+
+    private void generic(Expr.Unary unary) {
+        token(unary.operator());
+        value(unary.expr());
+        code.invokestatic(INTERPRETER, "unary",
+                          "(L" + TOKEN + ";Ljava/lang/Object;)" +
+                                  "Ljava/lang/Object;");
+    }
+
+    // jumps to target when the truthiness of the expression equals jumpIf,
+    // falls through otherwise
+    private void branch(Expression expression, boolean jumpIf,
+                        Code.Label target) {
+        if (expression instanceof Expr.Grouping grouping) {
+            branch(grouping.expr(), jumpIf, target);
+        } else if (expression instanceof Expr.Unary unary &&
+                unary.operator().type() == TokenType.BANG) {
+            branch(unary.expr(), !jumpIf, target);
+        } else if (expression instanceof Expr.Logical logical &&
+                logical.branch() == null) {
+            boolean or = logical.operator().type() == TokenType.OR;
+            if (or == jumpIf) {
+                branch(logical.left(), jumpIf, target);
+                branch(logical.right(), jumpIf, target);
+            } else {
+                Code.Label skip = code.newLabel();
+                branch(logical.left(), or, skip);
+                branch(logical.right(), jumpIf, target);
+                code.mark(skip);
+            }
+        } else if (expression instanceof Expr.Binary binary &&
+                isComparison(binary.operator().type()) &&
+                isNumber(binary.left()) && isNumber(binary.right())) {
+            number(binary.left());
+            number(binary.right());
+            // dcmpg yields 1 and dcmpl -1 for NaN, so NaN compares false
+            switch (binary.operator().type()) {
+                case LESS -> {
+                    code.op(Code.DCMPG, -3);
+                    code.jump(jumpIf ? Code.IFLT : Code.IFGE, target);
+                }
+                case LESS_EQUAL -> {
+                    code.op(Code.DCMPG, -3);
+                    code.jump(jumpIf ? Code.IFLE : Code.IFGT, target);
+                }
+                case GREATER -> {
+                    code.op(Code.DCMPL, -3);
+                    code.jump(jumpIf ? Code.IFGT : Code.IFLE, target);
+                }
+                default -> {
+                    code.op(Code.DCMPL, -3);
+                    code.jump(jumpIf ? Code.IFGE : Code.IFLT, target);
+                }
+            }
+        } else {
+            value(expression);
+            code.invokestatic(INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+            code.jump(jumpIf ? Code.IFNE : Code.IFEQ, target);
+        }
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.LESS || type == TokenType.LESS_EQUAL ||
+                type == TokenType.GREATER || type == TokenType.GREATER_EQUAL;
+    }
+
+    // materializes an expression that always yields a Boolean
+    private void bool(Expression expression) {
+        Code.Label isFalse = code.newLabel();
+        Code.Label end = code.newLabel();
+        branch(expression, false, isFalse);
+        code.getstatic(BOOLEAN, "TRUE", "Ljava/lang/Boolean;");
+        code.jump(Code.GOTO, end);
+        code.mark(isFalse);
+        code.getstatic(BOOLEAN, "FALSE", "Ljava/lang/Boolean;");
+        code.mark(end);
+    }
+
+    private void discard(Expression expression) {
+        if (isNumber(expression)) {
+            number(expression);
+            code.op(Code.POP2, -2);
+        } else {
+            value(expression);
+            code.op(Code.POP, -1);
+        }
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        TokenType type = expr.operator().type();
+        boolean numbers = isNumber(expr.left()) && isNumber(expr.right());
+        if (numbers && isComparison(type)) {
+            bool(expr);
+        } else if (numbers && (type == TokenType.EQUAL_EQUAL ||
+                type == TokenType.BANG_EQUAL)) {
+            number(expr.left());
+            number(expr.right());
+            code.invokestatic(RUNTIME, "numbersEqual", "(DD)Z");
+            if (type == TokenType.BANG_EQUAL) {
+                code.iconst(1);
+                code.op(0x82, -1); // ixor
+            }
+            code.invokestatic(BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;");
+        } else {
+            generic(expr);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary unary) {
+        if (unary.operator().type() == TokenType.BANG) {
+            bool(unary);
+        } else {
+            generic(unary);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping grouping) {
+        value(grouping.expr());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal literal) {
+        Object value = literal.value();
+        if (value == null) {
+            code.op(Code.ACONST_NULL, 1);
+        } else if (value instanceof Boolean bool) {
+            code.getstatic(BOOLEAN, bool ? "TRUE" : "FALSE",
+                           "Ljava/lang/Boolean;");
+        } else {
+            constant(value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable variable) {
+        Local local = resolved.get(variable);
+        if (local != null) {
+            code.aload(local.slot);
+        } else {
+            readGlobal(variable.name());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(Expr.Assignment assignment) {
+        Local local = resolved.get(assignment);
+        if (local != null) {
+            value(assignment.expression());
+            code.op(Code.DUP, 1);
+            code.astore(local.slot);
+        } else {
+            assignGlobal(assignment.name(), assignment.expression());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical logical) {
+        Code.Label shortCircuit = code.newLabel();
+        Code.Label end = code.newLabel();
+        value(logical.left());
+        code.op(Code.DUP, 1);
+        code.invokestatic(INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+        code.jump(logical.operator().type() == TokenType.OR ? Code.IFNE :
+                          Code.IFEQ, shortCircuit);
+        code.op(Code.POP, -1);
+        hit(logical.branch(), 1);
+        value(logical.right());
+        if (logical.branch() != null) {
+            code.jump(Code.GOTO, end);
+            code.mark(shortCircuit);
+            hit(logical.branch(), 0);
+        } else {
+            code.mark(shortCircuit);
+        }
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call call) {
+        // the site's invoker lives in a static final field, so it is a
+        // constant the JVM can inline through
+        code.getstatic(classWriter.name(), callSite(call),
+                       METHOD_HANDLE_DESCRIPTOR);
+        value(call.callee());
+        code.aload(INTERPRETER_SLOT);
+        code.iconst(call.arguments().size());
+        code.typeOp(Code.ANEWARRAY, OBJECT);
+        for (int i = 0; i < call.arguments().size(); i++) {
+            code.op(Code.DUP, 1);
+            code.iconst(i);
+            value(call.arguments().get(i));
+            code.op(Code.AASTORE, -3);
+        }
+        code.invokestatic("java/util/Arrays", "asList",
+                          "([Ljava/lang/Object;)Ljava/util/List;");
+        code.invokevirtual("java/lang/invoke/MethodHandle", "invokeExact",
+                           "(Ljava/lang/Object;L" + INTERPRETER +
+                                   ";Ljava/util/List;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get get) {
+        propertySite(get.site(), get.name());
+        value(get.object());
+        code.invokevirtual(PROPERTY_SITE, "get",
+                           "(Ljava/lang/Object;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set set) {
+        propertySite(set.site(), set.name());
+        code.op(Code.DUP, 1);
+        value(set.object());
+        constant("fields");
+        code.typeOp(Code.CHECKCAST, "java/lang/String");
+        code.invokevirtual(PROPERTY_SITE, "instance",
+                           "(Ljava/lang/Object;Ljava/lang/String;)L" +
+                                   INSTANCE + ";");
+        value(set.value());
+        code.op(Code.DUP_X2, 1);
+        code.invokevirtual(PROPERTY_SITE, "set",
+                           "(L" + INSTANCE + ";Ljava/lang/Object;)V");
+        return null;
+    }
+
+    // rejected by the resolver
+    @Override
+    public Void visitThisExpr(Expr.This thisExpr) {
+        throw new Unsupported("this", thisExpr.keyword());
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super superExpr) {
+        throw new Unsupported("super", superExpr.keyword());
+    }
+
+    // compiled code makes the call, whose site is as fast as the guard
+    @Override
+    public Void visitInlinedExpr(Expr.Inlined inlined) {
+        return visitCallExpr(inlined.call());
+    }
+
+    @Override
+    public Void visitClassStatement(Stmt.Class classStatement) {
+        throw new Unsupported("class declaration", classStatement.name());
+    }
+
+    @Override
+    public Void visitImportStatement(Stmt.Import importStatement) {
+        throw new Unsupported("import", importStatement.keyword());
+    }
+
+    @Override
+    public Void visitProbedStatement(Stmt.Probed probed) {
+        throw new Unsupported("probe");
+    }
+
+    @Override
+    public Void visitCoveredStatement(Stmt.Covered covered) {
+        if (!covered.point().isHit()) {
+            constant(covered.point());
+            code.typeOp(Code.CHECKCAST, COVERAGE_POINT);
+            code.invokevirtual(COVERAGE_POINT, "hit", "()V");
+        }
+        covered.statement().accept(this);
+        return null;
+    }
+
+    // points hit before compiling need no code
+    private void hit(CoveragePoint branch, int outcome) {
+        if (branch != null && !branch.isHit(outcome)) {
+            constant(branch);
+            code.typeOp(Code.CHECKCAST, COVERAGE_POINT);
+            code.iconst(outcome);
+            code.invokevirtual(COVERAGE_POINT, "hit", "(I)V");
+        }
+    }
+
+    @Override
+    public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
+        code.aload(INTERPRETER_SLOT);
+        value(printStatement.expression());
+        code.invokevirtual(INTERPRETER, "print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitExprStatement(Stmt.ExprStatement exprStatement) {
+        discard(exprStatement.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitVarStatement(Stmt.VarStatement varStatement) {
+        Local local = resolved.get(varStatement);
+        Expression initializer = varStatement.expression();
+        if (local == null) {
+            if (initializer == null) {
+                code.op(Code.ACONST_NULL, 1);
+            } else {
+                value(initializer);
+            }
+            defineGlobal(varStatement.name());
+            return null;
+        }
+        allocate(local);
+        if (initializer == null) {
+            code.op(Code.ACONST_NULL, 1);
+            code.astore(local.slot);
+        } else if (local.numeric) {
+            number(initializer);
+            code.dstore(local.slot);
+        } else {
+            value(initializer);
+            code.astore(local.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
+        for (Statement statement : blockStatement.statementList()) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(Stmt.IfStmt ifStmt) {
+        Code.Label otherwise = code.newLabel();
+        branch(ifStmt.condition(), false, otherwise);
+        hit(ifStmt.branch(), 0);
+        ifStmt.then().accept(this);
+        if (ifStmt.elseStmt() != null || ifStmt.branch() != null) {
+            Code.Label end = code.newLabel();
+            code.jump(Code.GOTO, end);
+            code.mark(otherwise);
+            hit(ifStmt.branch(), 1);
+            if (ifStmt.elseStmt() != null) {
+                ifStmt.elseStmt().accept(this);
+            }
+            code.mark(end);
+        } else {
+            code.mark(otherwise);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        Code.Label top = code.newLabel();
+        Code.Label end = code.newLabel();
+        code.mark(top);
+        branch(whileStatement.condition(), false, end);
+        whileStatement.body().accept(this);
+        Code.Label poll = code.newLabel();
+        code.aload(BUDGET_SLOT);
+        code.invokevirtual(BUDGET, "due", "()Z");
+        code.jump(Code.IFNE, poll);
+        code.jump(Code.GOTO, top);
+        code.mark(poll);
+        code.aload(BUDGET_SLOT);
+        token(whileStatement.keyword());
+        code.invokevirtual(BUDGET, "poll", "(L" + TOKEN + ";)V");
+        code.jump(Code.GOTO, top);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Stmt.Function stmt) {
+        Local local = resolved.get(stmt);
+        function(stmt);
+        if (local == null) {
+            defineGlobal(stmt.name());
+        } else {
+            allocate(local);
+            code.astore(local.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+        if (returnStatement.value() == null) {
+            code.op(Code.ACONST_NULL, 1);
+        } else {
+            value(returnStatement.value());
+        }
+        emitReturn();
+        return null;
+    }
+
+    @Override
+    public Void visitCountedForStatement(Stmt.CountedFor countedFor) {
+        lowered.get(countedFor).accept(this);
+        return null;
+    }
+}
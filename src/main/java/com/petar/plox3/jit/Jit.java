@@ -0,0 +1,90 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.PloxFunction;
+import com.petar.plox3.instrument.Instrumenter;
+import com.petar.plox3.parser.Interpreter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.SwitchPoint;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles hot functions to JVM bytecode on a background thread and loads
+ * them as hidden classes. Set {@code -Dplox3.jit.threshold=0} to disable.
+ */
+public final class Jit {
+
+    public static final int THRESHOLD =
+            Integer.getInteger("plox3.jit.threshold", 1000);
+
+    private static final MethodType RUN_TYPE =
+            MethodType.methodType(Object.class, Interpreter.class, List.class);
+    // what compiled code returns once a probe has been swapped in
+    private static final MethodHandle DEOPTIMIZE =
+            MethodHandles.dropArguments(
+                    MethodHandles.constant(Object.class, JitRuntime.DEOPT), 0,
+                    Interpreter.class, List.class);
+    private static final AtomicInteger classCounter = new AtomicInteger();
+    private static final ExecutorService compiler =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "plox3-jit");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private Jit() {
+    }
+
+    public static boolean isEnabled() {
+        return THRESHOLD > 0;
+    }
+
+    // numericParams[i] requests a guard that argument i is a number
+    public static void submit(PloxFunction function, boolean[] numericParams) {
+        compiler.execute(() -> {
+            MethodHandle handle;
+            try {
+                handle = compile(function, numericParams);
+            } catch (Unsupported | ReflectiveOperationException e) {
+                function.compilationFailed();
+                return;
+            }
+            function.install(handle);
+        });
+    }
+
+    public static Object invoke(MethodHandle compiled, Interpreter interpreter,
+                                List<Object> arguments) {
+        try {
+            return (Object) compiled.invokeExact(interpreter, arguments);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static MethodHandle compile(PloxFunction function, boolean[] numericParams)
+            throws ReflectiveOperationException {
+        // taken first, a probe attached while compiling also invalidates it
+        SwitchPoint instrumentation = Instrumenter.switchPoint();
+        String className = "com/petar/plox3/jit/Fn" +
+                classCounter.incrementAndGet();
+        FunctionCompiler.Result result =
+                new FunctionCompiler(function.declaration(), numericParams,
+                                     className).compile();
+        MethodHandles.Lookup lookup = MethodHandles.lookup()
+                                                   .defineHiddenClassWithClassData(
+                                                           result.bytes(),
+                                                           result.constants(),
+                                                           true);
+        MethodHandle run = lookup.findStatic(lookup.lookupClass(), "run",
+                                             RUN_TYPE);
+        return instrumentation.guardWithTest(run, DEOPTIMIZE);
+    }
+}
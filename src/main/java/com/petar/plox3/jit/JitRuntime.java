@@ -0,0 +1,30 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.scanner.Token;
+
+
+/**
+ * Helpers called from compiled code for everything that is not emitted
+ * inline.
+ */
+public final class JitRuntime {
+
+    // returned by compiled code whose entry guards failed
+    public static final Object DEOPT = new Object();
+
+    private JitRuntime() {
+    }
+
+    public static double divide(double left, double right, Token operator) {
+        if (right == 0) {
+            throw new RuntimeError(operator, "Division by zero");
+        }
+        return left / right;
+    }
+
+    // Double.equals semantics, as used by ==
+    public static boolean numbersEqual(double left, double right) {
+        return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+}
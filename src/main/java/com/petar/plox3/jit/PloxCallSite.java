@@ -0,0 +1,166 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.NativeError;
+import com.petar.plox3.PloxCallable;
+import com.petar.plox3.PloxFunction;
+import com.petar.plox3.PloxModule;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.scanner.Token;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inline cache for one call expression in compiled code, created when the
+ * code is compiled. Interpreted calls go through {@link Interpreter#call}
+ * instead, which takes far less of the Java stack per call. The target is
+ * a chain of identity guards, one per callee seen so far, each bound
+ * directly to that callee. A miss relinks the chain; past
+ * {@link #MAX_CALLEES} callees the site goes megamorphic and stays on the
+ * generic path. Calls to a function with compiled code go straight to the
+ * compiled method, so compiled callers holding the site's invoker as a
+ * constant can be inlined through. Memoized functions always go through
+ * {@link PloxFunction#call} so that their cache is consulted.
+ */
+public final class PloxCallSite extends MutableCallSite {
+
+    public static final MethodType TYPE =
+            MethodType.methodType(Object.class, Object.class,
+                                  Interpreter.class, List.class);
+
+    private static final int MAX_CALLEES = 4;
+
+    private static final MethodHandle LINK;
+    private static final MethodHandle GENERIC;
+    private static final MethodHandle SAME;
+    private static final MethodHandle IS_DEOPT;
+    private static final MethodHandle CALL;
+    private static final MethodHandle NATIVE_FAILED;
+    private static final MethodHandle IN;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            LINK = lookup.findVirtual(PloxCallSite.class, "link", TYPE);
+            GENERIC = lookup.findVirtual(PloxCallSite.class, "generic", TYPE);
+            SAME = lookup.findStatic(PloxCallSite.class, "same",
+                                     MethodType.methodType(boolean.class,
+                                                           Object.class,
+                                                           Object.class));
+            IS_DEOPT = MethodHandles.insertArguments(SAME, 1, JitRuntime.DEOPT);
+            NATIVE_FAILED = lookup.findVirtual(
+                    PloxCallSite.class, "nativeFailed",
+                    MethodType.methodType(Object.class, NativeError.class));
+            IN = lookup.findVirtual(Interpreter.class, "in",
+                                    MethodType.methodType(Interpreter.class,
+                                                          PloxModule.class));
+            CALL = lookup.findVirtual(PloxCallable.class, "call",
+                                      MethodType.methodType(Object.class,
+                                                            Interpreter.class,
+                                                            List.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Token paren;
+    private final int argumentCount;
+    private final MethodHandle invoker;
+    private final List<PloxCallable> callees = new ArrayList<>();
+    private boolean megamorphic = false;
+
+    public PloxCallSite(Token paren, int argumentCount) {
+        super(TYPE);
+        this.paren = paren;
+        this.argumentCount = argumentCount;
+        setTarget(LINK.bindTo(this));
+        this.invoker = dynamicInvoker();
+    }
+
+    // (Object callee, Interpreter, List arguments) -> Object
+    public MethodHandle invoker() {
+        return invoker;
+    }
+
+    private Object link(Object callee, Interpreter interpreter,
+                        List<Object> arguments) {
+        relink(callee);
+        return interpreter.call(callee, arguments, paren);
+    }
+
+    private Object generic(Object callee, Interpreter interpreter,
+                           List<Object> arguments) {
+        return interpreter.call(callee, arguments, paren);
+    }
+
+    private Object nativeFailed(NativeError error) {
+        throw new RuntimeError(paren, error.getMessage());
+    }
+
+    private static boolean same(Object left, Object right) {
+        return left == right;
+    }
+
+    private synchronized void relink(Object callee) {
+        if (megamorphic) {
+            return;
+        }
+        // bad callees and arity mismatches always take the generic path,
+        // which reports the error
+        if (callee instanceof PloxCallable callable &&
+                (callable.arity() == argumentCount ||
+                        callable.arity() == PloxCallable.VARIADIC) &&
+                !callees.contains(callable)) {
+            if (callees.size() == MAX_CALLEES) {
+                megamorphic = true;
+                setTarget(GENERIC.bindTo(this));
+                return;
+            }
+            callees.add(callable);
+        }
+        MethodHandle chain = LINK.bindTo(this);
+        for (PloxCallable known : callees) {
+            chain = MethodHandles.guardWithTest(
+                    MethodHandles.insertArguments(SAME, 1, known),
+                    MethodHandles.dropArguments(target(known), 0,
+                                                Object.class), chain);
+        }
+        setTarget(chain);
+    }
+
+    // (Interpreter, List) -> Object calling one known callee
+    private MethodHandle target(PloxCallable callee) {
+        MethodHandle call = CALL.bindTo(callee);
+        if (!(callee instanceof PloxFunction function)) {
+            return MethodHandles.catchException(call, NativeError.class,
+                                                NATIVE_FAILED.bindTo(this));
+        }
+        MethodHandle compiled = function.compiled();
+        MethodHandle target = call;
+        if (compiled != null && function.memo() == null) {
+            // over the globals of the function's module, as PloxFunction
+            // would run it
+            compiled = MethodHandles.filterArguments(
+                    compiled, 0,
+                    MethodHandles.insertArguments(IN, 1, function.module()));
+            // compiled(...) and redo the call interpreted if its guards fail
+            MethodHandle onResult = MethodHandles.guardWithTest(
+                    MethodHandles.dropArguments(IS_DEOPT, 1, Interpreter.class,
+                                                List.class),
+                    MethodHandles.dropArguments(call, 0, Object.class),
+                    MethodHandles.dropArguments(
+                            MethodHandles.identity(Object.class), 1,
+                            Interpreter.class, List.class));
+            target = MethodHandles.foldArguments(onResult, compiled);
+        }
+        // relink once the function is compiled or deoptimized
+        return function.linkage().guardWithTest(
+                target, MethodHandles.insertArguments(LINK.bindTo(this), 0,
+                                                      function));
+    }
+}
@@ -0,0 +1,169 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.PropertySite;
+import com.petar.plox3.parser.Expr;
+import com.petar.plox3.parser.Expression;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Token;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Compiles a function or a run of top level statements for {@link Aot}.
+ * The class must load without the objects the JIT passes as class data,
+ * so its static initializer rebuilds tokens and sites from their source
+ * positions, and literals become ldc constants. Globals are static fields
+ * of the script's globals class, and nested functions are classes of their
+ * own.
+ */
+final class ScriptCompiler extends FunctionCompiler {
+
+    private static final String RUNTIME = "com/petar/plox3/jit/AotRuntime";
+    private static final String CALL_SITE = "com/petar/plox3/jit/PloxCallSite";
+    private static final String CALLABLE = "com/petar/plox3/PloxCallable";
+
+    private final Aot aot;
+    private final Map<Token, String> tokens = new IdentityHashMap<>();
+    private final Map<PropertySite, String> propertySites =
+            new IdentityHashMap<>();
+    // emitted in creation order, so tokens are set before the sites
+    // built from them
+    private final List<Consumer<Code>> initializers = new ArrayList<>();
+    private int fieldCount = 0;
+
+    ScriptCompiler(Aot aot, Stmt.Function function, String className) {
+        super(function, new boolean[function.params().size()], className);
+        this.aot = aot;
+    }
+
+    ScriptCompiler(Aot aot, List<Statement> statements, String className) {
+        super(statements, className);
+        this.aot = aot;
+    }
+
+    @Override
+    void emitClassInitializer() {
+        Code clinit = new Code(classWriter, 0);
+        initializers.forEach(initializer -> initializer.accept(clinit));
+        clinit.op(Code.RETURN, 0);
+        classWriter.method(ClassWriter.ACC_STATIC, "<clinit>", "()V", clinit);
+    }
+
+    @Override
+    void constant(Object value) {
+        if (value instanceof String string) {
+            code.ldcString(string);
+        } else if (value instanceof Double number) {
+            code.dconst(number);
+            code.invokestatic(DOUBLE, "valueOf", "(D)Ljava/lang/Double;");
+        } else if (value instanceof Token token) {
+            code.getstatic(classWriter.name(), tokenField(token),
+                           "L" + TOKEN + ";");
+        } else {
+            // coverage and probes only exist in interpreted runs
+            throw new Unsupported(value.getClass().getSimpleName());
+        }
+    }
+
+    @Override
+    String callSite(Expr.Call call) {
+        String paren = tokenField(call.paren());
+        int arguments = call.arguments().size();
+        return field(METHOD_HANDLE_DESCRIPTOR, clinit -> {
+            clinit.typeOp(Code.NEW, CALL_SITE);
+            clinit.op(Code.DUP, 1);
+            clinit.getstatic(classWriter.name(), paren, "L" + TOKEN + ";");
+            clinit.iconst(arguments);
+            clinit.invokespecial(CALL_SITE, "<init>", "(L" + TOKEN + ";I)V");
+            clinit.invokevirtual(CALL_SITE, "invoker",
+                                 "()" + METHOD_HANDLE_DESCRIPTOR);
+        });
+    }
+
+    @Override
+    void propertySite(PropertySite site, Token name) {
+        String field = propertySites.get(site);
+        if (field == null) {
+            String token = tokenField(name);
+            field = field("L" + PROPERTY_SITE + ";", clinit -> {
+                clinit.typeOp(Code.NEW, PROPERTY_SITE);
+                clinit.op(Code.DUP, 1);
+                clinit.getstatic(classWriter.name(), token,
+                                 "L" + TOKEN + ";");
+                clinit.invokespecial(PROPERTY_SITE, "<init>",
+                                     "(L" + TOKEN + ";)V");
+            });
+            propertySites.put(site, field);
+        }
+        code.getstatic(classWriter.name(), field, "L" + PROPERTY_SITE + ";");
+    }
+
+    @Override
+    void readGlobal(Token name) {
+        code.getstatic(Aot.GLOBALS, aot.global(name), "L" + OBJECT + ";");
+        token(name);
+        code.invokestatic(RUNTIME, "defined",
+                          "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+    }
+
+    @Override
+    void assignGlobal(Token name, Expression value) {
+        // the value first, as in the interpreter
+        value(value);
+        code.op(Code.DUP, 1);
+        code.getstatic(Aot.GLOBALS, aot.global(name), "L" + OBJECT + ";");
+        token(name);
+        code.invokestatic(RUNTIME, "checkDefined",
+                          "(L" + OBJECT + ";L" + TOKEN + ";)V");
+        code.putstatic(Aot.GLOBALS, aot.global(name), "L" + OBJECT + ";");
+    }
+
+    @Override
+    void defineGlobal(Token name) {
+        code.putstatic(Aot.GLOBALS, aot.global(name), "L" + OBJECT + ";");
+    }
+
+    @Override
+    void function(Stmt.Function declaration) {
+        code.ldcClass(aot.function(declaration));
+        code.ldcString(declaration.name().lexeme());
+        code.iconst(declaration.params().size());
+        code.iconst(aot.isPure(declaration) ? 1 : 0);
+        code.invokestatic(RUNTIME, "function",
+                          "(Ljava/lang/Class;Ljava/lang/String;IZ)L" +
+                                  CALLABLE + ";");
+    }
+
+    private String tokenField(Token token) {
+        String field = tokens.get(token);
+        if (field == null) {
+            field = field("L" + TOKEN + ";", clinit -> {
+                clinit.ldcString(token.type().name());
+                clinit.ldcString(token.lexeme());
+                clinit.iconst(token.line());
+                clinit.invokestatic(RUNTIME, "token",
+                                    "(Ljava/lang/String;Ljava/lang/String;I)L" +
+                                            TOKEN + ";");
+            });
+            tokens.put(token, field);
+        }
+        return field;
+    }
+
+    // declares a static final field set by the given initializer code
+    private String field(String descriptor, Consumer<Code> value) {
+        String field = "F" + fieldCount++;
+        classWriter.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC |
+                                  ClassWriter.ACC_FINAL, field, descriptor);
+        initializers.add(clinit -> {
+            value.accept(clinit);
+            clinit.putstatic(classWriter.name(), field, descriptor);
+        });
+        return field;
+    }
+}
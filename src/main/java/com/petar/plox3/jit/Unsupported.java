@@ -0,0 +1,26 @@
+package com.petar.plox3.jit;
+
+import com.petar.plox3.scanner.Token;
+
+/**
+ * Thrown while compiling when a function uses something the compiler does
+ * not handle. The function then simply stays interpreted.
+ */
+class Unsupported extends RuntimeException {
+
+    // where in the source, if the construct itself is the problem
+    private final Token at;
+
+    Unsupported(String message) {
+        this(message, null);
+    }
+
+    Unsupported(String message, Token at) {
+        super(message, null, false, false);
+        this.at = at;
+    }
+
+    Token at() {
+        return at;
+    }
+}
@@ -0,0 +1,265 @@
+package com.petar.plox3.module;
+
+import com.petar.plox3.GlobalEnvironment;
+import com.petar.plox3.Plox3;
+import com.petar.plox3.PloxModule;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.Parser;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.ParallelScanner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * The modules of an interpreter and its forks, each created once per file
+ * however often it is imported. Loading a program follows its imports
+ * before it runs: the files a program imports are read and parsed in
+ * parallel, then the files those import, and so on. A file importing
+ * itself, directly or through others, is an error.
+ * <p>
+ * Parsed files are kept across interpreters by path and used again while
+ * the file's modification time stays the same. The time is read before
+ * the file, so a file changing while it is read is parsed again next time.
+ */
+public final class Modules {
+
+    private record Parsed(FileTime modified, List<Statement> statements,
+                          List<Plox3.CompileError> errors) {}
+
+    // an import in from, null for the program, of the file target, null if
+    // the path is malformed
+    private record Import(Stmt.Import statement, Path from, Path target) {}
+
+    // a file found by this load; failure is set if it could not be read
+    private record Source(Path path, Parsed parsed, List<Import> imports,
+                          IOException failure) {}
+
+    private static final ConcurrentMap<Path, Parsed> PARSED =
+            new ConcurrentHashMap<>();
+
+    private final Map<Path, PloxModule> loaded = new HashMap<>();
+    // syntax tree nodes compare by identity, parsed files may repeat imports
+    private final Map<Stmt.Import, PloxModule> imported =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+    // what every module's globals enclose, defined on the first load
+    private GlobalEnvironment natives;
+
+    // null unless a load of the program doing it succeeded
+    public PloxModule module(Stmt.Import statement) {
+        return imported.get(statement);
+    }
+
+    // finds the modules program, a file in directory, imports and reports
+    // their errors like those of the program; nothing is loaded if there
+    // are any
+    public synchronized void load(List<Statement> program, Path directory) {
+        List<Import> roots = imports(program, null, directory);
+        if (roots.isEmpty()) {
+            return;
+        }
+        Map<Path, Source> sources = new LinkedHashMap<>();
+        List<Import> pending = roots;
+        while (!pending.isEmpty()) {
+            Set<Path> wave = new LinkedHashSet<>();
+            for (Import next : pending) {
+                if (next.target() != null &&
+                        !loaded.containsKey(next.target()) &&
+                        !sources.containsKey(next.target())) {
+                    wave.add(next.target());
+                }
+            }
+            pending = new ArrayList<>();
+            for (Source source : read(wave)) {
+                sources.put(source.path(), source);
+                pending.addAll(source.imports());
+            }
+        }
+        if (!isValid(roots, sources)) {
+            return;
+        }
+        if (natives == null) {
+            natives = new GlobalEnvironment();
+            Interpreter.defineNatives(natives);
+        }
+        for (Source source : sources.values()) {
+            loaded.put(source.path(), new PloxModule(
+                    source.path(), source.parsed().statements(), natives));
+        }
+        List<Import> all = new ArrayList<>(roots);
+        sources.values().forEach(source -> all.addAll(source.imports()));
+        for (Import next : all) {
+            imported.put(next.statement(), loaded.get(next.target()));
+        }
+    }
+
+    // reports what is wrong with the files found, and cycles among them
+    private static boolean isValid(List<Import> roots,
+                                   Map<Path, Source> sources) {
+        boolean valid = true;
+        List<Import> all = new ArrayList<>(roots);
+        for (Source source : sources.values()) {
+            if (source.failure() == null) {
+                for (Plox3.CompileError error : source.parsed().errors()) {
+                    Plox3.error(source.path(), error);
+                    valid = false;
+                }
+                all.addAll(source.imports());
+            }
+        }
+        for (Import next : all) {
+            Source source = sources.get(next.target());
+            if (next.target() == null) {
+                report(next, "Malformed module path.");
+                valid = false;
+            } else if (source != null && source.failure() != null) {
+                report(next, source.failure() instanceof NoSuchFileException ?
+                        "Module not found." : "Cannot read module: " +
+                        source.failure().getMessage() + ".");
+                valid = false;
+            }
+        }
+        Set<Path> done = new HashSet<>();
+        for (Path path : sources.keySet()) {
+            valid &= isAcyclic(path, sources, new ArrayList<>(), done);
+        }
+        return valid;
+    }
+
+    // depth first from path, whose importers are on the path so far
+    private static boolean isAcyclic(Path path, Map<Path, Source> sources,
+                                     List<Path> importers, Set<Path> done) {
+        Source source = sources.get(path);
+        if (!done.add(path) || source.failure() != null) {
+            return true;
+        }
+        boolean acyclic = true;
+        importers.add(path);
+        for (Import next : source.imports()) {
+            int start = importers.indexOf(next.target());
+            if (start >= 0) {
+                List<Path> cycle = new ArrayList<>(
+                        importers.subList(start, importers.size()));
+                cycle.add(next.target());
+                report(next, "Import cycle: " + cycle.stream()
+                        .map(file -> file.getFileName().toString())
+                        .collect(Collectors.joining(" -> ")) + ".");
+                acyclic = false;
+            } else if (sources.containsKey(next.target())) {
+                acyclic &= isAcyclic(next.target(), sources, importers, done);
+            }
+        }
+        importers.remove(importers.size() - 1);
+        return acyclic;
+    }
+
+    private static void report(Import at, String message) {
+        if (at.from() == null) {
+            Plox3.error(at.statement().path(), message);
+        } else {
+            Plox3.error(at.from(), at.statement().path(), message);
+        }
+    }
+
+    private static List<Import> imports(List<Statement> statements,
+                                        Path file, Path directory) {
+        List<Import> imports = new ArrayList<>();
+        for (Statement statement : statements) {
+            if (statement instanceof Stmt.Covered covered) {
+                statement = covered.statement();
+            }
+            if (statement instanceof Stmt.Import found) {
+                Path target;
+                try {
+                    target = directory.resolve(found.location())
+                                      .toAbsolutePath().normalize();
+                } catch (InvalidPathException e) {
+                    target = null;
+                }
+                imports.add(new Import(found, file, target));
+            }
+        }
+        return imports;
+    }
+
+    private static List<Source> read(Collection<Path> paths) {
+        if (paths.size() == 1) {
+            return List.of(read(paths.iterator().next()));
+        }
+        List<Callable<Source>> tasks = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            tasks.add(() -> read(path));
+        }
+        List<Source> sources = new ArrayList<>(paths.size());
+        for (Future<Source> future : ForkJoinPool.commonPool()
+                                                 .invokeAll(tasks)) {
+            sources.add(join(future));
+        }
+        return sources;
+    }
+
+    private static Source read(Path path) {
+        Parsed parsed;
+        try {
+            FileTime modified = Files.getLastModifiedTime(path);
+            parsed = PARSED.get(path);
+            if (parsed == null || !parsed.modified().equals(modified)) {
+                String source = new String(Files.readAllBytes(path),
+                                           StandardCharsets.UTF_8);
+                parsed = parse(modified, source);
+                PARSED.put(path, parsed);
+            }
+        } catch (IOException e) {
+            return new Source(path, null, List.of(), e);
+        }
+        return new Source(path, parsed,
+                          imports(parsed.statements(), path, path.getParent()),
+                          null);
+    }
+
+    private static Parsed parse(FileTime modified, String source) {
+        List<Plox3.CompileError> errors = new ArrayList<>();
+        List<Statement> statements = Plox3.collectErrors(
+                () -> new Parser(new ParallelScanner(source).scanTokens())
+                        .parse(), errors);
+        return new Parsed(modified, statements, List.copyOf(errors));
+    }
+
+    private static Source join(Future<Source> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw (Error) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
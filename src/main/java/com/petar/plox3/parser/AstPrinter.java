@@ -47,6 +47,32 @@ public class AstPrinter implements ExprVisitor<String> {
         return null;
     }
 
+    @Override
+    public String visitGetExpr(Expr.Get get) {
+        return parenthesize("." + get.name().lexeme(), get.object());
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set set) {
+        return parenthesize("=." + set.name().lexeme(), set.object(),
+                            set.value());
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This thisExpr) {
+        return "this";
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super superExpr) {
+        return "super." + superExpr.method().lexeme();
+    }
+
+    @Override
+    public String visitInlinedExpr(Expr.Inlined inlined) {
+        return visitCallExpr(inlined.call());
+    }
+
     private String parenthesize(String name, Expression... expressions) {
         StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append("(").append(name);
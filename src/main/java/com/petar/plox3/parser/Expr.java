@@ -1,5 +1,7 @@
 package com.petar.plox3.parser;
 
+import com.petar.plox3.PropertySite;
+import com.petar.plox3.coverage.CoveragePoint;
 import com.petar.plox3.scanner.Token;
 
 import java.util.List;
@@ -23,7 +25,6 @@ public record Expr() {
 
     public record Call(Expression callee, Token paren,
                        List<Expression> arguments) implements Expression {
-
         @Override
         public <R> R accept(ExprVisitor<R> visitor) {
             return visitor.visitCallExpr(this);
@@ -60,8 +61,13 @@ public record Expr() {
         }
     }
 
-    public record Logical(Expression left, Token operator, Expression right)
-            implements Expression {
+    // branch is only set when collecting coverage
+    public record Logical(Expression left, Token operator, Expression right,
+                          CoveragePoint branch) implements Expression {
+
+        public Logical(Expression left, Token operator, Expression right) {
+            this(left, operator, right, null);
+        }
 
         @Override
         public <R> R accept(ExprVisitor<R> visitor) {
@@ -69,4 +75,52 @@ public record Expr() {
         }
     }
 
+    public record Get(Expression object, Token name, PropertySite site)
+            implements Expression {
+
+        public Get(Expression object, Token name) {
+            this(object, name, new PropertySite(name));
+        }
+
+        @Override
+        public <R> R accept(ExprVisitor<R> visitor) {
+            return visitor.visitGetExpr(this);
+        }
+    }
+
+    public record Set(Expression object, Token name, Expression value,
+                      PropertySite site) implements Expression {
+
+        public Set(Expression object, Token name, Expression value) {
+            this(object, name, value, new PropertySite(name));
+        }
+
+        @Override
+        public <R> R accept(ExprVisitor<R> visitor) {
+            return visitor.visitSetExpr(this);
+        }
+    }
+
+    public record This(Token keyword) implements Expression {
+        @Override
+        public <R> R accept(ExprVisitor<R> visitor) {
+            return visitor.visitThisExpr(this);
+        }
+    }
+
+    public record Super(Token keyword, Token method) implements Expression {
+        @Override
+        public <R> R accept(ExprVisitor<R> visitor) {
+            return visitor.visitSuperExpr(this);
+        }
+    }
+
+    // a call to the global function declared with the given name, whose
+    // body runs in place while the global still holds that function
+    public record Inlined(Call call, Token function) implements Expression {
+        @Override
+        public <R> R accept(ExprVisitor<R> visitor) {
+            return visitor.visitInlinedExpr(this);
+        }
+    }
 }
@@ -16,4 +16,14 @@ public interface ExprVisitor<R> {
     R visitLogicalExpr(Expr.Logical logical);
 
     R visitCallExpr(Expr.Call call);
+
+    R visitGetExpr(Expr.Get get);
+
+    R visitSetExpr(Expr.Set set);
+
+    R visitThisExpr(Expr.This thisExpr);
+
+    R visitSuperExpr(Expr.Super superExpr);
+
+    R visitInlinedExpr(Expr.Inlined inlined);
 }
@@ -0,0 +1,63 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.scanner.Token;
+
+import java.util.List;
+
+/**
+ * Struct-of-arrays encoding of a program. Node {@code n} is described by
+ * {@code kind[n]} and up to three operands {@code a[n]}, {@code b[n]},
+ * {@code c[n]} whose meaning depends on the kind. Operands are node indices,
+ * indices into {@link #tokens} or {@link #constants}, or offsets into
+ * {@link #lists}, where a list is stored as its length followed by its
+ * elements. Absent operands are {@link #NONE}.
+ */
+public final class FlatAst {
+
+    static final int NONE = -1;
+
+    // expressions
+    static final int LITERAL = 0;      // a: constant
+    static final int VARIABLE = 1;     // a: name token
+    static final int ASSIGNMENT = 2;   // a: name token, b: value
+    static final int BINARY = 3;       // a: operator token, b: left, c: right
+    static final int UNARY = 4;        // a: operator token, b: operand
+    static final int LOGICAL = 5;      // a: operator token, b: left, c: right
+    static final int CALL = 6;         // a: paren token, b: callee, c: args
+
+    // statements
+    static final int EXPR_STMT = 7;    // a: expression
+    static final int PRINT_STMT = 8;   // a: expression
+    static final int VAR_STMT = 9;     // a: name token, b: initializer
+    static final int BLOCK_STMT = 10;  // a: statements
+    static final int IF_STMT = 11;     // a: condition, b: then, c: else
+    static final int WHILE_STMT = 12;  // a: condition, b: body, c: keyword
+    static final int FUNCTION = 13;    // a: name token, b: params, c: body
+    static final int RETURN_STMT = 14; // a: value
+
+    final int[] kind;
+    final int[] a;
+    final int[] b;
+    final int[] c;
+    final int[] lists;
+    final Token[] tokens;
+    final Object[] constants;
+    // top level statements of the program
+    final int root;
+
+    FlatAst(int[] kind, int[] a, int[] b, int[] c, int[] lists, Token[] tokens,
+            Object[] constants, int root) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.lists = lists;
+        this.tokens = tokens;
+        this.constants = constants;
+        this.root = root;
+    }
+
+    public static FlatAst of(List<Statement> statements) {
+        return new FlatAstBuilder().build(statements);
+    }
+}
@@ -0,0 +1,264 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.Plox3;
+import com.petar.plox3.scanner.Token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lowers the record based tree produced by {@link Parser} into a
+ * {@link FlatAst}. Groupings carry no runtime behaviour and are dropped.
+ * Classes and imports have no flat encoding and are reported as errors.
+ */
+class FlatAstBuilder implements ExprVisitor<Integer>, StmtVisitor<Integer> {
+
+    private int[] kind = new int[64];
+    private int[] a = new int[64];
+    private int[] b = new int[64];
+    private int[] c = new int[64];
+    private int size = 0;
+    private int[] lists = new int[64];
+    private int listsSize = 0;
+    private final List<Token> tokens = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+
+    FlatAst build(List<Statement> statements) {
+        int root = statementList(statements);
+        return new FlatAst(Arrays.copyOf(kind, size), Arrays.copyOf(a, size),
+                           Arrays.copyOf(b, size), Arrays.copyOf(c, size),
+                           Arrays.copyOf(lists, listsSize),
+                           tokens.toArray(new Token[0]), constants.toArray(),
+                           root);
+    }
+
+    private int node(int nodeKind, int first, int second, int third) {
+        if (size == kind.length) {
+            int capacity = size * 2;
+            kind = Arrays.copyOf(kind, capacity);
+            a = Arrays.copyOf(a, capacity);
+            b = Arrays.copyOf(b, capacity);
+            c = Arrays.copyOf(c, capacity);
+        }
+        kind[size] = nodeKind;
+        a[size] = first;
+        b[size] = second;
+        c[size] = third;
+        return size++;
+    }
+
+    private int token(Token token) {
+        tokens.add(token);
+        return tokens.size() - 1;
+    }
+
+    private int list(int[] elements) {
+        while (listsSize + elements.length + 1 > lists.length) {
+            lists = Arrays.copyOf(lists, lists.length * 2);
+        }
+        int offset = listsSize;
+        lists[listsSize++] = elements.length;
+        System.arraycopy(elements, 0, lists, listsSize, elements.length);
+        listsSize += elements.length;
+        return offset;
+    }
+
+    private int statementList(List<Statement> statements) {
+        int[] elements = new int[statements.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = statements.get(i).accept(this);
+        }
+        return list(elements);
+    }
+
+    private int optional(Expression expression) {
+        return expression == null ? FlatAst.NONE : expression.accept(this);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        int operator = token(expr.operator());
+        int left = expr.left().accept(this);
+        int right = expr.right().accept(this);
+        return node(FlatAst.BINARY, operator, left, right);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary unary) {
+        int operator = token(unary.operator());
+        return node(FlatAst.UNARY, operator, unary.expr().accept(this),
+                    FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping grouping) {
+        return grouping.expr().accept(this);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal literal) {
+        constants.add(literal.value());
+        return node(FlatAst.LITERAL, constants.size() - 1, FlatAst.NONE,
+                    FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable variable) {
+        return node(FlatAst.VARIABLE, token(variable.name()), FlatAst.NONE,
+                    FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitAssignmentExpr(Expr.Assignment assignment) {
+        int name = token(assignment.name());
+        return node(FlatAst.ASSIGNMENT, name,
+                    assignment.expression().accept(this), FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical logical) {
+        int operator = token(logical.operator());
+        int left = logical.left().accept(this);
+        int right = logical.right().accept(this);
+        return node(FlatAst.LOGICAL, operator, left, right);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call call) {
+        int paren = token(call.paren());
+        int callee = call.callee().accept(this);
+        int[] args = new int[call.arguments().size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = call.arguments().get(i).accept(this);
+        }
+        return node(FlatAst.CALL, paren, callee, list(args));
+    }
+
+    @Override
+    public Integer visitPrintStatement(Stmt.PrintStatement printStatement) {
+        return node(FlatAst.PRINT_STMT,
+                    printStatement.expression().accept(this), FlatAst.NONE,
+                    FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitExprStatement(Stmt.ExprStatement exprStatement) {
+        return node(FlatAst.EXPR_STMT, exprStatement.expression().accept(this),
+                    FlatAst.NONE, FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitVarStatement(Stmt.VarStatement varStatement) {
+        int name = token(varStatement.name());
+        return node(FlatAst.VAR_STMT, name,
+                    optional(varStatement.expression()), FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitBlockStatement(Stmt.BlockStatement blockStatement) {
+        return node(FlatAst.BLOCK_STMT,
+                    statementList(blockStatement.statementList()),
+                    FlatAst.NONE, FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitIfStatement(Stmt.IfStmt ifStmt) {
+        int condition = ifStmt.condition().accept(this);
+        int then = ifStmt.then().accept(this);
+        int elseStmt = ifStmt.elseStmt() == null ? FlatAst.NONE :
+                ifStmt.elseStmt().accept(this);
+        return node(FlatAst.IF_STMT, condition, then, elseStmt);
+    }
+
+    @Override
+    public Integer visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        int keyword = token(whileStatement.keyword());
+        int condition = whileStatement.condition().accept(this);
+        int body = whileStatement.body().accept(this);
+        return node(FlatAst.WHILE_STMT, condition, body, keyword);
+    }
+
+    @Override
+    public Integer visitFunctionStatement(Stmt.Function function) {
+        int name = token(function.name());
+        int[] params = new int[function.params().size()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = token(function.params().get(i));
+        }
+        int paramList = list(params);
+        return node(FlatAst.FUNCTION, name, paramList,
+                    statementList(function.body()));
+    }
+
+    @Override
+    public Integer visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+        return node(FlatAst.RETURN_STMT, optional(returnStatement.value()),
+                    FlatAst.NONE, FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitCountedForStatement(Stmt.CountedFor countedFor) {
+        return countedFor.desugar().accept(this);
+    }
+
+    private int unsupported(Token token) {
+        return unsupported(token, "Classes");
+    }
+
+    // what is the plural of the construct, as in "Classes"
+    private int unsupported(Token token, String what) {
+        Plox3.error(token, what + " are not supported by --flat.");
+        constants.add(null);
+        return node(FlatAst.LITERAL, constants.size() - 1, FlatAst.NONE,
+                    FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get get) {
+        return unsupported(get.name());
+    }
+
+    @Override
+    public Integer visitSetExpr(Expr.Set set) {
+        return unsupported(set.name());
+    }
+
+    @Override
+    public Integer visitThisExpr(Expr.This thisExpr) {
+        return unsupported(thisExpr.keyword());
+    }
+
+    @Override
+    public Integer visitSuperExpr(Expr.Super superExpr) {
+        return unsupported(superExpr.keyword());
+    }
+
+    @Override
+    public Integer visitInlinedExpr(Expr.Inlined inlined) {
+        return visitCallExpr(inlined.call());
+    }
+
+    @Override
+    public Integer visitClassStatement(Stmt.Class classStatement) {
+        return node(FlatAst.EXPR_STMT, unsupported(classStatement.name()),
+                    FlatAst.NONE, FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitImportStatement(Stmt.Import importStatement) {
+        return node(FlatAst.EXPR_STMT, unsupported(importStatement.keyword(),
+                                                   "Imports"),
+                    FlatAst.NONE, FlatAst.NONE);
+    }
+
+    @Override
+    public Integer visitProbedStatement(Stmt.Probed probed) {
+        return probed.statement().accept(this);
+    }
+
+    @Override
+    public Integer visitCoveredStatement(Stmt.Covered covered) {
+        return covered.statement().accept(this);
+    }
+}
@@ -0,0 +1,219 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.Budget;
+import com.petar.plox3.Environment;
+import com.petar.plox3.Metrics;
+import com.petar.plox3.Plox3;
+import com.petar.plox3.PloxCallable;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates a {@link FlatAst} by walking node indices. Values, globals and
+ * natives are those of the wrapped {@link Interpreter}, so both evaluators
+ * share the same semantics.
+ */
+public class FlatInterpreter {
+
+    private final Interpreter interpreter;
+    private Environment environment;
+
+    public FlatInterpreter(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.environment = interpreter.getGlobals();
+    }
+
+    public void interpret(FlatAst ast) {
+        interpreter.budget().start();
+        long start = System.nanoTime();
+        try {
+            executeList(ast, ast.root);
+        } catch (RuntimeError error) {
+            interpreter.metrics().runtimeError();
+            Plox3.runtimeError(error, interpreter.errorOutput());
+        } finally {
+            interpreter.finish(start);
+        }
+    }
+
+    private void executeList(FlatAst ast, int list) {
+        int[] lists = ast.lists;
+        int end = list + 1 + lists[list];
+        for (int i = list + 1; i < end; i++) {
+            execute(ast, lists[i]);
+        }
+    }
+
+    private void executeBlock(FlatAst ast, int list, Environment environment) {
+        Environment previous = this.environment;
+        try {
+            this.environment = environment;
+            executeList(ast, list);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    private void execute(FlatAst ast, int node) {
+        interpreter.counts().statement();
+        switch (ast.kind[node]) {
+            case FlatAst.EXPR_STMT -> evaluate(ast, ast.a[node]);
+            case FlatAst.PRINT_STMT ->
+                    interpreter.print(evaluate(ast, ast.a[node]));
+            case FlatAst.VAR_STMT -> {
+                int initializer = ast.b[node];
+                Object value = initializer == FlatAst.NONE ? null :
+                        evaluate(ast, initializer);
+                environment.define(ast.tokens[ast.a[node]].symbol(), value);
+            }
+            case FlatAst.BLOCK_STMT -> {
+                interpreter.counts().frame();
+                Budget budget = interpreter.budget();
+                budget.charge(Budget.FRAME_BYTES);
+                try {
+                    executeBlock(ast, ast.a[node],
+                                 new Environment(environment));
+                } finally {
+                    budget.release(Budget.FRAME_BYTES);
+                }
+            }
+            case FlatAst.IF_STMT -> {
+                if (Interpreter.isTruthy(evaluate(ast, ast.a[node]))) {
+                    execute(ast, ast.b[node]);
+                } else if (ast.c[node] != FlatAst.NONE) {
+                    execute(ast, ast.c[node]);
+                }
+            }
+            case FlatAst.WHILE_STMT -> {
+                int condition = ast.a[node];
+                int body = ast.b[node];
+                Budget budget = interpreter.budget();
+                while (Interpreter.isTruthy(evaluate(ast, condition))) {
+                    execute(ast, body);
+                    if (budget.due()) {
+                        budget.poll(ast.tokens[ast.c[node]]);
+                    }
+                }
+            }
+            case FlatAst.FUNCTION -> {
+                Token name = ast.tokens[ast.a[node]];
+                interpreter.budget().allocate(name, Budget.FUNCTION_BYTES);
+                environment.define(name.symbol(),
+                                   new FlatFunction(ast, node));
+            }
+            case FlatAst.RETURN_STMT -> {
+                int value = ast.a[node];
+                throw new Return(value == FlatAst.NONE ? null :
+                                         evaluate(ast, value));
+            }
+            default -> throw new IllegalStateException(
+                    "not a statement: " + ast.kind[node]);
+        }
+    }
+
+    private Object evaluate(FlatAst ast, int node) {
+        switch (ast.kind[node]) {
+            case FlatAst.LITERAL -> {
+                return ast.constants[ast.a[node]];
+            }
+            case FlatAst.VARIABLE -> {
+                return environment.get(ast.tokens[ast.a[node]]);
+            }
+            case FlatAst.ASSIGNMENT -> {
+                Object value = evaluate(ast, ast.b[node]);
+                environment.assign(ast.tokens[ast.a[node]], value);
+                return value;
+            }
+            case FlatAst.BINARY -> {
+                Object left = evaluate(ast, ast.b[node]);
+                Object right = evaluate(ast, ast.c[node]);
+                return Interpreter.binary(interpreter.budget(),
+                                          ast.tokens[ast.a[node]], left, right);
+            }
+            case FlatAst.UNARY -> {
+                return Interpreter.unary(ast.tokens[ast.a[node]],
+                                         evaluate(ast, ast.b[node]));
+            }
+            case FlatAst.LOGICAL -> {
+                Object left = evaluate(ast, ast.b[node]);
+                boolean or = ast.tokens[ast.a[node]].type() == TokenType.OR;
+                if (or == Interpreter.isTruthy(left)) {
+                    return left;
+                }
+                return evaluate(ast, ast.c[node]);
+            }
+            case FlatAst.CALL -> {
+                return call(ast, node);
+            }
+            default -> throw new IllegalStateException(
+                    "not an expression: " + ast.kind[node]);
+        }
+    }
+
+    private Object call(FlatAst ast, int node) {
+        Object callee = evaluate(ast, ast.b[node]);
+        int[] lists = ast.lists;
+        int argList = ast.c[node];
+        List<Object> args = new ArrayList<>(lists[argList]);
+        for (int i = 1; i <= lists[argList]; i++) {
+            args.add(evaluate(ast, lists[argList + i]));
+        }
+
+        return interpreter.call(callee, args, ast.tokens[ast.a[node]]);
+    }
+
+    private class FlatFunction implements PloxCallable {
+
+        private final FlatAst ast;
+        private final int node;
+
+        FlatFunction(FlatAst ast, int node) {
+            this.ast = ast;
+            this.node = node;
+        }
+
+        @Override
+        public int arity() {
+            return ast.lists[ast.b[node]];
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            if (interpreter != FlatInterpreter.this.interpreter) {
+                // called from another task, which needs its own state
+                return new FlatInterpreter(interpreter).new FlatFunction(
+                        ast, node).call(interpreter, arguments);
+            }
+            Environment frame = new Environment(FlatInterpreter.this.interpreter
+                                                        .getGlobals());
+            Metrics.Counts counts = interpreter.counts();
+            counts.call();
+            counts.frame();
+            int params = ast.b[node];
+            for (int i = 0; i < arguments.size(); i++) {
+                frame.define(ast.tokens[ast.lists[params + 1 + i]].symbol(),
+                             arguments.get(i));
+            }
+            Budget budget = interpreter.budget();
+            budget.allocate(ast.tokens[ast.a[node]], Budget.FRAME_BYTES);
+            budget.enter(ast.tokens[ast.a[node]]);
+            try {
+                executeBlock(ast, ast.c[node], frame);
+            } catch (Return returned) {
+                return returned.getValue();
+            } finally {
+                budget.exit();
+                budget.release(Budget.FRAME_BYTES);
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + ast.tokens[ast.a[node]].lexeme() + '>';
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.Plox3;
+import com.petar.plox3.scanner.Scanner;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a program parsed while its source is edited, for editors and other
+ * tools. The source is split into segments, one per top level
+ * declaration, each holding the tokens it was parsed from. An edit
+ * rescans from the segment before the one it touches until the scanner,
+ * between tokens, reaches the unchanged start of a later segment. It then
+ * parses declarations until one ends where an old segment starts, and
+ * keeps every other segment with its statement as it was.
+ * <p>
+ * A declaration depends on at most the first token after it, which is why
+ * rescanning starts a segment early. An edit that adds or removes lines
+ * leaves the segments below it as they were, with how far they have moved;
+ * {@link #lines()} and {@link #errors()} add that to what they report, but
+ * the tokens in their statements keep the lines they were scanned on.
+ * Inlining needs the whole program, so the statements are never inlined.
+ */
+public final class IncrementalParser {
+
+    private String source;
+    private int lineCount;
+    private List<Segment> segments = new ArrayList<>();
+    // built on demand after each edit
+    private List<Statement> statements;
+    private Map<Statement, Integer> lines;
+
+    public IncrementalParser(String source) {
+        this.source = source;
+        lineCount = 1 + newlines(source, 0, source.length());
+        reparse(0, 0, 1, 0, 0, 0);
+    }
+
+    public String source() {
+        return source;
+    }
+
+    // replaces deleted characters at offset with inserted
+    public void edit(int offset, int deleted, String inserted) {
+        if (offset < 0 || deleted < 0 || offset + deleted > source.length()) {
+            throw new IndexOutOfBoundsException(
+                    "Edit at %d of %d characters in %d".formatted(
+                            offset, deleted, source.length()));
+        }
+        int lineDelta = newlines(inserted, 0, inserted.length()) -
+                newlines(source, offset, offset + deleted);
+        source = source.substring(0, offset) + inserted +
+                source.substring(offset + deleted);
+        lineCount += lineDelta;
+        int first = Math.max(0, lastStartingBefore(offset) - 1);
+        int start = first == 0 ? 0 : segments.get(first).start;
+        int line = first == 0 ? 1 : segments.get(first).line;
+        reparse(first, start, line, offset + inserted.length(),
+                inserted.length() - deleted, lineDelta);
+        statements = null;
+        lines = null;
+    }
+
+    // the top level statements, null for those that failed to parse; the
+    // tokens of a statement below an edit that added or removed lines are
+    // still on the lines they were scanned on, so take where it is now
+    // from lines()
+    public List<Statement> statements() {
+        if (statements == null) {
+            statements = new ArrayList<>(segments.size());
+            for (Segment segment : segments) {
+                if (!segment.tokens.isEmpty()) {
+                    statements.add(segment.statement);
+                }
+            }
+        }
+        return statements;
+    }
+
+    // the line each declaration starts on now, as for Parser
+    public Map<Statement, Integer> lines() {
+        if (lines == null) {
+            lines = new IdentityHashMap<>();
+            for (Segment segment : segments) {
+                segment.lines.forEach((statement, line) -> lines.put(
+                        statement, line + segment.lineShift));
+            }
+        }
+        return lines;
+    }
+
+    // scanning and parsing errors in the order scanning the whole source
+    // and then parsing it reports them
+    public List<Plox3.CompileError> errors() {
+        List<Plox3.CompileError> errors = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (Scanner.Problem problem : segment.problems) {
+                errors.add(new Plox3.CompileError(
+                        problem.line() + segment.lineShift, "",
+                        problem.message()));
+            }
+        }
+        for (Segment segment : segments) {
+            for (Plox3.CompileError error : segment.errors) {
+                errors.add(new Plox3.CompileError(
+                        error.line() + segment.lineShift, error.where(),
+                        error.message()));
+            }
+        }
+        return errors;
+    }
+
+    // rescans from start, on line, the text of the segments from first on,
+    // where the segments after an edit ending at editEnd have moved by
+    // charDelta characters and lineDelta lines
+    private void reparse(int first, int start, int line, int editEnd,
+                         int charDelta, int lineDelta) {
+        List<Scanner.Problem> problems = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        Scanner scanner = new Scanner(source, start, line, problems);
+        List<Token> window = scanner.scanUntil(
+                position -> position >= editEnd &&
+                        segmentAt(position - charDelta) >= 0, offsets);
+        int tail = scanner.position() >= editEnd ?
+                segmentAt(scanner.position() - charDelta) : -1;
+        if (tail < 0) {
+            tail = segments.size();
+        }
+        Tokens tokens = new Tokens(window, offsets,
+                                   segments.subList(tail, segments.size()),
+                                   charDelta, lineDelta,
+                                   new Token(TokenType.EOF, "", null,
+                                             lineCount));
+        List<Segment> parsed = new ArrayList<>();
+        int position = 0;
+        int kept;
+        while (true) {
+            int old = tokens.segmentAt(position);
+            if (old >= 0) {
+                kept = tail + old;
+                break;
+            }
+            if (tokens.get(position).type() == TokenType.EOF) {
+                kept = segments.size();
+                break;
+            }
+            Parser parser = new Parser(tokens, position);
+            List<Plox3.CompileError> errors = new ArrayList<>();
+            Statement statement =
+                    Plox3.collectErrors(parser::nextDeclaration, errors);
+            int end = parser.position();
+            int segmentStart = parsed.isEmpty() ? start :
+                    tokens.offset(position);
+            // a string token is on the line it ends on
+            Token firstToken = tokens.get(position);
+            int segmentLine = parsed.isEmpty() ? line : firstToken.line() -
+                    newlines(firstToken.lexeme(), 0,
+                             firstToken.lexeme().length());
+            List<Token> declared = new ArrayList<>(end - position);
+            int[] relative = new int[end - position];
+            for (int i = 0; i < relative.length; i++) {
+                declared.add(tokens.get(position + i));
+                relative[i] = tokens.offset(position + i) - segmentStart;
+            }
+            parsed.add(new Segment(declared, relative, statement,
+                                   parser.lines(), errors, segmentStart,
+                                   segmentLine));
+            position = end;
+        }
+        // old segments taken into new declarations keep their scanning
+        // errors, their text was not scanned again
+        for (Segment segment : segments.subList(tail, kept)) {
+            for (Scanner.Problem problem : segment.problems) {
+                problems.add(new Scanner.Problem(
+                        problem.line() + segment.lineShift + lineDelta,
+                        segment.start + charDelta + problem.offset(),
+                        problem.message()));
+            }
+        }
+        if (parsed.isEmpty() && !problems.isEmpty()) {
+            parsed.add(new Segment(List.of(), new int[0], null, Map.of(),
+                                   List.of(), start, line));
+        }
+        for (Scanner.Problem problem : problems) {
+            int owner = 0;
+            while (owner + 1 < parsed.size() &&
+                    parsed.get(owner + 1).start <= problem.offset()) {
+                owner++;
+            }
+            Segment segment = parsed.get(owner);
+            segment.problems.add(new Scanner.Problem(
+                    problem.line(), problem.offset() - segment.start,
+                    problem.message()));
+        }
+        List<Segment> after = segments.subList(kept, segments.size());
+        for (Segment segment : after) {
+            segment.start += charDelta;
+            segment.line += lineDelta;
+            segment.lineShift += lineDelta;
+        }
+        List<Segment> result = new ArrayList<>(
+                first + parsed.size() + after.size());
+        result.addAll(segments.subList(0, first));
+        result.addAll(parsed);
+        result.addAll(after);
+        segments = result;
+    }
+
+    // the index of the segment starting at offset, or -1
+    private int segmentAt(int offset) {
+        int index = lastStartingBefore(offset + 1);
+        return index >= 0 && segments.get(index).start == offset ? index : -1;
+    }
+
+    // the index of the last segment starting before offset, or -1
+    private int lastStartingBefore(int offset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (segments.get(middle).start < offset) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    private static int newlines(String text, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A top level declaration with the tokens it was parsed from and the
+     * errors found in its text, which runs up to the start of the next.
+     */
+    private static final class Segment {
+
+        private final List<Token> tokens;
+        // where each token starts, from the start of the segment
+        private final int[] offsets;
+        private final Statement statement;
+        private final Map<Statement, Integer> lines;
+        private final List<Plox3.CompileError> errors;
+        // offsets from the start of the segment
+        private final List<Scanner.Problem> problems = new ArrayList<>();
+        // where scanning the segment starts, and on which line
+        private int start;
+        private int line;
+        // lines the tokens, statement and errors are behind by
+        private int lineShift = 0;
+
+        Segment(List<Token> tokens, int[] offsets, Statement statement,
+                Map<Statement, Integer> lines,
+                List<Plox3.CompileError> errors, int start, int line) {
+            this.tokens = tokens;
+            this.offsets = offsets;
+            this.statement = statement;
+            this.lines = lines;
+            this.errors = errors;
+            this.start = start;
+            this.line = line;
+        }
+    }
+
+    private static Token moved(Token token, int lines) {
+        return lines == 0 ? token : new Token(token.type(), token.lexeme(),
+                                              token.literal(),
+                                              token.line() + lines);
+    }
+
+    /**
+     * The rescanned tokens, then those of the old segments after them on
+     * their new lines, then EOF. Old segments are added as the parser
+     * reaches them, which is rarely further than the first.
+     */
+    private static final class Tokens extends AbstractList<Token> {
+
+        private final List<Token> tokens;
+        // where each token starts in the edited source
+        private final List<Integer> offsets;
+        private final List<Segment> tail;
+        private final int charDelta;
+        private final int lineDelta;
+        private final Token eof;
+        // the index of the first token of each old segment added so far
+        private final List<Integer> starts = new ArrayList<>();
+
+        Tokens(List<Token> tokens, List<Integer> offsets, List<Segment> tail,
+               int charDelta, int lineDelta, Token eof) {
+            this.tokens = tokens;
+            this.offsets = offsets;
+            this.tail = tail;
+            this.charDelta = charDelta;
+            this.lineDelta = lineDelta;
+            this.eof = eof;
+        }
+
+        @Override
+        public Token get(int index) {
+            reach(index);
+            return index < tokens.size() ? tokens.get(index) : eof;
+        }
+
+        // adds every old segment, which the parser never asks for
+        @Override
+        public int size() {
+            reach(Integer.MAX_VALUE - 1);
+            return tokens.size() + 1;
+        }
+
+        int offset(int index) {
+            reach(index);
+            return offsets.get(index);
+        }
+
+        // the index in tail of the first old segment starting at index, or
+        // -1
+        int segmentAt(int index) {
+            reach(index);
+            for (int i = starts.size() - 1; i >= 0; i--) {
+                if (starts.get(i) < index) {
+                    break;
+                }
+                if (starts.get(i) == index &&
+                        (i == 0 || starts.get(i - 1) < index)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // adds old segments until the token at index is there
+        private void reach(int index) {
+            while (index >= tokens.size() && starts.size() < tail.size()) {
+                Segment segment = tail.get(starts.size());
+                starts.add(tokens.size());
+                int shift = segment.lineShift + lineDelta;
+                for (int i = 0; i < segment.tokens.size(); i++) {
+                    tokens.add(moved(segment.tokens.get(i), shift));
+                    offsets.add(segment.start + charDelta +
+                                        segment.offsets[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.scanner.Symbol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Marks calls to small top level functions for inlining, applied by the
+ * parser to the whole program. A function qualifies when it is declared
+ * once, never assigned or redeclared, has a short body without loops and
+ * cannot reach itself through the bodies of other qualifying functions; a
+ * call by that name with as many arguments becomes an {@link Expr.Inlined},
+ * which the interpreter runs without the argument list of a real call. A
+ * body that is a single return statement also skips the return exception.
+ * Such a body costs about what a memo lookup does, so pure functions skip
+ * their cache there; calls the body makes still go through their callees'
+ * caches.
+ * <p>
+ * The body still runs in an environment of its own over the globals, so
+ * parameters shadow nothing of the caller. Which function a name holds is
+ * only known at runtime, so every inlined call checks it still holds the
+ * declared function and makes the real call otherwise.
+ */
+final class Inliner extends TreeRewriter {
+
+    // syntax tree nodes in a body that is inlined
+    private static final int MAX_SIZE = 24;
+
+    private final Map<Symbol, Stmt.Function> candidates = new HashMap<>();
+
+    Inliner(Map<Statement, Integer> lines) {
+        super(lines);
+    }
+
+    List<Statement> inline(List<Statement> program) {
+        Set<Symbol> rebound = new HashSet<>();
+        for (Statement statement : program) {
+            if (statement instanceof Stmt.Covered covered) {
+                statement = covered.statement();
+            }
+            if (statement instanceof Stmt.Function function) {
+                Symbol name = function.name().symbol();
+                if (candidates.put(name, function) != null) {
+                    rebound.add(name);
+                }
+            } else if (statement instanceof Stmt.VarStatement var) {
+                rebound.add(var.name().symbol());
+            } else if (statement instanceof Stmt.Class klass) {
+                rebound.add(klass.name().symbol());
+            } else if (statement instanceof Stmt.Import imported) {
+                rebound.add(imported.name().symbol());
+            }
+        }
+        candidates.entrySet().removeIf(
+                candidate -> rebound.contains(candidate.getKey()) ||
+                        !isInlinable(candidate.getValue(), program));
+        candidates.keySet().removeAll(recursive());
+        return candidates.isEmpty() ? program : rewrite(program);
+    }
+
+    // the candidates that can call themselves through candidates, which
+    // would nest inlined bodies without a real call in between
+    private Set<Symbol> recursive() {
+        Map<Symbol, Set<Symbol>> callees = new HashMap<>();
+        candidates.forEach((name, function) -> {
+            Set<Symbol> called = new HashSet<>();
+            for (Symbol other : candidates.keySet()) {
+                SymbolUsage usage = new SymbolUsage(other);
+                function.body().forEach(usage::scan);
+                if (usage.isRead()) {
+                    called.add(other);
+                }
+            }
+            callees.put(name, called);
+        });
+        Set<Symbol> recursive = new HashSet<>();
+        for (Symbol name : candidates.keySet()) {
+            Set<Symbol> reached = new HashSet<>();
+            List<Symbol> pending = new ArrayList<>(callees.get(name));
+            while (!pending.isEmpty()) {
+                Symbol next = pending.remove(pending.size() - 1);
+                if (reached.add(next)) {
+                    pending.addAll(callees.get(next));
+                }
+            }
+            if (reached.contains(name)) {
+                recursive.add(name);
+            }
+        }
+        return recursive;
+    }
+
+    private static boolean isInlinable(Stmt.Function function,
+                                       List<Statement> program) {
+        SymbolUsage self = new SymbolUsage(function.name().symbol());
+        function.body().forEach(self::scan);
+        Size size = new Size().of(function);
+        if (self.isRead() || self.isAssigned() || size.loops ||
+                size.nodes > MAX_SIZE) {
+            return false;
+        }
+        SymbolUsage usage = new SymbolUsage(function.name().symbol());
+        program.forEach(usage::scan);
+        return !usage.isAssigned();
+    }
+
+    @Override
+    public Expression visitCallExpr(Expr.Call call) {
+        Expression rewritten = super.visitCallExpr(call);
+        if (call.callee() instanceof Expr.Variable callee) {
+            Stmt.Function function = candidates.get(callee.name().symbol());
+            if (function != null &&
+                    function.params().size() == call.arguments().size()) {
+                return new Expr.Inlined((Expr.Call) rewritten,
+                                        function.name());
+            }
+        }
+        return rewritten;
+    }
+
+    /**
+     * Counts the nodes of a function body and looks for loops, rewriting
+     * nothing.
+     */
+    private static final class Size extends TreeRewriter {
+
+        private int nodes = 0;
+        private boolean loops = false;
+
+        Size() {
+            super(new IdentityHashMap<>());
+        }
+
+        Size of(Stmt.Function function) {
+            function.body().forEach(this::rewrite);
+            return this;
+        }
+
+        @Override
+        public Statement visitWhileStatement(
+                Stmt.WhileStatement whileStatement) {
+            loops = true;
+            return super.visitWhileStatement(whileStatement);
+        }
+
+        @Override
+        public Statement visitCountedForStatement(Stmt.CountedFor countedFor) {
+            loops = true;
+            return super.visitCountedForStatement(countedFor);
+        }
+
+        @Override
+        Expression rewrite(Expression expression) {
+            if (expression != null) {
+                nodes++;
+            }
+            return super.rewrite(expression);
+        }
+
+        @Override
+        Statement rewrite(Statement statement) {
+            if (statement != null) {
+                nodes++;
+            }
+            return super.rewrite(statement);
+        }
+    }
+}
@@ -1,87 +1,393 @@
 package com.petar.plox3.parser;
 
+import com.petar.plox3.Budget;
 import com.petar.plox3.Environment;
+import com.petar.plox3.GlobalEnvironment;
+import com.petar.plox3.MemoCache;
+import com.petar.plox3.Metrics;
+import com.petar.plox3.NativeError;
+import com.petar.plox3.NativeFunction;
 import com.petar.plox3.Plox3;
+import com.petar.plox3.BoundMethod;
 import com.petar.plox3.PloxCallable;
+import com.petar.plox3.PloxClass;
 import com.petar.plox3.PloxFunction;
+import com.petar.plox3.PloxInstance;
+import com.petar.plox3.PloxList;
+import com.petar.plox3.PloxModule;
+import com.petar.plox3.concurrent.Parallel;
+import com.petar.plox3.concurrent.Tasks;
+import com.petar.plox3.coverage.CoveragePoint;
+import com.petar.plox3.instrument.Probe;
+import com.petar.plox3.module.Modules;
+import com.petar.plox3.scanner.Symbol;
 import com.petar.plox3.scanner.Token;
 import com.petar.plox3.scanner.TokenType;
+import com.petar.plox3.trace.LoopTrace;
+import com.petar.plox3.trace.TraceRecorder;
 
+import java.io.PrintWriter;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Interpreter implements ExprVisitor<Object>, StmtVisitor<Void> {
 
-    private Environment globals = new Environment();
-    private Environment environment = globals;
+    private static final Token THIS =
+            new Token(TokenType.THIS, "this", Symbol.of("this"), 0);
+
+    private final GlobalEnvironment globals;
+    private Environment environment;
+    private Budget budget;
+    private boolean memoize;
+    // declarations proven pure in the program being interpreted
+    private Set<Stmt.Function> pure;
+    private final List<PloxFunction> memoized;
+    // shared by every fork, each of which counts on its own
+    private final Metrics metrics;
+    private final Metrics.Counts counts;
+    // set while a hot loop records the types of one iteration
+    private TraceRecorder recorder;
+    // shared by every fork, which run the same imports
+    private final Modules modules;
+    // the module whose code this runs, null for the main program
+    private final PloxModule module;
+    // this task's state for the main program, and for each module it ran
+    // code of
+    private final Interpreter home;
+    private final Map<PloxModule, Interpreter> views;
+    // where print writes and runtime errors are reported, taken from the
+    // parent by forks; views use their home's
+    private PrintWriter output;
+    private PrintWriter errorOutput;
 
     public Interpreter() {
-        globals.define("clock", new PloxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+        globals = new GlobalEnvironment();
+        environment = globals;
+        budget = Budget.unlimited();
+        memoize = true;
+        pure = Set.of();
+        memoized = Collections.synchronizedList(new ArrayList<>());
+        metrics = Metrics.register(this);
+        metrics.track(budget);
+        counts = metrics.counts();
+        modules = new Modules();
+        module = null;
+        home = this;
+        views = new HashMap<>();
+        output = new PrintWriter(System.out, true);
+        errorOutput = new PrintWriter(System.err, true);
+        defineNatives(globals);
+    }
 
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                assert arguments.size() == 0;
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+    // evaluation state for another task of the same program
+    private Interpreter(Interpreter parent) {
+        this(parent, parent.globals);
+    }
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    private Interpreter(Interpreter parent, GlobalEnvironment globals) {
+        this.globals = globals;
+        environment = globals;
+        budget = parent.budget.fork();
+        memoize = parent.memoize;
+        pure = parent.pure;
+        memoized = parent.memoized;
+        metrics = parent.metrics;
+        counts = metrics.counts();
+        modules = parent.modules;
+        module = null;
+        home = this;
+        views = new HashMap<>();
+        output = parent.output();
+        errorOutput = parent.errorOutput();
+    }
+
+    // the same task running the code of module
+    private Interpreter(Interpreter home, PloxModule module) {
+        globals = module.globals();
+        environment = globals;
+        budget = home.budget;
+        memoize = home.memoize;
+        pure = memoize ? module.pure() : Set.of();
+        memoized = home.memoized;
+        metrics = home.metrics;
+        counts = home.counts;
+        modules = home.modules;
+        this.module = module;
+        this.home = home;
+        views = home.views;
+    }
+
+    public static void defineNatives(Environment globals) {
+        globals.define("clock", new NativeFunction(
+                "clock", 0, (interpreter, arguments) ->
+                (double) System.currentTimeMillis() / 1000.0));
+        PloxList.define(globals);
+        Tasks.define(globals);
+        Parallel.define(globals);
+    }
+
+    public Interpreter fork() {
+        return module == null ? new Interpreter(this) : home.fork().in(module);
+    }
+
+    // this task's state for running the code of module, or of the main
+    // program for null
+    public Interpreter in(PloxModule module) {
+        if (module == this.module) {
+            return this;
+        }
+        if (module == null) {
+            return home;
+        }
+        return views.computeIfAbsent(module, m -> new Interpreter(home, m));
+    }
+
+    public PloxModule module() {
+        return module;
+    }
+
+    // finds, parses and checks the modules program imports, program being
+    // a file in directory; errors are reported like those of the program
+    public void load(List<Statement> program, Path directory) {
+        modules.load(program, directory);
+    }
+
+    // evaluation state with the same settings over other globals, which
+    // reach this interpreter's natives through their enclosing chain
+    public Interpreter withGlobals(GlobalEnvironment globals) {
+        return new Interpreter(this, globals);
     }
 
     public Environment getGlobals() {
         return globals;
     }
 
+    // start from bindings made by an earlier run, natives excepted
+    public void restore(Map<Symbol, Object> bindings) {
+        globals.inherit(bindings);
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object value : bindings.values()) {
+            if (value instanceof PloxFunction function &&
+                    function.memo() != null && seen.add(function)) {
+                memoized.add(function);
+            }
+        }
+    }
+
+    public Map<Symbol, Object> globalBindings() {
+        return globals.bindings();
+    }
+
+    public Budget budget() {
+        return budget;
+    }
+
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+        metrics.track(budget);
+    }
+
+    public void setMemoize(boolean memoize) {
+        this.memoize = memoize;
+    }
+
+    public PrintWriter output() {
+        return home.output;
+    }
+
+    public PrintWriter errorOutput() {
+        return home.errorOutput;
+    }
+
+    // writers are expected to flush on println, as System.out does
+    public void setOutput(PrintWriter output, PrintWriter errorOutput) {
+        home.output = output;
+        home.errorOutput = errorOutput;
+    }
+
+    public void print(Object value) {
+        home.output.println(stringify(value));
+    }
+
+    // every function declared so far that caches its results
+    public List<PloxFunction> memoizedFunctions() {
+        return memoized;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    // the counts of this task, for its callers to add to
+    public Metrics.Counts counts() {
+        return counts;
+    }
+
     public void interpret(List<Statement> statements) {
+        invalidateMemos(statements);
+        if (memoize) {
+            pure = Purity.analyze(statements);
+        }
+        budget.start();
+        long start = System.nanoTime();
         try {
             statements.forEach(this::execute);
         } catch (RuntimeError error) {
-            Plox3.runtimeError(error);
+            metrics.runtimeError();
+            Plox3.runtimeError(error, errorOutput());
+        } finally {
+            finish(start);
         }
     }
 
+    // functions memoized by earlier programs over the same globals were
+    // proven pure for those programs only; their caches go once program
+    // rebinds a global they read, or calls a function whose cache went
+    private void invalidateMemos(List<Statement> program) {
+        Map<Symbol, Boolean> rebound = new HashMap<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            synchronized (memoized) {
+                for (PloxFunction function : memoized) {
+                    if (!function.memo().isValid()) {
+                        continue;
+                    }
+                    for (Symbol name :
+                            Purity.globalsRead(function.declaration())) {
+                        if (rebound.computeIfAbsent(name, read ->
+                                Purity.rebinds(program, read))) {
+                            function.memo().invalidate();
+                            rebound.put(function.declaration().name()
+                                                .symbol(), true);
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // runs a program analyzed ahead of time, leaving runtime errors to the
+    // caller; returns the value of a trailing expression statement
+    public Object run(List<Statement> statements, Set<Stmt.Function> pure) {
+        invalidateMemos(statements);
+        if (memoize) {
+            this.pure = pure;
+        }
+        budget.start();
+        long start = System.nanoTime();
+        try {
+            int last = statements.size() - 1;
+            for (int i = 0; i < last; i++) {
+                execute(statements.get(i));
+            }
+            if (last < 0) {
+                return null;
+            }
+            if (statements.get(last) instanceof Stmt.ExprStatement statement) {
+                return evaluate(statement.expression());
+            }
+            execute(statements.get(last));
+            return null;
+        } catch (RuntimeError error) {
+            metrics.runtimeError();
+            throw error;
+        } finally {
+            finish(start);
+        }
+    }
+
+    // ends a run that started at start, publishing what it counted
+    public void finish(long start) {
+        counts.flush();
+        metrics.executed(System.nanoTime() - start);
+    }
+
     private void execute(Statement statement) {
+        counts.statement();
         statement.accept(this);
     }
 
-    private String stringify(Object object) {
+    public static String stringify(Object object) {
         if (object == null) {
             return "nil";
         }
-        if (object instanceof Double) {
-            String text = object.toString();
-            // handle integers
-            return trimTrailingZero(text);
+        if (object instanceof Double number) {
+            long integer = number.longValue();
+            if (isPlainInteger(number, integer)) {
+                return Long.toString(integer);
+            }
+            return trimTrailingZero(number.toString());
         }
         return object.toString();
     }
 
-    private String trimTrailingZero(String text) {
+    private static String trimTrailingZero(String text) {
         if (text.endsWith(".0")) {
             return text.substring(0, text.length() - 2);
         }
         return text;
     }
 
+    // appends number as stringify writes it; Double.toString's digits go
+    // straight into text, the same digits as it returns
+    private static StringBuilder append(StringBuilder text, double number) {
+        long integer = (long) number;
+        if (isPlainInteger(number, integer)) {
+            return text.append(integer);
+        }
+        int length = text.append(number).length();
+        if (text.charAt(length - 2) == '.' && text.charAt(length - 1) == '0') {
+            text.setLength(length - 2);
+        }
+        return text;
+    }
+
+    // whether number is integer, which Double.toString writes as digits
+    // and ".0": below 10^7 in magnitude and not negative zero
+    private static boolean isPlainInteger(double number, long integer) {
+        return integer == number && integer > -10_000_000L &&
+                integer < 10_000_000L &&
+                (integer != 0 || Double.doubleToRawLongBits(number) == 0);
+    }
+
     private Object evaluate(Expression expr) {
-        return expr.accept(this);
+        Object value = expr.accept(this);
+        if (recorder != null) {
+            recorder.observe(expr, value);
+        }
+        return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left());
         Object right = evaluate(expr.right());
-        switch (expr.operator().type()) {
+        return binary(budget, expr.operator(), left, right);
+    }
+
+    // binary with a string it builds charged to budget
+    public static Object binary(Budget budget, Token operator, Object left,
+                                Object right) {
+        Object value = binary(operator, left, right);
+        if (value instanceof String text) {
+            budget.allocate(operator, Budget.STRING_BYTES + text.length());
+        }
+        return value;
+    }
+
+    public static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type()) {
             case MINUS -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             }
             case PLUS -> {
@@ -92,42 +398,46 @@ public class Interpreter implements ExprVisitor<Object>, StmtVisitor<Void> {
                     return left + right.toString();
 
                 }
-                if (left instanceof Double && right instanceof String) {
-                    return trimTrailingZero(left.toString()) + right;
+                if (left instanceof Double number &&
+                        right instanceof String text) {
+                    return append(new StringBuilder(24 + text.length()),
+                                  number).append(text).toString();
                 }
-                if (left instanceof String && right instanceof Double) {
-                    return left + trimTrailingZero(right.toString());
+                if (left instanceof String text &&
+                        right instanceof Double number) {
+                    return append(new StringBuilder(text.length() + 24)
+                                          .append(text), number).toString();
                 }
-                throw new RuntimeError(expr.operator(),
+                throw new RuntimeError(operator,
                                        "Operands must be numbers or " +
                                                "strings");
             }
             case STAR -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
             }
             case SLASH -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 double rightTmp = (double) right;
                 if (rightTmp == 0) {
-                    throw new RuntimeError(expr.operator(), "Division by zero");
+                    throw new RuntimeError(operator, "Division by zero");
                 }
                 return (double) left / rightTmp;
             }
             case GREATER -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             }
             case GREATER_EQUAL -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             }
             case LESS -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             }
             case LESS_EQUAL -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left <= (double) right;
             }
             case EQUAL_EQUAL -> {
@@ -140,8 +450,8 @@ public class Interpreter implements ExprVisitor<Object>, StmtVisitor<Void> {
         return null;
     }
 
-    private boolean isEqual(Object left, Object right) {
-        if (left == null && right == null) {
+    public static boolean isEqual(Object left, Object right) {
+        if (left == right) {
             return true;
         }
         if (left == null) {
@@ -153,27 +463,31 @@ public class Interpreter implements ExprVisitor<Object>, StmtVisitor<Void> {
     @Override
     public Object visitUnaryExpr(Expr.Unary unary) {
         Object eval = evaluate(unary.expr());
-        switch (unary.operator().type()) {
+        return unary(unary.operator(), eval);
+    }
+
+    public static Object unary(Token operator, Object eval) {
+        switch (operator.type()) {
             case BANG -> {
                 return !isTruthy(eval);
             }
             case MINUS -> {
-                checkNumberOperand(unary.operator(), eval);
+                checkNumberOperand(operator, eval);
                 return -(double) eval;
             }
         }
         return null;
     }
 
-    private void checkNumberOperands(Token operator, Object left,
-                                     Object right) {
+    private static void checkNumberOperands(Token operator, Object left,
+                                            Object right) {
         if (left instanceof Double && right instanceof Double) {
             return;
         }
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private void checkNumberOperand(Token operator, Object eval) {
+    private static void checkNumberOperand(Token operator, Object eval) {
         if (eval instanceof Double) {
             return;
         }
@@ -181,7 +495,7 @@ public class Interpreter implements ExprVisitor<Object>, StmtVisitor<Void> {
 
     }
 
-    private boolean isTruthy(Object eval) {
+    public static boolean isTruthy(Object eval) {
         if (eval == null) {
             return false;
         }
@@ -216,46 +530,185 @@ public class Interpreter implements ExprVisitor<Object>, StmtVisitor<Void> {
     @Override
     public Object visitLogicalExpr(Expr.Logical logical) {
         Object left = evaluate(logical.left());
+        CoveragePoint branch = logical.branch();
         if (logical.operator().type() == TokenType.OR) {
             if (isTruthy(left)) {
+                if (branch != null) {
+                    branch.hit(0);
+                }
                 return left;
             }
         } else {
             // AND case
             // if left side is false, short-circuit and just return
             if (!isTruthy(left)) {
+                if (branch != null) {
+                    branch.hit(0);
+                }
                 return left;
             }
         }
+        if (branch != null) {
+            branch.hit(1);
+        }
         return evaluate(logical.right());
     }
 
     @Override
     public Object visitCallExpr(Expr.Call call) {
+        if (call.callee() instanceof Expr.Get get) {
+            return invoke(call, get);
+        }
         Object callee = evaluate(call.callee());
+        return call(callee, arguments(call), call.paren());
+    }
 
+    // object.name(...) calls a method without binding it first
+    private Object invoke(Expr.Call call, Expr.Get get) {
+        Object object = evaluate(get.object());
+        PloxFunction method = get.site().method(object);
+        if (method == null) {
+            Object callee = get.site().get(object);
+            return call(callee, arguments(call), call.paren());
+        }
+        return callMethod(method, (PloxInstance) object, arguments(call),
+                          call.paren());
+    }
+
+    private List<Object> arguments(Expr.Call call) {
         List<Object> args = new ArrayList<>();
         for (var arg : call.arguments()) {
             args.add(evaluate(arg));
         }
+        return args;
+    }
 
+    public Object call(Object callee, List<Object> args, Token paren) {
         if (!(callee instanceof PloxCallable)) {
-            throw new RuntimeError(call.paren(),
+            throw new RuntimeError(paren,
                                    "Can only call functions and classes");
         }
         PloxCallable function = (PloxCallable) callee;
-        if (args.size() != function.arity()) {
-            throw new RuntimeError(call.paren(),
+        checkArity(function, args, paren);
+        try {
+            return function.call(this, args);
+        } catch (NativeError error) {
+            throw new RuntimeError(paren, error.getMessage());
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    public Object callMethod(PloxFunction method, PloxInstance receiver,
+                             List<Object> args, Token paren) {
+        checkArity(method, args, paren);
+        try {
+            return method.call(this, receiver, args);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    // the Java stack can run out before the budget's depth limit is reached;
+    // building the error may overflow again, which the next call out catches
+    private static RuntimeError stackOverflow(Token paren) {
+        return new RuntimeError(paren, "Maximum call depth exceeded.");
+    }
+
+    private static void checkArity(PloxCallable function, List<Object> args,
+                                   Token paren) {
+        if (function.arity() != PloxCallable.VARIADIC &&
+                args.size() != function.arity()) {
+            throw new RuntimeError(paren,
                                    "Expected %d arguments, got %d".formatted(
                                            function.arity(), args.size()));
         }
-        return function.call(this, args);
+    }
+
+    @Override
+    public Object visitGetExpr(Expr.Get get) {
+        return get.site().get(evaluate(get.object()));
+    }
+
+    @Override
+    public Object visitSetExpr(Expr.Set set) {
+        PloxInstance instance =
+                set.site().instance(evaluate(set.object()), "fields");
+        Object value = evaluate(set.value());
+        set.site().set(instance, value);
+        return value;
+    }
+
+    @Override
+    public Object visitThisExpr(Expr.This thisExpr) {
+        return environment.get(thisExpr.keyword());
+    }
+
+    @Override
+    public Object visitSuperExpr(Expr.Super superExpr) {
+        return bindSuper(environment.get(superExpr.keyword()),
+                         environment.get(THIS), superExpr.method());
+    }
+
+    // runs the body in place, skipping the argument list and the call
+    // site, unless the name no longer holds the inlined function
+    @Override
+    public Object visitInlinedExpr(Expr.Inlined inlined) {
+        Expr.Call call = inlined.call();
+        Object callee = evaluate(call.callee());
+        if (!(callee instanceof PloxFunction function) ||
+                function.declaration().name() != inlined.function()) {
+            return call(callee, arguments(call), call.paren());
+        }
+        Stmt.Function declaration = function.declaration();
+        Environment arguments = new Environment(globals);
+        counts.call();
+        counts.frame();
+        for (int i = 0; i < declaration.params().size(); i++) {
+            arguments.define(declaration.params().get(i).symbol(),
+                             evaluate(call.arguments().get(i)));
+        }
+        List<Statement> body = declaration.body();
+        budget.allocate(declaration.name(), Budget.FRAME_BYTES);
+        budget.enter(declaration.name());
+        try {
+            if (body.size() == 1 &&
+                    body.get(0) instanceof Stmt.ReturnStatement returned &&
+                    returned.value() != null) {
+                Environment previous = environment;
+                environment = arguments;
+                try {
+                    return evaluate(returned.value());
+                } finally {
+                    environment = previous;
+                }
+            }
+            executeBlock(body, arguments);
+        } catch (Return returned) {
+            return returned.getValue();
+        } catch (StackOverflowError error) {
+            throw stackOverflow(call.paren());
+        } finally {
+            budget.exit();
+            budget.release(Budget.FRAME_BYTES);
+        }
+        return null;
+    }
+
+    public static BoundMethod bindSuper(Object superclass, Object receiver,
+                                        Token name) {
+        PloxFunction method =
+                ((PloxClass) superclass).findMethod(name.symbol());
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" +
+                    name.lexeme() + "'.");
+        }
+        return new BoundMethod((PloxInstance) receiver, method);
     }
 
     @Override
     public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
-        Object expr = evaluate(printStatement.expression());
-        System.out.println(stringify(expr));
+        print(evaluate(printStatement.expression()));
         return null;
     }
 
@@ -271,20 +724,30 @@ public class Interpreter implements ExprVisitor<Object>, StmtVisitor<Void> {
         if (varStatement.expression() != null) {
             value = evaluate(varStatement.expression());
         }
-        environment.define(varStatement.name().lexeme(), value);
+        environment.define(varStatement.name().symbol(), value);
         return null;
     }
 
     @Override
     public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
-        executeBlock(blockStatement.statementList(),
-                     new Environment(environment));
+        counts.frame();
+        budget.charge(Budget.FRAME_BYTES);
+        try {
+            executeBlock(blockStatement.statementList(),
+                         new Environment(environment));
+        } finally {
+            budget.release(Budget.FRAME_BYTES);
+        }
         return null;
     }
 
     @Override
     public Void visitIfStatement(Stmt.IfStmt ifStmt) {
-        if (isTruthy(evaluate(ifStmt.condition()))) {
+        boolean taken = isTruthy(evaluate(ifStmt.condition()));
+        if (ifStmt.branch() != null) {
+            ifStmt.branch().hit(taken ? 0 : 1);
+        }
+        if (taken) {
             execute(ifStmt.then());
         } else if (ifStmt.elseStmt() != null) {
             execute(ifStmt.elseStmt());
@@ -294,16 +757,253 @@ public class Interpreter implements ExprVisitor<Object>, StmtVisitor<Void> {
 
     @Override
     public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        LoopTrace trace = whileStatement.trace();
         while (isTruthy(evaluate(whileStatement.condition()))) {
             execute(whileStatement.body());
+            if (budget.due()) {
+                budget.poll(whileStatement.keyword());
+            }
+            if (recorder == null && trace.isHot() &&
+                    runTrace(trace, whileStatement.keyword(),
+                             whileStatement.condition(), whileStatement.body(),
+                             null)) {
+                return null;
+            }
         }
         return null;
     }
 
+    // Hands a hot loop to its trace, first recording one more iteration if
+    // it has none. True when the loop has finished, false when the trace
+    // gave up and the tree walker should go on from the condition.
+    private boolean runTrace(LoopTrace trace, Token keyword,
+                             Expression condition, Statement body,
+                             Expression increment) {
+        if (!trace.isCompiled()) {
+            TraceRecorder recorder = new TraceRecorder();
+            boolean finished;
+            this.recorder = recorder;
+            try {
+                finished = !isTruthy(evaluate(condition));
+                if (!finished) {
+                    execute(body);
+                    if (increment != null) {
+                        evaluate(increment);
+                    }
+                    if (budget.due()) {
+                        budget.poll(keyword);
+                    }
+                }
+            } finally {
+                this.recorder = null;
+            }
+            trace.compile(keyword, condition, body, increment, recorder,
+                          environment);
+            if (finished) {
+                return true;
+            }
+        }
+        return trace.run(this, environment);
+    }
+
+    @Override
+    public Void visitCountedForStatement(Stmt.CountedFor loop) {
+        Object from = evaluate(loop.from());
+        Environment loopEnvironment = new Environment(environment);
+        counts.frame();
+        budget.allocate(loop.keyword(), Budget.FRAME_BYTES);
+        loopEnvironment.define(loop.name().symbol(), from);
+        Environment previous = this.environment;
+        try {
+            this.environment = loopEnvironment;
+            // a recording loop needs to see every expression evaluated
+            if (from instanceof Double && recorder == null) {
+                countedLoop(loop, (double) from);
+            } else {
+                execute(loop.asWhile());
+            }
+        } finally {
+            this.environment = previous;
+            budget.release(Budget.FRAME_BYTES);
+        }
+        return null;
+    }
+
+    // Runs the loop with the counter held in a local double. The counter is
+    // only boxed into the environment when the loop actually reads it, and a
+    // block body reuses one frame: functions close over the globals only,
+    // so nothing can observe a frame after its iteration ends.
+    private void countedLoop(Stmt.CountedFor loop, double counter) {
+        Symbol name = loop.name().symbol();
+        Token comparison = loop.condition().operator();
+        Token stepOperator = loop.step().operator();
+        List<Statement> block = null;
+        Environment bodyEnvironment = null;
+        if (loop.body() instanceof Stmt.BlockStatement blockStatement) {
+            block = blockStatement.statementList();
+            bodyEnvironment = new Environment(environment);
+            counts.frame();
+            budget.charge(Budget.FRAME_BYTES);
+        }
+        try {
+            while (true) {
+                Object limit = evaluate(loop.limit());
+                if (!(limit instanceof Double)) {
+                    throw new RuntimeError(comparison,
+                                           "Operands must be numbers.");
+                }
+                if (!compare(comparison, counter, (double) limit)) {
+                    return;
+                }
+                if (block == null) {
+                    execute(loop.body());
+                } else {
+                    bodyEnvironment.clear();
+                    executeBlock(block, bodyEnvironment);
+                }
+                if (budget.due()) {
+                    budget.poll(loop.keyword());
+                }
+                Object step = evaluate(loop.step().right());
+                if (!(step instanceof Double)) {
+                    // leave the fast path, e.g. i = i + "x" concatenates
+                    environment.define(name, binary(budget, stepOperator,
+                                                    counter, step));
+                    execute(loop.asWhile());
+                    return;
+                }
+                counter = stepOperator.type() == TokenType.PLUS ?
+                        counter + (double) step : counter - (double) step;
+                if (loop.trace().isHot()) {
+                    environment.define(name, counter);
+                    if (!runTrace(loop.trace(), loop.keyword(),
+                                  loop.condition(), loop.body(),
+                                  loop.increment())) {
+                        execute(loop.asWhile());
+                    }
+                    return;
+                }
+                if (loop.readsCounter()) {
+                    environment.define(name, counter);
+                }
+            }
+        } finally {
+            if (bodyEnvironment != null) {
+                budget.release(Budget.FRAME_BYTES);
+            }
+        }
+    }
+
+    private static boolean compare(Token comparison, double left,
+                                   double right) {
+        return switch (comparison.type()) {
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            default -> throw new IllegalStateException(
+                    "not a comparison: " + comparison.type());
+        };
+    }
+
     @Override
     public Void visitFunctionStatement(Stmt.Function stmt) {
-        PloxFunction function = new PloxFunction(stmt);
-        environment.define(stmt.name().lexeme(), function);
+        environment.define(stmt.name().symbol(), function(stmt));
+        return null;
+    }
+
+    @Override
+    public Void visitClassStatement(Stmt.Class classStatement) {
+        Object superclass = null;
+        if (classStatement.superclass() != null) {
+            superclass = evaluate(classStatement.superclass());
+        }
+        environment.define(classStatement.name().symbol(),
+                           klass(classStatement, superclass));
+        return null;
+    }
+
+    @Override
+    public Void visitImportStatement(Stmt.Import importStatement) {
+        PloxModule imported = modules.module(importStatement);
+        if (imported == null) {
+            throw new RuntimeError(importStatement.path(),
+                                   "Module was not loaded.");
+        }
+        // a module runs once; other tasks importing it meanwhile wait
+        synchronized (imported) {
+            if (imported.start()) {
+                Interpreter view = in(imported);
+                imported.statements().forEach(view::execute);
+            }
+        }
+        environment.define(importStatement.name().symbol(), imported);
+        return null;
+    }
+
+    public PloxClass klass(Stmt.Class declaration, Object superclass) {
+        if (superclass != null && !(superclass instanceof PloxClass)) {
+            throw new RuntimeError(declaration.superclass().name(),
+                                   "Superclass must be a class.");
+        }
+        budget.allocate(declaration.name(), Budget.FUNCTION_BYTES);
+        return new PloxClass(declaration, (PloxClass) superclass, module);
+    }
+
+    public PloxFunction function(Stmt.Function declaration) {
+        budget.allocate(declaration.name(), Budget.FUNCTION_BYTES);
+        if (!pure.contains(declaration)) {
+            return new PloxFunction(declaration, null, module);
+        }
+        PloxFunction function =
+                new PloxFunction(declaration, new MemoCache(), module);
+        memoized.add(function);
+        return function;
+    }
+
+    @Override
+    public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+        Object value = null;
+        if (returnStatement.value() != null) {
+            value = evaluate(returnStatement.value());
+        }
+        throw new Return(value);
+    }
+
+    @Override
+    public Void visitCoveredStatement(Stmt.Covered covered) {
+        covered.point().hit();
+        execute(covered.statement());
+        return null;
+    }
+
+    @Override
+    public Void visitProbedStatement(Stmt.Probed probed) {
+        Probe probe = probed.probe();
+        Statement statement = probed.statement();
+        if (statement instanceof Stmt.Covered covered) {
+            covered.point().hit();
+            statement = covered.statement();
+        }
+        probe.enter(environment);
+        try {
+            if (statement instanceof Stmt.ExprStatement expression &&
+                    expression.expression() instanceof
+                            Expr.Assignment assignment) {
+                probe.wrote(assignment.name(), evaluate(assignment));
+            } else {
+                execute(statement);
+                if (statement instanceof Stmt.VarStatement var) {
+                    probe.wrote(var.name(), environment.get(var.name()));
+                }
+            }
+        } catch (Return returned) {
+            probe.exit(environment);
+            probe.returned(returned.getValue());
+            throw returned;
+        }
+        probe.exit(environment);
+        probe.completed();
         return null;
     }
 
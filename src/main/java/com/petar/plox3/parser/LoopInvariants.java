@@ -0,0 +1,388 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Loop invariant code motion, applied by the parser to each loop it builds.
+ * Arithmetic whose operands cannot change while the loop runs becomes
+ * {@code $n or ($n = e)} over a temporary declared, nil, just before the
+ * loop. The first evaluation stores the value, which as a number or string
+ * is truthy, and the others read it back. Nothing is evaluated earlier or
+ * more often than before, so a loop that never runs never divides by zero
+ * and runtime errors happen where they did.
+ * <p>
+ * An operand is invariant when it is a local the loop neither assigns nor
+ * declares. Functions never see their callers' locals, while any call or
+ * other task may assign a global. Functions declared in the loop run in
+ * environments of their own and are left alone.
+ */
+final class LoopInvariants extends TreeRewriter {
+
+    private final Predicate<Symbol> isLocal;
+    // temporaries are numbered across the program, so the ones of an inner
+    // loop never shadow those of the loops around it
+    private int temporaries = 0;
+
+    // the loop being rewritten
+    private Writes writes;
+    private List<Token> hoisted;
+
+    // lines is the parser's line table; isLocal tells whether a name at the
+    // loop is a local
+    LoopInvariants(Map<Statement, Integer> lines, Predicate<Symbol> isLocal) {
+        super(lines);
+        this.isLocal = isLocal;
+    }
+
+    Statement hoist(Stmt.WhileStatement loop) {
+        start(new Writes().scan(loop.condition()).scan(loop.body()));
+        Expression condition = rewrite(loop.condition());
+        Statement body = rewrite(loop.body());
+        if (hoisted.isEmpty()) {
+            return loop;
+        }
+        return declareHoisted(new Stmt.WhileStatement(
+                loop.keyword(), condition, body, loop.trace()));
+    }
+
+    Statement hoist(Stmt.CountedFor loop) {
+        Writes loopWrites = new Writes().scan(loop.condition())
+                                        .scan(loop.increment())
+                                        .scan(loop.body());
+        loopWrites.declared.add(loop.name().symbol());
+        start(loopWrites);
+        Expression limit = rewrite(loop.limit());
+        Expression step = rewrite(loop.step().right());
+        Statement body = rewrite(loop.body());
+        if (hoisted.isEmpty()) {
+            return loop;
+        }
+        return declareHoisted(counted(loop, loop.from(), limit, step, body));
+    }
+
+    private void start(Writes loopWrites) {
+        writes = loopWrites;
+        hoisted = new ArrayList<>();
+    }
+
+    private Statement declareHoisted(Statement loop) {
+        List<Statement> statements = new ArrayList<>();
+        for (Token temporary : hoisted) {
+            statements.add(new Stmt.VarStatement(temporary, null));
+        }
+        statements.add(loop);
+        return new Stmt.BlockStatement(statements);
+    }
+
+    @Override
+    Expression rewrite(Expression expression) {
+        if (expression == null) {
+            return null;
+        }
+        if (isHoistable(expression)) {
+            return hoisted(expression);
+        }
+        return expression.accept(this);
+    }
+
+    private Expression hoisted(Expression expression) {
+        String name = "$" + temporaries++;
+        Token line = operator(expression);
+        Token temporary = new Token(TokenType.IDENTIFIER, name,
+                                    Symbol.of(name), line.line());
+        hoisted.add(temporary);
+        return new Expr.Logical(
+                new Expr.Variable(temporary),
+                new Token(TokenType.OR, "or", null, line.line()),
+                new Expr.Assignment(temporary, expression));
+    }
+
+    private static Token operator(Expression expression) {
+        if (expression instanceof Expr.Binary binary) {
+            return binary.operator();
+        }
+        return ((Expr.Unary) expression).operator();
+    }
+
+    // arithmetic, which yields a number or a string or fails, over
+    // invariant operands that read at least one variable
+    private boolean isHoistable(Expression expression) {
+        boolean arithmetic;
+        if (expression instanceof Expr.Binary binary) {
+            arithmetic = switch (binary.operator().type()) {
+                case PLUS, MINUS, STAR, SLASH -> true;
+                default -> false;
+            };
+        } else {
+            arithmetic = expression instanceof Expr.Unary unary &&
+                    unary.operator().type() == TokenType.MINUS;
+        }
+        return arithmetic && readsVariable(expression) &&
+                isInvariant(expression);
+    }
+
+    private boolean isInvariant(Expression expression) {
+        if (expression instanceof Expr.Literal) {
+            return true;
+        }
+        if (expression instanceof Expr.Variable variable) {
+            Symbol name = variable.name().symbol();
+            return isLocal.test(name) &&
+                    !writes.assigned.contains(name) &&
+                    !writes.declared.contains(name);
+        }
+        if (expression instanceof Expr.Grouping grouping) {
+            return isInvariant(grouping.expr());
+        }
+        if (expression instanceof Expr.Unary unary) {
+            return isInvariant(unary.expr());
+        }
+        if (expression instanceof Expr.Binary binary) {
+            return isInvariant(binary.left()) && isInvariant(binary.right());
+        }
+        if (expression instanceof Expr.Logical logical) {
+            return isInvariant(logical.left()) &&
+                    isInvariant(logical.right());
+        }
+        return false;
+    }
+
+    private static boolean readsVariable(Expression expression) {
+        if (expression instanceof Expr.Variable) {
+            return true;
+        }
+        if (expression instanceof Expr.Grouping grouping) {
+            return readsVariable(grouping.expr());
+        }
+        if (expression instanceof Expr.Unary unary) {
+            return readsVariable(unary.expr());
+        }
+        if (expression instanceof Expr.Binary binary) {
+            return readsVariable(binary.left()) ||
+                    readsVariable(binary.right());
+        }
+        if (expression instanceof Expr.Logical logical) {
+            return readsVariable(logical.left()) ||
+                    readsVariable(logical.right());
+        }
+        return false;
+    }
+
+    private static boolean isTemporary(Token name) {
+        return name.lexeme().startsWith("$");
+    }
+
+    @Override
+    public Expression visitAssignmentExpr(Expr.Assignment assignment) {
+        // an inner loop's temporary already holds what it computes once
+        if (isTemporary(assignment.name())) {
+            return assignment;
+        }
+        return super.visitAssignmentExpr(assignment);
+    }
+
+    @Override
+    public Statement visitFunctionStatement(Stmt.Function function) {
+        return function;
+    }
+
+    @Override
+    public Statement visitClassStatement(Stmt.Class classStatement) {
+        return classStatement;
+    }
+
+    /**
+     * The names a loop assigns or declares.
+     * Bodies of functions declared in the loop only run when called, and
+     * then in their own environments, so they are skipped.
+     */
+    private static final class Writes implements ExprVisitor<Void>,
+            StmtVisitor<Void> {
+
+        private final Set<Symbol> assigned = new HashSet<>();
+        private final Set<Symbol> declared = new HashSet<>();
+
+        Writes scan(Expression expression) {
+            if (expression != null) {
+                expression.accept(this);
+            }
+            return this;
+        }
+
+        Writes scan(Statement statement) {
+            if (statement != null) {
+                statement.accept(this);
+            }
+            return this;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            scan(expr.left());
+            scan(expr.right());
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary unary) {
+            scan(unary.expr());
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping grouping) {
+            scan(grouping.expr());
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal literal) {
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable variable) {
+            return null;
+        }
+
+        @Override
+        public Void visitAssignmentExpr(Expr.Assignment assignment) {
+            assigned.add(assignment.name().symbol());
+            scan(assignment.expression());
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical logical) {
+            scan(logical.left());
+            scan(logical.right());
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call call) {
+            scan(call.callee());
+            call.arguments().forEach(this::scan);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get get) {
+            scan(get.object());
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set set) {
+            scan(set.object());
+            scan(set.value());
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This thisExpr) {
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super superExpr) {
+            return null;
+        }
+
+        @Override
+        public Void visitInlinedExpr(Expr.Inlined inlined) {
+            return visitCallExpr(inlined.call());
+        }
+
+        @Override
+        public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
+            scan(printStatement.expression());
+            return null;
+        }
+
+        @Override
+        public Void visitExprStatement(Stmt.ExprStatement exprStatement) {
+            scan(exprStatement.expression());
+            return null;
+        }
+
+        @Override
+        public Void visitVarStatement(Stmt.VarStatement varStatement) {
+            declared.add(varStatement.name().symbol());
+            scan(varStatement.expression());
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
+            blockStatement.statementList().forEach(this::scan);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStatement(Stmt.IfStmt ifStmt) {
+            scan(ifStmt.condition());
+            scan(ifStmt.then());
+            scan(ifStmt.elseStmt());
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
+            scan(whileStatement.condition());
+            scan(whileStatement.body());
+            return null;
+        }
+
+        @Override
+        public Void visitCountedForStatement(Stmt.CountedFor countedFor) {
+            return countedFor.desugar().accept(this);
+        }
+
+        @Override
+        public Void visitFunctionStatement(Stmt.Function function) {
+            declared.add(function.name().symbol());
+            return null;
+        }
+
+        @Override
+        public Void visitClassStatement(Stmt.Class classStatement) {
+            declared.add(classStatement.name().symbol());
+            scan(classStatement.superclass());
+            return null;
+        }
+
+        @Override
+        public Void visitImportStatement(Stmt.Import importStatement) {
+            declared.add(importStatement.name().symbol());
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+            scan(returnStatement.value());
+            return null;
+        }
+
+        @Override
+        public Void visitCoveredStatement(Stmt.Covered covered) {
+            scan(covered.statement());
+            return null;
+        }
+
+        @Override
+        public Void visitProbedStatement(Stmt.Probed probed) {
+            scan(probed.statement());
+            return null;
+        }
+    }
+}
@@ -1,19 +1,96 @@
 package com.petar.plox3.parser;
 
 import com.petar.plox3.Plox3;
+import com.petar.plox3.coverage.Coverage;
+import com.petar.plox3.coverage.CoveragePoint;
+import com.petar.plox3.scanner.Scanner;
+import com.petar.plox3.scanner.Symbol;
 import com.petar.plox3.scanner.Token;
 import com.petar.plox3.scanner.TokenType;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Parser {
+
+    private static final int NONE = 0;
+    private static final int ASSIGNMENT = 1;
+    private static final int OR = 2;
+    private static final int AND = 3;
+    private static final int EQUALITY = 4;
+    private static final int COMPARISON = 5;
+    private static final int TERM = 6;
+    private static final int FACTOR = 7;
+    private static final int UNARY = 8;
+    private static final int CALL = 9;
+
+    private static final int[] INFIX_PRECEDENCE =
+            new int[TokenType.values().length];
+
+    static {
+        INFIX_PRECEDENCE[TokenType.EQUAL.ordinal()] = ASSIGNMENT;
+        INFIX_PRECEDENCE[TokenType.OR.ordinal()] = OR;
+        INFIX_PRECEDENCE[TokenType.AND.ordinal()] = AND;
+        INFIX_PRECEDENCE[TokenType.BANG_EQUAL.ordinal()] = EQUALITY;
+        INFIX_PRECEDENCE[TokenType.EQUAL_EQUAL.ordinal()] = EQUALITY;
+        INFIX_PRECEDENCE[TokenType.GREATER.ordinal()] = COMPARISON;
+        INFIX_PRECEDENCE[TokenType.GREATER_EQUAL.ordinal()] = COMPARISON;
+        INFIX_PRECEDENCE[TokenType.LESS.ordinal()] = COMPARISON;
+        INFIX_PRECEDENCE[TokenType.LESS_EQUAL.ordinal()] = COMPARISON;
+        INFIX_PRECEDENCE[TokenType.MINUS.ordinal()] = TERM;
+        INFIX_PRECEDENCE[TokenType.PLUS.ordinal()] = TERM;
+        INFIX_PRECEDENCE[TokenType.SLASH.ordinal()] = FACTOR;
+        INFIX_PRECEDENCE[TokenType.STAR.ordinal()] = FACTOR;
+        INFIX_PRECEDENCE[TokenType.LEFT_PAREN.ordinal()] = CALL;
+        INFIX_PRECEDENCE[TokenType.DOT.ordinal()] = CALL;
+    }
+
+    private enum ClassKind { NONE, CLASS, SUBCLASS }
+
     private final List<Token> tokens;
     private int currentTokenIndex = 0;
+    // number of enclosing function bodies
+    private int functionDepth = 0;
+    // the class whose method is being parsed; plain functions only see the
+    // globals, so this and super are unavailable in them
+    private ClassKind currentClass = ClassKind.NONE;
+    private boolean inInitializer = false;
+    // the line each declaration starts on, for tools
+    private final Map<Statement, Integer> lines = new IdentityHashMap<>();
+    // names declared so far in the blocks around the current position, up
+    // to the enclosing function; empty at top level, which declares globals
+    private Deque<Set<Symbol>> scopes = new ArrayDeque<>();
+    private final LoopInvariants invariants =
+            new LoopInvariants(lines, this::isLocal);
+
+    // null unless collecting coverage
+    private final Coverage coverage;
 
     public Parser(List<Token> tokens) {
+        this(tokens, null);
+    }
+
+    public Parser(List<Token> tokens, Coverage coverage) {
         this.tokens = tokens;
+        this.coverage = coverage;
+    }
+
+    // parses from the token at position a declaration at a time, see
+    // nextDeclaration
+    Parser(List<Token> tokens, int position) {
+        this(tokens, null);
+        currentTokenIndex = position;
+    }
+
+    public Map<Statement, Integer> lines() {
+        return lines;
     }
 
     public List<Statement> parse() {
@@ -21,27 +98,76 @@ public class Parser {
         while (!isAtEnd()) {
             stmts.add(declaration());
         }
-        return stmts;
+        return new Inliner(lines).inline(stmts);
+    }
+
+    // the next top level declaration, null if it failed to parse
+    Statement nextDeclaration() {
+        return declaration();
+    }
+
+    // the index of the next token
+    int position() {
+        return currentTokenIndex;
     }
 
     private Statement declaration() {
+        int line = peek().line();
         try {
-            if (match(TokenType.FUN)) {
-                return function("function");
-            }
-            if (match(TokenType.VAR)) {
-                return varDeclaration();
+            Statement declaration;
+            if (match(TokenType.CLASS)) {
+                declaration = covered(classDeclaration(), line);
+            } else if (match(TokenType.FUN)) {
+                declaration = covered(function("function"), line);
+            } else if (match(TokenType.VAR)) {
+                declaration = covered(varDeclaration(), line);
+            } else if (match(TokenType.IMPORT)) {
+                declaration = covered(importDeclaration(), line);
+            } else {
+                declaration = statement();
             }
-            return statement();
+            lines.put(declaration, line);
+            return declaration;
         } catch (ParseError error) {
             synchronize();
             return null;
         }
     }
 
-    private Statement function(String kind) {
+    private Statement classDeclaration() {
+        Token name = consume(TokenType.IDENTIFIER, "Expected class name");
+        Expr.Variable superclass = null;
+        if (match(TokenType.LESS)) {
+            Token superName = consume(TokenType.IDENTIFIER,
+                                      "Expected superclass name");
+            if (superName.symbol() == name.symbol()) {
+                error(superName, "A class can't inherit from itself.");
+            }
+            superclass = new Expr.Variable(superName);
+        }
+        declare(name);
+        consume(TokenType.LEFT_BRACE, "Expected { before class body");
+        ClassKind enclosingClass = currentClass;
+        currentClass = superclass == null ? ClassKind.CLASS :
+                ClassKind.SUBCLASS;
+        List<Stmt.Function> methods = new ArrayList<>();
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                methods.add(function("method"));
+            }
+        } finally {
+            currentClass = enclosingClass;
+        }
+        consume(TokenType.RIGHT_BRACE, "Expected } after class body");
+        return new Stmt.Class(name, superclass, methods);
+    }
+
+    private Stmt.Function function(String kind) {
         Token name = consume(TokenType.IDENTIFIER,
                              "Expected %s name".formatted(kind));
+        if (!kind.equals("method")) {
+            declare(name);
+        }
         consume(TokenType.LEFT_PAREN,
                 "Expected ( before %s param list".formatted(kind));
         List<Token> params = new ArrayList<>();
@@ -58,12 +184,52 @@ public class Parser {
                 "Expected ) after %s param list".formatted(kind));
         consume(TokenType.LEFT_BRACE,
                 "Expected { before %s body".formatted(kind));
-        List<Statement> body = block();
-        return new Stmt.Function(name, params, body);
+        ClassKind enclosingClass = currentClass;
+        boolean enclosingInitializer = inInitializer;
+        if (!kind.equals("method")) {
+            currentClass = ClassKind.NONE;
+        }
+        inInitializer = kind.equals("method") &&
+                name.lexeme().equals("init");
+        // functions only see their own locals and the globals
+        Deque<Set<Symbol>> enclosingScopes = scopes;
+        scopes = new ArrayDeque<>();
+        Set<Symbol> parameters = new HashSet<>();
+        params.forEach(param -> parameters.add(param.symbol()));
+        scopes.push(parameters);
+        functionDepth++;
+        try {
+            return new Stmt.Function(name, params, block());
+        } finally {
+            functionDepth--;
+            scopes = enclosingScopes;
+            currentClass = enclosingClass;
+            inInitializer = enclosingInitializer;
+        }
+    }
+
+    private Statement importDeclaration() {
+        Token keyword = previous();
+        if (functionDepth > 0 || !scopes.isEmpty()) {
+            error(keyword, "Can't import outside top-level code.");
+        }
+        Token path = consume(TokenType.STRING, "Expected module path.");
+        consume(TokenType.SEMICOLON, "Expected ; after module path.");
+        String file = path.literal().toString();
+        file = file.substring(Math.max(file.lastIndexOf('/'),
+                                       file.lastIndexOf('\\')) + 1);
+        int extension = file.lastIndexOf('.');
+        String name = extension < 0 ? file : file.substring(0, extension);
+        if (!Scanner.isIdentifier(name)) {
+            error(path, "Module name is not an identifier.");
+        }
+        return new Stmt.Import(keyword, path, new Token(
+                TokenType.IDENTIFIER, name, Symbol.of(name), path.line()));
     }
 
     private Statement varDeclaration() {
         Token name = consume(TokenType.IDENTIFIER, "Expected variable name");
+        declare(name);
         Expression initializer = null;
         if (match(TokenType.EQUAL)) {
             initializer = expression();
@@ -73,33 +239,77 @@ public class Parser {
     }
 
     private Statement statement() {
-        if (match(TokenType.PRINT)) {
-            return printStatement();
-        }
+        int line = peek().line();
         if (match(TokenType.LEFT_BRACE)) {
+            // covered through its statements
             return new Stmt.BlockStatement(block());
         }
-        if (match(TokenType.IF)) {
-            return ifStatement();
+        Statement statement;
+        if (match(TokenType.PRINT)) {
+            statement = printStatement();
+        } else if (match(TokenType.IF)) {
+            statement = ifStatement();
+        } else if (match(TokenType.FOR)) {
+            statement = forStatement();
+        } else if (match(TokenType.WHILE)) {
+            statement = whileStatement();
+        } else if (match(TokenType.RETURN)) {
+            statement = returnStatement();
+        } else {
+            statement = expressionStatement();
+        }
+        return covered(statement, line);
+    }
+
+    private Statement covered(Statement statement, int line) {
+        if (coverage == null) {
+            return statement;
         }
-        if (match(TokenType.FOR)) {
-            return forStatement();
+        return new Stmt.Covered(statement, coverage.statement(line));
+    }
+
+    private CoveragePoint branch(Token token) {
+        return coverage == null ? null : coverage.branch(token.line());
+    }
+
+    private Statement returnStatement() {
+        Token keyword = previous();
+        if (functionDepth == 0) {
+            error(keyword, "Can't return from top-level code.");
         }
-        if (match(TokenType.WHILE)) {
-            return whileStatement();
+        Expression value = null;
+        if (!check(TokenType.SEMICOLON)) {
+            if (inInitializer) {
+                error(keyword, "Can't return a value from an initializer.");
+            }
+            value = expression();
         }
-        return expressionStatement();
+        consume(TokenType.SEMICOLON, "Expected ; after return value.");
+        return new Stmt.ReturnStatement(keyword, value);
     }
 
     private Statement whileStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "expect '(' before while condition");
         Expression condition = expression();
         consume(TokenType.RIGHT_PAREN, "expect ')' after while condition");
         Statement body = statement();
-        return new Stmt.WhileStatement(condition, body);
+        return invariants.hoist(
+                new Stmt.WhileStatement(keyword, condition, body));
     }
 
     private Statement forStatement() {
+        // the initializer is scoped to the loop
+        scopes.push(new HashSet<>());
+        try {
+            return forLoop();
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    private Statement forLoop() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expected '(' in for loop");
         Statement initializer;
         if (match(TokenType.SEMICOLON)) {
@@ -123,6 +333,11 @@ public class Parser {
         consume(TokenType.RIGHT_PAREN, "Expected ')' in for loop");
 
         Statement body = statement();
+        Stmt.CountedFor counted = countedFor(keyword, initializer, condition,
+                                             increment, body);
+        if (counted != null) {
+            return invariants.hoist(counted);
+        }
         if (increment != null) {
             body = new Stmt.BlockStatement(
                     Arrays.asList(body, new Stmt.ExprStatement(increment)));
@@ -130,7 +345,8 @@ public class Parser {
         if (condition == null) {
             condition = new Expr.Literal(true);
         }
-        body = new Stmt.WhileStatement(condition, body);
+        body = invariants.hoist(
+                new Stmt.WhileStatement(keyword, condition, body));
 
         if (initializer != null) {
             body = new Stmt.BlockStatement(Arrays.asList(initializer, body));
@@ -138,7 +354,54 @@ public class Parser {
         return body;
     }
 
+    // recognizes for (var i = a; i < b; i = i + c) with a body that never
+    // assigns i, returns null for every other shape
+    private Stmt.CountedFor countedFor(Token keyword, Statement initializer,
+                                       Expression condition,
+                                       Expression increment, Statement body) {
+        if (!(initializer instanceof Stmt.VarStatement var) ||
+                var.expression() == null) {
+            return null;
+        }
+        Symbol counter = var.name().symbol();
+        if (!(condition instanceof Expr.Binary test) ||
+                !isVariable(test.left(), counter)) {
+            return null;
+        }
+        switch (test.operator().type()) {
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> {
+            }
+            default -> {
+                return null;
+            }
+        }
+        if (!(increment instanceof Expr.Assignment assignment) ||
+                assignment.name().symbol() != counter ||
+                !(assignment.expression() instanceof Expr.Binary step) ||
+                !isVariable(step.left(), counter)) {
+            return null;
+        }
+        TokenType stepType = step.operator().type();
+        if (stepType != TokenType.PLUS && stepType != TokenType.MINUS) {
+            return null;
+        }
+        SymbolUsage usage = new SymbolUsage(counter).scan(test.right())
+                                                    .scan(step.right())
+                                                    .scan(body);
+        if (usage.isAssigned()) {
+            return null;
+        }
+        return new Stmt.CountedFor(keyword, var.name(), var.expression(),
+                                   test, assignment, body, usage.isRead());
+    }
+
+    private static boolean isVariable(Expression expression, Symbol name) {
+        return expression instanceof Expr.Variable variable &&
+                variable.name().symbol() == name;
+    }
+
     private Statement ifStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expected '(' before if condition");
         Expression condition = expression();
         consume(TokenType.RIGHT_PAREN, "Expected ')' after if condition");
@@ -147,18 +410,39 @@ public class Parser {
         if (match(TokenType.ELSE)) {
             elseBranch = statement();
         }
-        return new Stmt.IfStmt(condition, thenBranch, elseBranch);
+        return new Stmt.IfStmt(condition, thenBranch, elseBranch,
+                               branch(keyword));
     }
 
     private List<Statement> block() {
         List<Statement> statements = new ArrayList<>();
-        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+        scopes.push(new HashSet<>());
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
+        } finally {
+            scopes.pop();
         }
         consume(TokenType.RIGHT_BRACE, "expected end of block");
         return statements;
     }
 
+    private void declare(Token name) {
+        if (!scopes.isEmpty()) {
+            scopes.peek().add(name.symbol());
+        }
+    }
+
+    private boolean isLocal(Symbol name) {
+        for (Set<Symbol> scope : scopes) {
+            if (scope.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private Statement expressionStatement() {
         Expression expression = expression();
         consume(TokenType.SEMICOLON, "Expected ; after value.");
@@ -172,110 +456,65 @@ public class Parser {
     }
 
     private Expression expression() {
-        return assignment();
-    }
-
-    private Expression assignment() {
-        // need to parse lValue as it can be something like a.b().c().d
-        Expression lValue = logicOr();
-        if (match(TokenType.EQUAL)) {
-            Token equals = previous();
-            Expression rValue = assignment();
-            // verify lValue is a variable, e.g lValue = !x
-            if (lValue instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) lValue).name();
-                return new Expr.Assignment(name, rValue);
-            }
-            error(equals, "Invalid assignment target.");
-        }
-        return lValue;
+        return parsePrecedence(ASSIGNMENT);
     }
 
-    private Expression logicOr() {
-        Expression expression = logicAnd();
-        while (match(TokenType.OR)) {
+    // Pratt loop: parse a prefix expression, then fold in every infix
+    // operator that binds at least as tightly as the requested precedence
+    private Expression parsePrecedence(int precedence) {
+        Expression expr;
+        // prefix forms are handled inline so that each level of nesting
+        // costs a single frame
+        if (match(TokenType.BANG, TokenType.MINUS)) {
             Token operator = previous();
-            Expression right = logicAnd();
-            expression = new Expr.Logical(expression, operator, right);
+            expr = new Expr.Unary(operator, parsePrecedence(UNARY));
+        } else if (match(TokenType.LEFT_PAREN)) {
+            Expression inner = parsePrecedence(ASSIGNMENT);
+            consume(TokenType.RIGHT_PAREN, "Expected ) but not found");
+            expr = new Expr.Grouping(inner);
+        } else {
+            expr = primary();
         }
-        return expression;
-    }
-
-    private Expression logicAnd() {
-        Expression expression = equality();
-        while (match(TokenType.AND)) {
-            Token operator = previous();
-            Expression right = equality();
-            expression = new Expr.Logical(expression, operator, right);
+        while (true) {
+            TokenType type = peek().type();
+            int infix = INFIX_PRECEDENCE[type.ordinal()];
+            if (infix == NONE || infix < precedence) {
+                return expr;
+            }
+            Token operator = advance();
+            switch (type) {
+                case EQUAL -> expr = assignment(expr, operator);
+                case LEFT_PAREN -> expr = finishCall(expr);
+                case DOT -> expr = new Expr.Get(expr, consume(
+                        TokenType.IDENTIFIER, "Expected property name"));
+                case OR, AND -> expr = new Expr.Logical(
+                        expr, operator, parsePrecedence(infix + 1),
+                        branch(operator));
+                default -> expr = new Expr.Binary(expr, operator,
+                                                  parsePrecedence(infix + 1));
+            }
         }
-        return expression;
     }
 
-    private Expression equality() {
-        Expression expr = comparison();
-        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expression right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expression assignment(Expression lValue, Token equals) {
+        // right associative, a = b = c assigns c to both
+        Expression rValue = parsePrecedence(ASSIGNMENT);
+        // verify lValue is a variable, e.g lValue = !x
+        if (lValue instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) lValue).name();
+            return new Expr.Assignment(name, rValue);
+        }
+        if (lValue instanceof Expr.Get get) {
+            return new Expr.Set(get.object(), get.name(), rValue);
         }
-        return expr;
+        error(equals, "Invalid assignment target.");
+        return lValue;
     }
 
     private Token previous() {
         return tokens.get(currentTokenIndex - 1);
     }
 
-    private Expression comparison() {
-        Expression expr = term();
-        while (match(TokenType.LESS, TokenType.LESS_EQUAL, TokenType.GREATER,
-                     TokenType.GREATER_EQUAL)) {
-            Token operator = previous();
-            Expression right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expression term() {
-        Expression expr = factor();
-        while (match(TokenType.MINUS, TokenType.PLUS)) {
-            Token operator = previous();
-            Expression right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expression factor() {
-        Expression expr = unary();
-        while (match(TokenType.SLASH, TokenType.STAR)) {
-            Token operator = previous();
-            Expression right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expression unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            return new Expr.Unary(operator, unary());
-        }
-        return call();
-    }
-
-    private Expression call() {
-        Expression expr = primary();
-        while (true) {
-            if (match(TokenType.LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else {
-                break;
-            }
-        }
-        return expr;
-    }
-
     private Expression finishCall(Expression expr) {
         List<Expression> args = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
@@ -304,14 +543,28 @@ public class Parser {
         if (match(TokenType.NUMBER, TokenType.STRING)) {
             return new Expr.Literal(previous().literal());
         }
-        if (match(TokenType.LEFT_PAREN)) {
-            Expression expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expected ) but not found");
-            return new Expr.Grouping(expr);
-        }
         if (match(TokenType.IDENTIFIER)) {
             return new Expr.Variable(previous());
         }
+        if (match(TokenType.THIS)) {
+            if (currentClass == ClassKind.NONE) {
+                error(previous(), "Can't use 'this' outside of a method.");
+            }
+            return new Expr.This(previous());
+        }
+        if (match(TokenType.SUPER)) {
+            Token keyword = previous();
+            if (currentClass == ClassKind.NONE) {
+                error(keyword, "Can't use 'super' outside of a method.");
+            } else if (currentClass == ClassKind.CLASS) {
+                error(keyword,
+                      "Can't use 'super' in a class with no superclass.");
+            }
+            consume(TokenType.DOT, "Expected . after super");
+            Token method = consume(TokenType.IDENTIFIER,
+                                   "Expected superclass method name");
+            return new Expr.Super(keyword, method);
+        }
         throw error(peek(), "Expect expression.");
     }
 
@@ -323,7 +576,7 @@ public class Parser {
                 return;
             }
             switch (peek().type()) {
-                case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN -> {
+                case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN, IMPORT -> {
                     return;
                 }
             }
@@ -0,0 +1,351 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the top level functions whose result depends only on their
+ * arguments: they never print, assign and read only their own locals, and
+ * call only pure functions. Fields can change between calls, so functions
+ * touching instances are never pure. Reading a global could observe a
+ * change between calls, so only the names of pure functions may be read.
+ * Every candidate starts out pure and is demoted until nothing changes,
+ * which accepts recursion and mutual recursion.
+ * <p>
+ * This holds for one program. Globals that outlive it, as in the REPL or
+ * an engine, may be rebound by a later program, which {@link #rebinds}
+ * tells for the names in {@link #globalsRead}.
+ */
+public final class Purity implements ExprVisitor<Void>, StmtVisitor<Void> {
+
+    // natives whose result depends only on their arguments; clock reads the
+    // wall clock, so it is not one of them
+    private static final Set<Symbol> PURE_NATIVES =
+            Set.of(Symbol.of("length"), Symbol.of("get"));
+
+    private final Map<Symbol, Stmt.Function> candidates;
+    private final Set<Symbol> natives;
+    private final Deque<Set<Symbol>> scopes = new ArrayDeque<>();
+    // globals read or called by the function being checked
+    private final Set<Symbol> reads = new HashSet<>();
+    private boolean pure;
+
+    private Purity(Map<Symbol, Stmt.Function> candidates,
+                   Set<Symbol> natives) {
+        this.candidates = candidates;
+        this.natives = natives;
+    }
+
+    public static Set<Stmt.Function> analyze(List<Statement> program) {
+        Map<Symbol, Stmt.Function> candidates = new HashMap<>();
+        Set<Symbol> rebound = new HashSet<>();
+        for (Statement statement : program) {
+            statement = unwrap(statement);
+            if (statement instanceof Stmt.Function function) {
+                Symbol name = function.name().symbol();
+                if (candidates.put(name, function) != null) {
+                    rebound.add(name);
+                }
+            } else if (statement instanceof Stmt.VarStatement var) {
+                rebound.add(var.name().symbol());
+            } else if (statement instanceof Stmt.Class klass) {
+                rebound.add(klass.name().symbol());
+            } else if (statement instanceof Stmt.Import imported) {
+                rebound.add(imported.name().symbol());
+            }
+        }
+        // a call by name must always reach the analyzed declaration
+        candidates.keySet().removeIf(name -> rebound.contains(name) ||
+                isAssigned(name, program));
+        Set<Symbol> natives = new HashSet<>(PURE_NATIVES);
+        natives.removeIf(name -> rebound.contains(name) ||
+                candidates.containsKey(name) || isAssigned(name, program));
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Iterator<Stmt.Function> it = candidates.values().iterator();
+            while (it.hasNext()) {
+                if (!new Purity(candidates, natives).isPure(it.next())) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+        }
+        Set<Stmt.Function> pure =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+        pure.addAll(candidates.values());
+        return pure;
+    }
+
+    // the globals function reads or calls, its callees' not included
+    public static Set<Symbol> globalsRead(Stmt.Function function) {
+        Purity scan = new Purity(Map.of(), Set.of());
+        scan.isPure(function);
+        return scan.reads;
+    }
+
+    // whether program declares name at top level or assigns it anywhere
+    public static boolean rebinds(List<Statement> program, Symbol name) {
+        for (Statement statement : program) {
+            statement = unwrap(statement);
+            Token declared =
+                    statement instanceof Stmt.Function function ?
+                            function.name() :
+                    statement instanceof Stmt.VarStatement var ?
+                            var.name() :
+                    statement instanceof Stmt.Class klass ? klass.name() :
+                    statement instanceof Stmt.Import imported ?
+                            imported.name() : null;
+            if (declared != null && declared.symbol() == name) {
+                return true;
+            }
+        }
+        return isAssigned(name, program);
+    }
+
+    private static Statement unwrap(Statement statement) {
+        if (statement instanceof Stmt.Probed probed) {
+            statement = probed.statement();
+        }
+        if (statement instanceof Stmt.Covered covered) {
+            statement = covered.statement();
+        }
+        return statement;
+    }
+
+    private static boolean isAssigned(Symbol name, List<Statement> program) {
+        SymbolUsage usage = new SymbolUsage(name);
+        program.forEach(usage::scan);
+        return usage.isAssigned();
+    }
+
+    private boolean isPure(Stmt.Function function) {
+        pure = true;
+        Set<Symbol> frame = new HashSet<>();
+        function.params().forEach(param -> frame.add(param.symbol()));
+        scopes.push(frame);
+        function.body().forEach(this::scan);
+        scopes.pop();
+        return pure;
+    }
+
+    private boolean isLocal(Symbol name) {
+        for (Set<Symbol> scope : scopes) {
+            if (scope.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isPureGlobal(Symbol name) {
+        return !isLocal(name) && (candidates.containsKey(name) ||
+                natives.contains(name));
+    }
+
+    private void scan(Expression expression) {
+        if (expression != null) {
+            expression.accept(this);
+        }
+    }
+
+    private void scan(Statement statement) {
+        if (statement != null) {
+            statement.accept(this);
+        }
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        scan(expr.left());
+        scan(expr.right());
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary unary) {
+        scan(unary.expr());
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping grouping) {
+        scan(grouping.expr());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal literal) {
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable variable) {
+        Symbol name = variable.name().symbol();
+        if (!isLocal(name)) {
+            reads.add(name);
+        }
+        pure &= isLocal(name) || isPureGlobal(name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(Expr.Assignment assignment) {
+        scan(assignment.expression());
+        pure &= isLocal(assignment.name().symbol());
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical logical) {
+        scan(logical.left());
+        scan(logical.right());
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call call) {
+        // a local could hold any callable, so only direct calls of pure
+        // globals qualify
+        pure &= call.callee() instanceof Expr.Variable callee &&
+                isPureGlobal(callee.name().symbol());
+        if (call.callee() instanceof Expr.Variable callee &&
+                !isLocal(callee.name().symbol())) {
+            reads.add(callee.name().symbol());
+        }
+        call.arguments().forEach(this::scan);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
+        pure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitExprStatement(Stmt.ExprStatement exprStatement) {
+        scan(exprStatement.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitVarStatement(Stmt.VarStatement varStatement) {
+        scan(varStatement.expression());
+        scopes.peek().add(varStatement.name().symbol());
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
+        scopes.push(new HashSet<>());
+        blockStatement.statementList().forEach(this::scan);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(Stmt.IfStmt ifStmt) {
+        scan(ifStmt.condition());
+        scan(ifStmt.then());
+        scan(ifStmt.elseStmt());
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        scan(whileStatement.condition());
+        scan(whileStatement.body());
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Stmt.Function function) {
+        // declares a local; its body only runs if it is called, and calls
+        // through locals are already impure
+        scopes.peek().add(function.name().symbol());
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+        scan(returnStatement.value());
+        return null;
+    }
+
+    @Override
+    public Void visitCountedForStatement(Stmt.CountedFor countedFor) {
+        scan(countedFor.desugar());
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get get) {
+        pure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set set) {
+        pure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This thisExpr) {
+        pure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super superExpr) {
+        pure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitInlinedExpr(Expr.Inlined inlined) {
+        return visitCallExpr(inlined.call());
+    }
+
+    @Override
+    public Void visitClassStatement(Stmt.Class classStatement) {
+        // like a nested function, its methods only run when called
+        scan(classStatement.superclass());
+        scopes.peek().add(classStatement.name().symbol());
+        return null;
+    }
+
+    @Override
+    public Void visitImportStatement(Stmt.Import importStatement) {
+        scopes.peek().add(importStatement.name().symbol());
+        return null;
+    }
+
+    @Override
+    public Void visitProbedStatement(Stmt.Probed probed) {
+        // listeners would miss the calls answered from the cache
+        pure = false;
+        scan(probed.statement());
+        return null;
+    }
+
+    @Override
+    public Void visitCoveredStatement(Stmt.Covered covered) {
+        // a cached result ran the same statements when it was computed
+        scan(covered.statement());
+        return null;
+    }
+}
@@ -0,0 +1,18 @@
+package com.petar.plox3.parser;
+
+/**
+ * Unwinds the interpreter from a return statement to the enclosing call.
+ * Carries no stack trace, since it is control flow rather than an error.
+ */
+public class Return extends RuntimeException {
+    private final Object value;
+
+    public Return(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+}
@@ -1,7 +1,11 @@
 package com.petar.plox3.parser;
 
+import com.petar.plox3.coverage.CoveragePoint;
+import com.petar.plox3.instrument.Probe;
 import com.petar.plox3.scanner.Token;
+import com.petar.plox3.trace.LoopTrace;
 
+import java.util.Arrays;
 import java.util.List;
 
 public record Stmt() {
@@ -36,8 +40,15 @@ public record Stmt() {
         }
     }
 
+    // branch is only set when collecting coverage
     public record IfStmt(Expression condition, Statement then,
-                         Statement elseStmt) implements Statement {
+                         Statement elseStmt, CoveragePoint branch)
+            implements Statement {
+
+        public IfStmt(Expression condition, Statement then,
+                      Statement elseStmt) {
+            this(condition, then, elseStmt, null);
+        }
 
         @Override
         public <R> R accept(StmtVisitor<R> visitor) {
@@ -45,14 +56,29 @@ public record Stmt() {
         }
     }
 
-    public record WhileStatement(Expression condition, Statement body)
+    public record WhileStatement(Token keyword, Expression condition,
+                                 Statement body, LoopTrace trace)
             implements Statement {
+
+        public WhileStatement(Token keyword, Expression condition,
+                              Statement body) {
+            this(keyword, condition, body, new LoopTrace());
+        }
+
         @Override
         public <R> R accept(StmtVisitor<R> visitor) {
             return visitor.visitWhileStatement(this);
         }
     }
 
+    public record ReturnStatement(Token keyword, Expression value)
+            implements Statement {
+        @Override
+        public <R> R accept(StmtVisitor<R> visitor) {
+            return visitor.visitReturnStatement(this);
+        }
+    }
+
     public record Function(Token name, List<Token> params, List<Statement> body)
             implements Statement {
 
@@ -61,4 +87,99 @@ public record Stmt() {
             return visitor.visitFunctionStatement(this);
         }
     }
+
+    /**
+     * A for loop of the shape {@code for (var i = a; i < b; i = i + c)}
+     * whose body never assigns {@code i}. The condition may use any
+     * comparison and the increment may subtract.
+     */
+    public record CountedFor(Token keyword, Token name, Expression from,
+                             Expr.Binary condition, Expr.Assignment increment,
+                             Statement body, boolean readsCounter,
+                             LoopTrace trace) implements Statement {
+
+        public CountedFor(Token keyword, Token name, Expression from,
+                          Expr.Binary condition, Expr.Assignment increment,
+                          Statement body, boolean readsCounter) {
+            this(keyword, name, from, condition, increment, body,
+                 readsCounter, new LoopTrace());
+        }
+
+        public Expression limit() {
+            return condition.right();
+        }
+
+        public Expr.Binary step() {
+            return (Expr.Binary) increment.expression();
+        }
+
+        // the loop part of the generic desugaring, run with the counter
+        // already defined
+        public WhileStatement asWhile() {
+            return new WhileStatement(keyword, condition, new BlockStatement(
+                    Arrays.asList(body, new ExprStatement(increment))));
+        }
+
+        public BlockStatement desugar() {
+            return new BlockStatement(
+                    Arrays.asList(new VarStatement(name, from), asWhile()));
+        }
+
+        @Override
+        public <R> R accept(StmtVisitor<R> visitor) {
+            return visitor.visitCountedForStatement(this);
+        }
+    }
+
+    public record Class(Token name, Expr.Variable superclass,
+                        List<Function> methods) implements Statement {
+
+        @Override
+        public <R> R accept(StmtVisitor<R> visitor) {
+            return visitor.visitClassStatement(this);
+        }
+    }
+
+    /**
+     * {@code import "path";} at top level. The module's globals become the
+     * properties of the value bound to name, which is the file name up to
+     * its extension.
+     */
+    public record Import(Token keyword, Token path, Token name)
+            implements Statement {
+
+        // the path as written, relative to the importing file
+        public String location() {
+            return (String) path.literal();
+        }
+
+        @Override
+        public <R> R accept(StmtVisitor<R> visitor) {
+            return visitor.visitImportStatement(this);
+        }
+    }
+
+    /**
+     * A statement with probes attached. An {@link
+     * com.petar.plox3.instrument.Instrumenter} swaps it into the statement's
+     * list and swaps the statement back once the last probe is detached.
+     */
+    public record Probed(Statement statement, Probe probe)
+            implements Statement {
+
+        @Override
+        public <R> R accept(StmtVisitor<R> visitor) {
+            return visitor.visitProbedStatement(this);
+        }
+    }
+
+    // a statement whose execution is recorded for --coverage
+    public record Covered(Statement statement, CoveragePoint point)
+            implements Statement {
+
+        @Override
+        public <R> R accept(StmtVisitor<R> visitor) {
+            return visitor.visitCoveredStatement(this);
+        }
+    }
 }
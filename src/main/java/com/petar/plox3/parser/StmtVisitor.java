@@ -15,4 +15,16 @@ public interface StmtVisitor<R> {
     R visitWhileStatement(Stmt.WhileStatement whileStatement);
 
     R visitFunctionStatement(Stmt.Function function);
+
+    R visitReturnStatement(Stmt.ReturnStatement returnStatement);
+
+    R visitCountedForStatement(Stmt.CountedFor countedFor);
+
+    R visitClassStatement(Stmt.Class classStatement);
+
+    R visitImportStatement(Stmt.Import importStatement);
+
+    R visitProbedStatement(Stmt.Probed probed);
+
+    R visitCoveredStatement(Stmt.Covered covered);
 }
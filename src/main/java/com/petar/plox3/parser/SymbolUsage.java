@@ -0,0 +1,195 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.scanner.Symbol;
+
+/**
+ * Syntactic scan for reads and assignments of one name. Scopes are ignored,
+ * so the answers are conservative: a shadowing declaration or a global of
+ * the same name inside a nested function still counts.
+ */
+class SymbolUsage implements ExprVisitor<Void>, StmtVisitor<Void> {
+
+    private final Symbol symbol;
+    private boolean read = false;
+    private boolean assigned = false;
+
+    SymbolUsage(Symbol symbol) {
+        this.symbol = symbol;
+    }
+
+    boolean isRead() {
+        return read;
+    }
+
+    boolean isAssigned() {
+        return assigned;
+    }
+
+    SymbolUsage scan(Expression expression) {
+        if (expression != null) {
+            expression.accept(this);
+        }
+        return this;
+    }
+
+    SymbolUsage scan(Statement statement) {
+        if (statement != null) {
+            statement.accept(this);
+        }
+        return this;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        scan(expr.left());
+        scan(expr.right());
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary unary) {
+        return unary.expr().accept(this);
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping grouping) {
+        return grouping.expr().accept(this);
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal literal) {
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable variable) {
+        read |= variable.name().symbol() == symbol;
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(Expr.Assignment assignment) {
+        assigned |= assignment.name().symbol() == symbol;
+        return assignment.expression().accept(this);
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical logical) {
+        scan(logical.left());
+        scan(logical.right());
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call call) {
+        scan(call.callee());
+        call.arguments().forEach(this::scan);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
+        return printStatement.expression().accept(this);
+    }
+
+    @Override
+    public Void visitExprStatement(Stmt.ExprStatement exprStatement) {
+        return exprStatement.expression().accept(this);
+    }
+
+    @Override
+    public Void visitVarStatement(Stmt.VarStatement varStatement) {
+        scan(varStatement.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
+        blockStatement.statementList().forEach(this::scan);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(Stmt.IfStmt ifStmt) {
+        scan(ifStmt.condition());
+        scan(ifStmt.then());
+        scan(ifStmt.elseStmt());
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        scan(whileStatement.condition());
+        scan(whileStatement.body());
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Stmt.Function function) {
+        function.body().forEach(this::scan);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+        scan(returnStatement.value());
+        return null;
+    }
+
+    @Override
+    public Void visitCountedForStatement(Stmt.CountedFor countedFor) {
+        return countedFor.desugar().accept(this);
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get get) {
+        scan(get.object());
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set set) {
+        scan(set.object());
+        scan(set.value());
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This thisExpr) {
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super superExpr) {
+        return null;
+    }
+
+    @Override
+    public Void visitInlinedExpr(Expr.Inlined inlined) {
+        return visitCallExpr(inlined.call());
+    }
+
+    @Override
+    public Void visitClassStatement(Stmt.Class classStatement) {
+        scan(classStatement.superclass());
+        classStatement.methods().forEach(this::scan);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStatement(Stmt.Import importStatement) {
+        return null;
+    }
+
+    @Override
+    public Void visitProbedStatement(Stmt.Probed probed) {
+        scan(probed.statement());
+        return null;
+    }
+
+    @Override
+    public Void visitCoveredStatement(Stmt.Covered covered) {
+        scan(covered.statement());
+        return null;
+    }
+}
@@ -0,0 +1,285 @@
+package com.petar.plox3.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies a syntax tree with some nodes replaced. A node is only rebuilt
+ * when something below it changed, so untouched subtrees keep their
+ * identity, and with it their property caches, coverage points and loop
+ * traces.
+ * Rebuilt statements take over the line of the one they replace.
+ */
+abstract class TreeRewriter implements ExprVisitor<Expression>,
+        StmtVisitor<Statement> {
+
+    private final Map<Statement, Integer> lines;
+
+    // lines is the parser's line table, kept up to date for rebuilt
+    // statements
+    TreeRewriter(Map<Statement, Integer> lines) {
+        this.lines = lines;
+    }
+
+    Expression rewrite(Expression expression) {
+        return expression == null ? null : expression.accept(this);
+    }
+
+    // null for the statements of a declaration that failed to parse
+    Statement rewrite(Statement statement) {
+        return statement == null ? null : statement.accept(this);
+    }
+
+    // the same list if no statement changed
+    List<Statement> rewrite(List<Statement> statements) {
+        List<Statement> rewritten = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Statement statement : statements) {
+            Statement result = rewrite(statement);
+            changed |= result != statement;
+            rewritten.add(result);
+        }
+        return changed ? rewritten : statements;
+    }
+
+    // a rebuilt statement keeps the line of the one it replaces
+    Statement rebuilt(Statement old, Statement statement) {
+        Integer line = lines.remove(old);
+        if (line != null) {
+            lines.put(statement, line);
+        }
+        return statement;
+    }
+
+    static Stmt.CountedFor counted(Stmt.CountedFor loop, Expression from,
+                                   Expression limit, Expression step,
+                                   Statement body) {
+        Expr.Binary condition = loop.condition();
+        Expr.Binary increment = loop.step();
+        return new Stmt.CountedFor(
+                loop.keyword(), loop.name(), from,
+                new Expr.Binary(condition.left(), condition.operator(),
+                                limit),
+                new Expr.Assignment(loop.increment().name(), new Expr.Binary(
+                        increment.left(), increment.operator(), step)),
+                body, loop.readsCounter(), loop.trace());
+    }
+
+    @Override
+    public Expression visitBinaryExpr(Expr.Binary expr) {
+        Expression left = rewrite(expr.left());
+        Expression right = rewrite(expr.right());
+        if (left == expr.left() && right == expr.right()) {
+            return expr;
+        }
+        return new Expr.Binary(left, expr.operator(), right);
+    }
+
+    @Override
+    public Expression visitUnaryExpr(Expr.Unary unary) {
+        Expression operand = rewrite(unary.expr());
+        return operand == unary.expr() ? unary :
+                new Expr.Unary(unary.operator(), operand);
+    }
+
+    @Override
+    public Expression visitGroupingExpr(Expr.Grouping grouping) {
+        Expression inner = rewrite(grouping.expr());
+        return inner == grouping.expr() ? grouping : new Expr.Grouping(inner);
+    }
+
+    @Override
+    public Expression visitLiteralExpr(Expr.Literal literal) {
+        return literal;
+    }
+
+    @Override
+    public Expression visitVariableExpr(Expr.Variable variable) {
+        return variable;
+    }
+
+    @Override
+    public Expression visitAssignmentExpr(Expr.Assignment assignment) {
+        Expression value = rewrite(assignment.expression());
+        return value == assignment.expression() ? assignment :
+                new Expr.Assignment(assignment.name(), value);
+    }
+
+    @Override
+    public Expression visitLogicalExpr(Expr.Logical logical) {
+        Expression left = rewrite(logical.left());
+        Expression right = rewrite(logical.right());
+        if (left == logical.left() && right == logical.right()) {
+            return logical;
+        }
+        return new Expr.Logical(left, logical.operator(), right,
+                                logical.branch());
+    }
+
+    @Override
+    public Expression visitCallExpr(Expr.Call call) {
+        Expression callee = rewrite(call.callee());
+        List<Expression> arguments = new ArrayList<>();
+        boolean changed = callee != call.callee();
+        for (Expression argument : call.arguments()) {
+            Expression rewritten = rewrite(argument);
+            changed |= rewritten != argument;
+            arguments.add(rewritten);
+        }
+        return changed ? new Expr.Call(callee, call.paren(), arguments) :
+                call;
+    }
+
+    @Override
+    public Expression visitGetExpr(Expr.Get get) {
+        Expression object = rewrite(get.object());
+        return object == get.object() ? get :
+                new Expr.Get(object, get.name(), get.site());
+    }
+
+    @Override
+    public Expression visitSetExpr(Expr.Set set) {
+        Expression object = rewrite(set.object());
+        Expression value = rewrite(set.value());
+        if (object == set.object() && value == set.value()) {
+            return set;
+        }
+        return new Expr.Set(object, set.name(), value, set.site());
+    }
+
+    @Override
+    public Expression visitThisExpr(Expr.This thisExpr) {
+        return thisExpr;
+    }
+
+    @Override
+    public Expression visitSuperExpr(Expr.Super superExpr) {
+        return superExpr;
+    }
+
+    // already rewritten, the inlined body runs as declared
+    @Override
+    public Expression visitInlinedExpr(Expr.Inlined inlined) {
+        return inlined;
+    }
+
+    @Override
+    public Statement visitPrintStatement(Stmt.PrintStatement printStatement) {
+        Expression value = rewrite(printStatement.expression());
+        return value == printStatement.expression() ? printStatement :
+                rebuilt(printStatement, new Stmt.PrintStatement(value));
+    }
+
+    @Override
+    public Statement visitExprStatement(Stmt.ExprStatement exprStatement) {
+        Expression value = rewrite(exprStatement.expression());
+        return value == exprStatement.expression() ? exprStatement :
+                rebuilt(exprStatement, new Stmt.ExprStatement(value));
+    }
+
+    @Override
+    public Statement visitVarStatement(Stmt.VarStatement varStatement) {
+        Expression value = rewrite(varStatement.expression());
+        return value == varStatement.expression() ? varStatement :
+                rebuilt(varStatement,
+                        new Stmt.VarStatement(varStatement.name(), value));
+    }
+
+    @Override
+    public Statement visitBlockStatement(Stmt.BlockStatement blockStatement) {
+        List<Statement> statements = rewrite(blockStatement.statementList());
+        return statements == blockStatement.statementList() ? blockStatement :
+                rebuilt(blockStatement, new Stmt.BlockStatement(statements));
+    }
+
+    @Override
+    public Statement visitIfStatement(Stmt.IfStmt ifStmt) {
+        Expression condition = rewrite(ifStmt.condition());
+        Statement then = rewrite(ifStmt.then());
+        Statement elseStmt = rewrite(ifStmt.elseStmt());
+        if (condition == ifStmt.condition() && then == ifStmt.then() &&
+                elseStmt == ifStmt.elseStmt()) {
+            return ifStmt;
+        }
+        return rebuilt(ifStmt, new Stmt.IfStmt(condition, then, elseStmt,
+                                               ifStmt.branch()));
+    }
+
+    @Override
+    public Statement visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        Expression condition = rewrite(whileStatement.condition());
+        Statement body = rewrite(whileStatement.body());
+        if (condition == whileStatement.condition() &&
+                body == whileStatement.body()) {
+            return whileStatement;
+        }
+        return rebuilt(whileStatement, new Stmt.WhileStatement(
+                whileStatement.keyword(), condition, body,
+                whileStatement.trace()));
+    }
+
+    @Override
+    public Statement visitCountedForStatement(Stmt.CountedFor countedFor) {
+        Expression from = rewrite(countedFor.from());
+        Expression limit = rewrite(countedFor.limit());
+        Expression step = rewrite(countedFor.step().right());
+        Statement body = rewrite(countedFor.body());
+        if (from == countedFor.from() && limit == countedFor.limit() &&
+                step == countedFor.step().right() &&
+                body == countedFor.body()) {
+            return countedFor;
+        }
+        return rebuilt(countedFor,
+                       counted(countedFor, from, limit, step, body));
+    }
+
+    @Override
+    public Statement visitFunctionStatement(Stmt.Function function) {
+        List<Statement> body = rewrite(function.body());
+        return body == function.body() ? function :
+                rebuilt(function, new Stmt.Function(
+                        function.name(), function.params(), body));
+    }
+
+    @Override
+    public Statement visitClassStatement(Stmt.Class classStatement) {
+        List<Stmt.Function> methods = new ArrayList<>();
+        boolean changed = false;
+        for (Stmt.Function method : classStatement.methods()) {
+            Stmt.Function rewritten =
+                    (Stmt.Function) visitFunctionStatement(method);
+            changed |= rewritten != method;
+            methods.add(rewritten);
+        }
+        return changed ? rebuilt(classStatement, new Stmt.Class(
+                classStatement.name(), classStatement.superclass(),
+                methods)) : classStatement;
+    }
+
+    @Override
+    public Statement visitImportStatement(Stmt.Import importStatement) {
+        return importStatement;
+    }
+
+    @Override
+    public Statement visitReturnStatement(
+            Stmt.ReturnStatement returnStatement) {
+        Expression value = rewrite(returnStatement.value());
+        return value == returnStatement.value() ? returnStatement :
+                rebuilt(returnStatement, new Stmt.ReturnStatement(
+                        returnStatement.keyword(), value));
+    }
+
+    @Override
+    public Statement visitCoveredStatement(Stmt.Covered covered) {
+        Statement statement = rewrite(covered.statement());
+        return statement == covered.statement() ? covered :
+                rebuilt(covered, new Stmt.Covered(statement, covered.point()));
+    }
+
+    @Override
+    public Statement visitProbedStatement(Stmt.Probed probed) {
+        return probed;
+    }
+}
@@ -25,5 +25,6 @@ public class Keywords {
         MAP.put("true", TokenType.TRUE);
         MAP.put("var", TokenType.VAR);
         MAP.put("while", TokenType.WHILE);
+        MAP.put("import", TokenType.IMPORT);
     }
 }
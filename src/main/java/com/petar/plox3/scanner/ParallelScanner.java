@@ -0,0 +1,126 @@
+package com.petar.plox3.scanner;
+
+import com.petar.plox3.Plox3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Scans large sources in chunks on several threads, producing the same
+ * tokens and errors as {@link Scanner}.
+ * <p>
+ * A pre-pass finds where chunks may start: just after a newline that is
+ * not inside a string, which only needs quotes, {@code //} and newlines to
+ * be looked at. It counts lines on the way, so each chunk knows the line
+ * it starts on. No token spans a newline outside of strings, so chunks
+ * scan independently and their tokens are simply concatenated. Errors are
+ * kept per chunk and reported in source order.
+ */
+public final class ParallelScanner {
+
+    // below this many characters per chunk, threads cost more than they save
+    private static final int MIN_CHUNK = 1 << 16;
+
+    private static final int PARALLELISM = Integer.getInteger(
+            "plox3.parallelism", Runtime.getRuntime().availableProcessors());
+
+    private final String source;
+    private final int chunks;
+
+    public ParallelScanner(String source) {
+        this(source, Math.min(PARALLELISM, source.length() / MIN_CHUNK));
+    }
+
+    ParallelScanner(String source, int chunks) {
+        this.source = source;
+        this.chunks = chunks;
+    }
+
+    public List<Token> scanTokens() {
+        if (chunks < 2) {
+            return new Scanner(source).scanTokens();
+        }
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> lines = new ArrayList<>();
+        split(starts, lines);
+        int count = starts.size();
+        List<List<Scanner.Problem>> problems = new ArrayList<>(count);
+        List<Callable<List<Token>>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            List<Scanner.Problem> found = new ArrayList<>();
+            problems.add(found);
+            boolean last = i == count - 1;
+            Scanner scanner = new Scanner(
+                    source, starts.get(i),
+                    last ? source.length() : starts.get(i + 1), lines.get(i),
+                    new SymbolTable(SymbolTable.INSTANCE), found);
+            tasks.add(last ? scanner::scanTokens : scanner::scanChunk);
+        }
+        List<List<Token>> scanned = new ArrayList<>(count);
+        int size = 0;
+        for (Future<List<Token>> future : ForkJoinPool.commonPool()
+                                                      .invokeAll(tasks)) {
+            List<Token> tokens = join(future);
+            scanned.add(tokens);
+            size += tokens.size();
+        }
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < count; i++) {
+            tokens.addAll(scanned.get(i));
+            for (Scanner.Problem problem : problems.get(i)) {
+                Plox3.error(problem.line(), problem.message());
+            }
+        }
+        return tokens;
+    }
+
+    // the chunk starts and their lines; the first chunk starts the source
+    private void split(List<Integer> starts, List<Integer> lines) {
+        int length = source.length();
+        int size = length / chunks;
+        starts.add(0);
+        lines.add(1);
+        int next = size;
+        int line = 1;
+        boolean inString = false;
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            if (c == '\n') {
+                line++;
+                if (!inString && i + 1 >= next && i + 1 < length) {
+                    starts.add(i + 1);
+                    lines.add(line);
+                    next = i + 1 + size;
+                }
+            } else if (c == '"') {
+                inString = !inString;
+            } else if (c == '/' && !inString && i + 1 < length &&
+                    source.charAt(i + 1) == '/') {
+                // the newline ending the comment is seen by the loop
+                int newline = source.indexOf('\n', i);
+                if (newline < 0) {
+                    break;
+                }
+                i = newline - 1;
+            }
+        }
+    }
+
+    private static List<Token> join(Future<List<Token>> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw (Error) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
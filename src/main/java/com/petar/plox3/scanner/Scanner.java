@@ -4,28 +4,92 @@ import com.petar.plox3.Plox3;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntPredicate;
 
 public class Scanner {
 
+    // an error found in a chunk, reported once the chunks before it are;
+    // offset is where the token it was found in starts
+    public record Problem(int line, int offset, String message) {}
+
     private final String source;
+    private final int end;
+    private final SymbolTable symbols;
+    // null when errors are reported as they are found
+    private final List<Problem> problems;
     private final List<Token> tokens = new ArrayList<>();
-    private int startOfTheToken = 0;
-    private int currentCharacterPosition = 0;
-    private int line = 1;
+    private int startOfTheToken;
+    private int currentCharacterPosition;
+    private int line;
 
     public Scanner(String source) {
+        this(source, 0, source.length(), 1, SymbolTable.INSTANCE, null);
+    }
+
+    // rescans source from start, which may not fall inside a token, string
+    // or comment, collecting errors in problems
+    public Scanner(String source, int start, int line,
+                   List<Problem> problems) {
+        this(source, start, source.length(), line, SymbolTable.INSTANCE,
+             problems);
+    }
+
+    // scans source from start up to end, neither of which may fall inside
+    // a token, string or comment
+    Scanner(String source, int start, int end, int line, SymbolTable symbols,
+            List<Problem> problems) {
         this.source = source;
+        this.end = end;
+        this.symbols = symbols;
+        this.problems = problems;
+        this.startOfTheToken = start;
+        this.currentCharacterPosition = start;
+        this.line = line;
     }
 
     public List<Token> scanTokens() {
+        scanChunk();
+        tokens.add(new Token(TokenType.EOF, "", null, line));
+        return tokens;
+    }
+
+    // the tokens up to end, without the EOF token
+    List<Token> scanChunk() {
         while (!isAtEnd()) {
             startOfTheToken = currentCharacterPosition;
             scanToken();
         }
-        tokens.add(new Token(TokenType.EOF, "", null, line));
         return tokens;
     }
 
+    // the tokens up to the first position where a token could start that
+    // stop accepts, or to the end, without the EOF token; offsets receives
+    // where each of them starts
+    public List<Token> scanUntil(IntPredicate stop, List<Integer> offsets) {
+        while (!isAtEnd() && !stop.test(currentCharacterPosition)) {
+            startOfTheToken = currentCharacterPosition;
+            int count = tokens.size();
+            scanToken();
+            if (tokens.size() > count) {
+                offsets.add(startOfTheToken);
+            }
+        }
+        return tokens;
+    }
+
+    // where scanning stopped
+    public int position() {
+        return currentCharacterPosition;
+    }
+
+    private void error(String message) {
+        if (problems == null) {
+            Plox3.error(line, message);
+        } else {
+            problems.add(new Problem(line, startOfTheToken, message));
+        }
+    }
+
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -69,22 +133,46 @@ public class Scanner {
                 } else if (Character.isAlphabetic(c)) {
                     identifier();
                 } else {
-                    Plox3.error(line, "Unexpected character.");
+                    error("Unexpected character.");
                 }
             }
         }
     }
 
+    // whether name scans as a single identifier
+    public static boolean isIdentifier(String name) {
+        if (name.isEmpty() || !Character.isAlphabetic(name.charAt(0)) ||
+                Keywords.MAP.containsKey(name)) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isAlphabetic(c) && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void identifier() {
         while (Character.isAlphabetic(peek()) || peek() == '_') {
             advance();
         }
-        String text =
-                source.substring(startOfTheToken, currentCharacterPosition);
-        TokenType tokenType =
-                Keywords.MAP.getOrDefault(text, TokenType.IDENTIFIER);
-
-        addToken(tokenType);
+        Symbol symbol = symbols.intern(source, startOfTheToken,
+                                       currentCharacterPosition);
+        TokenType tokenType = Keywords.MAP.get(symbol.name());
+        if (tokenType == TokenType.THIS || tokenType == TokenType.SUPER) {
+            // looked up in the environment like variables
+            tokens.add(new Token(tokenType, symbol.name(), symbol, line));
+            return;
+        }
+        if (tokenType != null) {
+            addToken(tokenType);
+            return;
+        }
+        // share the interned name instead of copying the lexeme again
+        tokens.add(
+                new Token(TokenType.IDENTIFIER, symbol.name(), symbol, line));
     }
 
     private void number() {
@@ -114,7 +202,9 @@ public class Scanner {
             advance();
         }
         if (isAtEnd()) {
-            Plox3.error(line, "Unterminated string");
+            // there is no closing quote to consume, and no token
+            error("Unterminated string");
+            return;
         }
 
         // consume closing "
@@ -151,7 +241,7 @@ public class Scanner {
     }
 
     private char peekNext() {
-        if (currentCharacterPosition + 1 > source.length()) {
+        if (currentCharacterPosition + 1 > end) {
             return '\0';
         }
         return source.charAt(currentCharacterPosition + 1);
@@ -165,7 +255,7 @@ public class Scanner {
     }
 
     private boolean isAtEnd() {
-        return currentCharacterPosition >= source.length();
+        return currentCharacterPosition >= end;
     }
 
 }
@@ -0,0 +1,34 @@
+package com.petar.plox3.scanner;
+
+/**
+ * Canonical identifier. There is exactly one {@code Symbol} per distinct
+ * name, so symbols compare by identity and carry their hash precomputed.
+ */
+public final class Symbol {
+
+    private final String name;
+    private final int hash;
+
+    Symbol(String name, int hash) {
+        this.name = name;
+        this.hash = hash;
+    }
+
+    public static Symbol of(String name) {
+        return SymbolTable.INSTANCE.intern(name, 0, name.length());
+    }
+
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,83 @@
+package com.petar.plox3.scanner;
+
+/**
+ * Open addressing intern table for identifier lexemes. Lookups hash the
+ * characters in place, so a lexeme is only copied out of the source the
+ * first time its name is seen.
+ * <p>
+ * A table with a parent is an unshared cache in front of it, so that
+ * threads scanning in parallel only take the shared table's lock for
+ * names new to them, and still get the one symbol per name.
+ */
+final class SymbolTable {
+
+    static final SymbolTable INSTANCE = new SymbolTable(null);
+
+    private final SymbolTable parent;
+    private Symbol[] slots = new Symbol[256];
+    private int size = 0;
+
+    SymbolTable(SymbolTable parent) {
+        this.parent = parent;
+    }
+
+    synchronized Symbol intern(CharSequence source, int start, int end) {
+        int hash = hash(source, start, end);
+        int mask = slots.length - 1;
+        int index = hash & mask;
+        Symbol symbol;
+        while ((symbol = slots[index]) != null) {
+            if (symbol.hashCode() == hash &&
+                    matches(symbol.name(), source, start, end)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+        symbol = parent != null ? parent.intern(source, start, end) :
+                new Symbol(source.subSequence(start, end).toString(), hash);
+        slots[index] = symbol;
+        if (++size * 2 > slots.length) {
+            grow();
+        }
+        return symbol;
+    }
+
+    private void grow() {
+        Symbol[] old = slots;
+        slots = new Symbol[old.length * 2];
+        int mask = slots.length - 1;
+        for (Symbol symbol : old) {
+            if (symbol == null) {
+                continue;
+            }
+            int index = symbol.hashCode() & mask;
+            while (slots[index] != null) {
+                index = (index + 1) & mask;
+            }
+            slots[index] = symbol;
+        }
+    }
+
+    // same function as String.hashCode, spread so that the low bits used for
+    // indexing depend on the whole name
+    private static int hash(CharSequence source, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + source.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String name, CharSequence source, int start,
+                                   int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,3 +1,9 @@
 package com.petar.plox3.scanner;
 
-public record Token(TokenType type, String lexeme, Object literal, int line) {}
+public record Token(TokenType type, String lexeme, Object literal, int line) {
+
+    // identifiers carry their interned symbol as the literal
+    public Symbol symbol() {
+        return (Symbol) literal;
+    }
+}
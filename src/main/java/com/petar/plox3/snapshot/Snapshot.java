@@ -0,0 +1,110 @@
+package com.petar.plox3.snapshot;
+
+import com.petar.plox3.PloxFunction;
+import com.petar.plox3.parser.Purity;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Globals of an interpreter after running a prelude, saved to a file so
+ * that later runs can start from them instead of running the prelude again.
+ * Numbers, strings, booleans, nil, lists and functions with their syntax
+ * trees are stored; natives are left out because every interpreter defines
+ * its own. Interpreters in one JVM that start from the same file share its
+ * bytes and syntax trees, decoded once, but each restores values of its
+ * own, so nothing one does to an instance shows in another. Functions
+ * proven pure among the saved globals are memoized again.
+ */
+public final class Snapshot {
+
+    static final int MAGIC = 0x504c5833;
+    static final int VERSION = 2;
+
+    private record Key(Path path, FileTime modified) {}
+
+    private static final Map<Key, Snapshot> loaded = new ConcurrentHashMap<>();
+
+    private final byte[] data;
+    private final Map<Integer, SnapshotReader.Declaration> declarations =
+            new ConcurrentHashMap<>();
+    private final Set<Stmt.Function> pure;
+
+    // decodes data once to check it and to decode every declaration
+    private Snapshot(byte[] data) throws IOException {
+        this.data = data;
+        Map<Symbol, Object> bindings =
+                new SnapshotReader(data, declarations, null).read();
+        this.pure = Purity.analyze(program(bindings));
+    }
+
+    // new values of the saved globals
+    public Map<Symbol, Object> bindings() throws IOException {
+        return new SnapshotReader(data, declarations, pure).read();
+    }
+
+    // the saved globals as declarations, those of functions bound to their
+    // own names and of nothing for the rest
+    private static List<Statement> program(Map<Symbol, Object> bindings) {
+        List<Statement> program = new ArrayList<>(bindings.size());
+        bindings.forEach((name, value) -> {
+            if (value instanceof PloxFunction function &&
+                    function.declaration().name().symbol() == name) {
+                program.add(function.declaration());
+            } else {
+                program.add(new Stmt.VarStatement(new Token(
+                        TokenType.IDENTIFIER, name.name(), name, 0), null));
+            }
+        });
+        return program;
+    }
+
+    // throws SnapshotException for values that cannot be stored
+    public static void write(Map<Symbol, Object> globals, Path path)
+            throws IOException {
+        Map<Symbol, Object> stored = new LinkedHashMap<>();
+        globals.forEach((name, value) -> {
+            if (!SnapshotWriter.isNative(value)) {
+                stored.put(name, value);
+            }
+        });
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path)))) {
+            new SnapshotWriter(out).write(stored);
+        }
+    }
+
+    public static Snapshot read(Path path) throws IOException {
+        return new Snapshot(Files.readAllBytes(path));
+    }
+
+    // read once per file version and shared by every caller
+    public static Snapshot load(Path path) throws IOException {
+        Path file = path.toAbsolutePath().normalize();
+        Key key = new Key(file, Files.getLastModifiedTime(file));
+        Snapshot snapshot = loaded.get(key);
+        if (snapshot == null) {
+            snapshot = read(file);
+            Snapshot raced = loaded.putIfAbsent(key, snapshot);
+            if (raced != null) {
+                snapshot = raced;
+            }
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,10 @@
+package com.petar.plox3.snapshot;
+
+import java.io.IOException;
+
+public class SnapshotException extends IOException {
+
+    public SnapshotException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,380 @@
+package com.petar.plox3.snapshot;
+
+import com.petar.plox3.BoundMethod;
+import com.petar.plox3.MemoCache;
+import com.petar.plox3.PloxClass;
+import com.petar.plox3.PloxFunction;
+import com.petar.plox3.PloxInstance;
+import com.petar.plox3.PloxList;
+import com.petar.plox3.parser.Expr;
+import com.petar.plox3.parser.Expression;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.petar.plox3.snapshot.SnapshotWriter.*;
+
+/**
+ * Decodes what {@link SnapshotWriter} encodes. Counts in the file are
+ * checked against the bytes left before anything is allocated for them, so
+ * a damaged file fails with a {@link SnapshotException} instead of running
+ * out of memory.
+ * <p>
+ * Every read builds new values, but the declarations of functions and
+ * classes are decoded once per file and shared through declarations, keyed
+ * by where they start.
+ */
+class SnapshotReader {
+
+    // a declaration decoded before, where it ends and the strings its
+    // encoding adds to the table
+    record Declaration(Statement statement, int end, List<String> strings) {}
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private final DataInputStream in;
+    private final int length;
+    private final Map<Integer, Declaration> declarations;
+    // functions given a memo cache, null while none are known
+    private final Set<Stmt.Function> pure;
+    private final List<Object> objects = new ArrayList<>();
+    private final List<String> strings = new ArrayList<>();
+
+    SnapshotReader(byte[] snapshot, Map<Integer, Declaration> declarations,
+                   Set<Stmt.Function> pure) {
+        this.in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        this.length = snapshot.length;
+        this.declarations = declarations;
+        this.pure = pure;
+    }
+
+    Map<Symbol, Object> read() throws IOException {
+        try {
+            return bindings();
+        } catch (EOFException e) {
+            throw new SnapshotException("Snapshot is truncated");
+        }
+    }
+
+    private Map<Symbol, Object> bindings() throws IOException {
+        if (in.readInt() != Snapshot.MAGIC) {
+            throw new SnapshotException("Not a snapshot file");
+        }
+        if (in.readShort() != Snapshot.VERSION) {
+            throw new SnapshotException("Unsupported snapshot version");
+        }
+        int count = count();
+        Map<Symbol, Object> bindings = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            Symbol name = Symbol.of(string());
+            bindings.put(name, value());
+        }
+        return bindings;
+    }
+
+    private Object value() throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case NIL -> {
+                return null;
+            }
+            case FALSE -> {
+                return false;
+            }
+            case TRUE -> {
+                return true;
+            }
+            case NUMBER -> {
+                return in.readDouble();
+            }
+            case STRING -> {
+                return string();
+            }
+            case REFERENCE -> {
+                int index = in.readInt();
+                if (index < 0 || index >= objects.size()) {
+                    throw new SnapshotException("Bad reference " + index);
+                }
+                return objects.get(index);
+            }
+            case FUNCTION -> {
+                // reserve the number before reading the body
+                int index = objects.size();
+                objects.add(null);
+                if (!(declaration() instanceof Stmt.Function declaration)) {
+                    throw new SnapshotException("Expected a function");
+                }
+                PloxFunction function = new PloxFunction(declaration,
+                        pure != null && pure.contains(declaration) ?
+                                new MemoCache() : null);
+                objects.set(index, function);
+                return function;
+            }
+            case LIST -> {
+                int index = objects.size();
+                objects.add(null);
+                Object[] elements = new Object[count()];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = value();
+                }
+                PloxList list = new PloxList(Collections.unmodifiableList(
+                        Arrays.asList(elements)));
+                objects.set(index, list);
+                return list;
+            }
+            case CLASS -> {
+                int index = objects.size();
+                objects.add(null);
+                if (!(declaration() instanceof Stmt.Class declaration)) {
+                    throw new SnapshotException("Expected a class");
+                }
+                PloxClass klass = new PloxClass(declaration,
+                                                klass(value(), true));
+                objects.set(index, klass);
+                return klass;
+            }
+            case INSTANCE -> {
+                int index = objects.size();
+                objects.add(null);
+                PloxInstance instance = new PloxInstance(klass(value(), false));
+                // registered first, fields may refer back to the instance
+                objects.set(index, instance);
+                int count = count();
+                for (int i = 0; i < count; i++) {
+                    Symbol name = Symbol.of(string());
+                    instance.set(name, value());
+                }
+                return instance;
+            }
+            case BOUND_METHOD -> {
+                int index = objects.size();
+                objects.add(null);
+                if (!(value() instanceof PloxInstance receiver)) {
+                    throw new SnapshotException("Expected an instance");
+                }
+                PloxClass holder = klass(value(), false);
+                PloxFunction method = holder.findMethod(Symbol.of(string()));
+                if (method == null) {
+                    throw new SnapshotException("Undefined method");
+                }
+                BoundMethod bound = new BoundMethod(receiver, method);
+                objects.set(index, bound);
+                return bound;
+            }
+            default -> throw new SnapshotException("Bad value tag " + tag);
+        }
+    }
+
+    private Statement declaration() throws IOException {
+        int start = length - in.available();
+        Declaration known = declarations.get(start);
+        if (known != null) {
+            in.skipBytes(known.end() - start);
+            strings.addAll(known.strings());
+            return known.statement();
+        }
+        int before = strings.size();
+        Statement statement = statement();
+        Declaration raced = declarations.putIfAbsent(start, new Declaration(
+                statement, length - in.available(),
+                List.copyOf(strings.subList(before, strings.size()))));
+        return raced == null ? statement : raced.statement();
+    }
+
+    // a number of things that follow, each taking at least a byte; the
+    // stream is over an array, so it knows exactly how many are left
+    private int count() throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new SnapshotException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static PloxClass klass(Object value, boolean optional)
+            throws IOException {
+        if (value instanceof PloxClass klass) {
+            return klass;
+        }
+        if (value == null && optional) {
+            return null;
+        }
+        throw new SnapshotException("Expected a class");
+    }
+
+    private String string() throws IOException {
+        int index = in.readInt();
+        if (index >= 0) {
+            if (index >= strings.size()) {
+                throw new SnapshotException("Bad string " + index);
+            }
+            return strings.get(index);
+        }
+        byte[] bytes = new byte[count()];
+        in.readFully(bytes);
+        String string = new String(bytes, StandardCharsets.UTF_8);
+        strings.add(string);
+        return string;
+    }
+
+    private Token token() throws IOException {
+        int type = in.readShort();
+        if (type < 0 || type >= TOKEN_TYPES.length) {
+            throw new SnapshotException("Bad token type " + type);
+        }
+        String lexeme = string();
+        int line = in.readInt();
+        Object literal = switch (in.readByte()) {
+            case NUMBER_LITERAL -> in.readDouble();
+            case STRING_LITERAL -> string();
+            case SYMBOL_LITERAL -> Symbol.of(lexeme);
+            default -> null;
+        };
+        return new Token(TOKEN_TYPES[type], lexeme, literal, line);
+    }
+
+    private List<Statement> statements() throws IOException {
+        int count = count();
+        List<Statement> statements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            statements.add(statement());
+        }
+        return statements;
+    }
+
+    private List<Expression> expressions() throws IOException {
+        int count = count();
+        List<Expression> expressions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            expressions.add(expression());
+        }
+        return expressions;
+    }
+
+    private Expression expression() throws IOException {
+        int tag = in.readByte();
+        return switch (tag) {
+            case ABSENT -> null;
+            case BINARY -> {
+                Expression left = expression();
+                Token operator = token();
+                yield new Expr.Binary(left, operator, expression());
+            }
+            case UNARY -> {
+                Token operator = token();
+                yield new Expr.Unary(operator, expression());
+            }
+            case CALL -> {
+                Expression callee = expression();
+                Token paren = token();
+                yield new Expr.Call(callee, paren, expressions());
+            }
+            case GROUPING -> new Expr.Grouping(expression());
+            case LITERAL -> new Expr.Literal(value());
+            case VARIABLE -> new Expr.Variable(token());
+            case ASSIGNMENT -> {
+                Token name = token();
+                yield new Expr.Assignment(name, expression());
+            }
+            case LOGICAL -> {
+                Expression left = expression();
+                Token operator = token();
+                yield new Expr.Logical(left, operator, expression());
+            }
+            case GET -> {
+                Expression object = expression();
+                yield new Expr.Get(object, token());
+            }
+            case SET -> {
+                Expression object = expression();
+                Token name = token();
+                yield new Expr.Set(object, name, expression());
+            }
+            case THIS -> new Expr.This(token());
+            case SUPER -> {
+                Token keyword = token();
+                yield new Expr.Super(keyword, token());
+            }
+            default -> throw new SnapshotException("Bad expression " + tag);
+        };
+    }
+
+    private Statement statement() throws IOException {
+        int tag = in.readByte();
+        return switch (tag) {
+            case ABSENT -> null;
+            case EXPR_STMT -> new Stmt.ExprStatement(expression());
+            case PRINT_STMT -> new Stmt.PrintStatement(expression());
+            case VAR_STMT -> {
+                Token name = token();
+                yield new Stmt.VarStatement(name, expression());
+            }
+            case BLOCK_STMT -> new Stmt.BlockStatement(statements());
+            case IF_STMT -> {
+                Expression condition = expression();
+                Statement then = statement();
+                yield new Stmt.IfStmt(condition, then, statement());
+            }
+            case WHILE_STMT -> {
+                Token keyword = token();
+                Expression condition = expression();
+                yield new Stmt.WhileStatement(keyword, condition, statement());
+            }
+            case FUNCTION_STMT -> {
+                Token name = token();
+                int count = count();
+                List<Token> params = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    params.add(token());
+                }
+                yield new Stmt.Function(name, params, statements());
+            }
+            case RETURN_STMT -> {
+                Token keyword = token();
+                yield new Stmt.ReturnStatement(keyword, expression());
+            }
+            case COUNTED_FOR -> {
+                Token keyword = token();
+                Token name = token();
+                Expression from = expression();
+                Expression condition = expression();
+                Expression increment = expression();
+                Statement body = statement();
+                yield new Stmt.CountedFor(keyword, name, from,
+                                          (Expr.Binary) condition,
+                                          (Expr.Assignment) increment, body,
+                                          in.readByte() != 0);
+            }
+            case CLASS_STMT -> {
+                Token name = token();
+                Expression superclass = expression();
+                int count = count();
+                List<Stmt.Function> methods = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    if (!(statement() instanceof Stmt.Function method)) {
+                        throw new SnapshotException("Expected a method");
+                    }
+                    methods.add(method);
+                }
+                yield new Stmt.Class(name, (Expr.Variable) superclass,
+                                     methods);
+            }
+            default -> throw new SnapshotException("Bad statement " + tag);
+        };
+    }
+}
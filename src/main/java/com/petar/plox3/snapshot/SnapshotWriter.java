@@ -0,0 +1,453 @@
+package com.petar.plox3.snapshot;
+
+import com.petar.plox3.BoundMethod;
+import com.petar.plox3.NativeFunction;
+import com.petar.plox3.PloxClass;
+import com.petar.plox3.PloxFunction;
+import com.petar.plox3.PloxInstance;
+import com.petar.plox3.PloxList;
+import com.petar.plox3.Shape;
+import com.petar.plox3.parser.Expr;
+import com.petar.plox3.parser.ExprVisitor;
+import com.petar.plox3.parser.Expression;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.parser.StmtVisitor;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes values and syntax trees. Functions, lists, classes and instances
+ * are numbered as they are first written and written again only as a back
+ * reference, so shared values stay shared and identical after reading.
+ * Strings are interned the same way.
+ */
+class SnapshotWriter implements ExprVisitor<Void>, StmtVisitor<Void> {
+
+    // values
+    static final int NIL = 0;
+    static final int FALSE = 1;
+    static final int TRUE = 2;
+    static final int NUMBER = 3;
+    static final int STRING = 4;
+    static final int FUNCTION = 5;
+    static final int LIST = 6;
+    static final int REFERENCE = 7;
+    static final int CLASS = 8;
+    static final int INSTANCE = 9;
+    static final int BOUND_METHOD = 10;
+
+    // token literals
+    static final int NO_LITERAL = 0;
+    static final int NUMBER_LITERAL = 1;
+    static final int STRING_LITERAL = 2;
+    static final int SYMBOL_LITERAL = 3;
+
+    // syntax tree nodes
+    static final int ABSENT = 0;
+    static final int BINARY = 1;
+    static final int UNARY = 2;
+    static final int CALL = 3;
+    static final int GROUPING = 4;
+    static final int LITERAL = 5;
+    static final int VARIABLE = 6;
+    static final int ASSIGNMENT = 7;
+    static final int LOGICAL = 8;
+    static final int EXPR_STMT = 9;
+    static final int PRINT_STMT = 10;
+    static final int VAR_STMT = 11;
+    static final int BLOCK_STMT = 12;
+    static final int IF_STMT = 13;
+    static final int WHILE_STMT = 14;
+    static final int FUNCTION_STMT = 15;
+    static final int RETURN_STMT = 16;
+    static final int COUNTED_FOR = 17;
+    static final int CLASS_STMT = 18;
+    static final int GET = 19;
+    static final int SET = 20;
+    static final int THIS = 21;
+    static final int SUPER = 22;
+
+    private final DataOutputStream out;
+    private final Map<Object, Integer> objects = new IdentityHashMap<>();
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    SnapshotWriter(DataOutputStream out) {
+        this.out = out;
+    }
+
+    static boolean isNative(Object value) {
+        return value instanceof NativeFunction;
+    }
+
+    void write(Map<Symbol, Object> bindings) throws IOException {
+        out.writeInt(Snapshot.MAGIC);
+        out.writeShort(Snapshot.VERSION);
+        out.writeInt(bindings.size());
+        try {
+            for (Map.Entry<Symbol, Object> binding : bindings.entrySet()) {
+                string(binding.getKey().name());
+                value(binding.getValue());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void value(Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NIL);
+        } else if (value instanceof Boolean bool) {
+            out.writeByte(bool ? TRUE : FALSE);
+        } else if (value instanceof Double number) {
+            out.writeByte(NUMBER);
+            out.writeDouble(number);
+        } else if (value instanceof String string) {
+            out.writeByte(STRING);
+            string(string);
+        } else if (objects.containsKey(value)) {
+            out.writeByte(REFERENCE);
+            out.writeInt(objects.get(value));
+        } else if (value instanceof PloxFunction function &&
+                function.module() == null) {
+            objects.put(value, objects.size());
+            out.writeByte(FUNCTION);
+            write(function.declaration());
+        } else if (value instanceof PloxClass klass &&
+                klass.module() == null) {
+            objects.put(value, objects.size());
+            out.writeByte(CLASS);
+            write(klass.declaration());
+            value(klass.superclass());
+        } else if (value instanceof PloxInstance instance) {
+            objects.put(value, objects.size());
+            out.writeByte(INSTANCE);
+            value(instance.owner());
+            Shape shape = instance.shape();
+            out.writeInt(shape.size());
+            for (int i = 0; i < shape.size(); i++) {
+                string(shape.name(i).name());
+                value(instance.field(i));
+            }
+        } else if (value instanceof BoundMethod bound) {
+            objects.put(value, objects.size());
+            out.writeByte(BOUND_METHOD);
+            value(bound.receiver());
+            value(bound.method().holder());
+            string(bound.method().declaration().name().lexeme());
+        } else if (value instanceof PloxList list) {
+            objects.put(value, objects.size());
+            out.writeByte(LIST);
+            out.writeInt(list.elements().size());
+            for (Object element : list.elements()) {
+                value(element);
+            }
+        } else {
+            // such as modules and what they declare, which runs over their
+            // globals
+            throw new SnapshotException(
+                    "Cannot snapshot " + Interpreter.stringify(value));
+        }
+    }
+
+    private void string(String string) throws IOException {
+        Integer index = strings.get(string);
+        if (index != null) {
+            out.writeInt(index);
+            return;
+        }
+        strings.put(string, strings.size());
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(-1);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void token(Token token) {
+        try {
+            out.writeShort(token.type().ordinal());
+            string(token.lexeme());
+            out.writeInt(token.line());
+            Object literal = token.literal();
+            if (literal instanceof Double number) {
+                out.writeByte(NUMBER_LITERAL);
+                out.writeDouble(number);
+            } else if (literal instanceof String string) {
+                out.writeByte(STRING_LITERAL);
+                string(string);
+            } else if (literal instanceof Symbol) {
+                // the lexeme is the name, re-interned on reading
+                out.writeByte(SYMBOL_LITERAL);
+            } else {
+                out.writeByte(NO_LITERAL);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void tag(int tag) {
+        try {
+            out.writeByte(tag);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void count(int count) {
+        try {
+            out.writeInt(count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void literalValue(Object value) {
+        try {
+            value(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(Expression expression) {
+        if (expression == null) {
+            tag(ABSENT);
+        } else {
+            expression.accept(this);
+        }
+    }
+
+    private void write(Statement statement) {
+        if (statement == null) {
+            tag(ABSENT);
+        } else {
+            statement.accept(this);
+        }
+    }
+
+    private void write(List<Statement> statements) {
+        count(statements.size());
+        statements.forEach(this::write);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        tag(BINARY);
+        write(expr.left());
+        token(expr.operator());
+        write(expr.right());
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary unary) {
+        tag(UNARY);
+        token(unary.operator());
+        write(unary.expr());
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call call) {
+        tag(CALL);
+        write(call.callee());
+        token(call.paren());
+        count(call.arguments().size());
+        call.arguments().forEach(this::write);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping grouping) {
+        tag(GROUPING);
+        write(grouping.expr());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal literal) {
+        tag(LITERAL);
+        literalValue(literal.value());
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable variable) {
+        tag(VARIABLE);
+        token(variable.name());
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(Expr.Assignment assignment) {
+        tag(ASSIGNMENT);
+        token(assignment.name());
+        write(assignment.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical logical) {
+        tag(LOGICAL);
+        write(logical.left());
+        token(logical.operator());
+        write(logical.right());
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get get) {
+        tag(GET);
+        write(get.object());
+        token(get.name());
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set set) {
+        tag(SET);
+        write(set.object());
+        token(set.name());
+        write(set.value());
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This thisExpr) {
+        tag(THIS);
+        token(thisExpr.keyword());
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super superExpr) {
+        tag(SUPER);
+        token(superExpr.keyword());
+        token(superExpr.method());
+        return null;
+    }
+
+    // restored as the plain call, without the inlining
+    @Override
+    public Void visitInlinedExpr(Expr.Inlined inlined) {
+        return visitCallExpr(inlined.call());
+    }
+
+    @Override
+    public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
+        tag(PRINT_STMT);
+        write(printStatement.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitExprStatement(Stmt.ExprStatement exprStatement) {
+        tag(EXPR_STMT);
+        write(exprStatement.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitVarStatement(Stmt.VarStatement varStatement) {
+        tag(VAR_STMT);
+        token(varStatement.name());
+        write(varStatement.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
+        tag(BLOCK_STMT);
+        write(blockStatement.statementList());
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(Stmt.IfStmt ifStmt) {
+        tag(IF_STMT);
+        write(ifStmt.condition());
+        write(ifStmt.then());
+        write(ifStmt.elseStmt());
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        tag(WHILE_STMT);
+        token(whileStatement.keyword());
+        write(whileStatement.condition());
+        write(whileStatement.body());
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Stmt.Function function) {
+        tag(FUNCTION_STMT);
+        token(function.name());
+        count(function.params().size());
+        function.params().forEach(this::token);
+        write(function.body());
+        return null;
+    }
+
+    @Override
+    public Void visitClassStatement(Stmt.Class classStatement) {
+        tag(CLASS_STMT);
+        token(classStatement.name());
+        write(classStatement.superclass());
+        count(classStatement.methods().size());
+        classStatement.methods().forEach(this::write);
+        return null;
+    }
+
+    // snapshots hold functions and classes, which never import
+    @Override
+    public Void visitImportStatement(Stmt.Import importStatement) {
+        throw new IllegalStateException("import in a declaration");
+    }
+
+    @Override
+    public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+        tag(RETURN_STMT);
+        token(returnStatement.keyword());
+        write(returnStatement.value());
+        return null;
+    }
+
+    @Override
+    public Void visitCountedForStatement(Stmt.CountedFor countedFor) {
+        tag(COUNTED_FOR);
+        token(countedFor.keyword());
+        token(countedFor.name());
+        write(countedFor.from());
+        write(countedFor.condition());
+        write(countedFor.increment());
+        write(countedFor.body());
+        tag(countedFor.readsCounter() ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitProbedStatement(Stmt.Probed probed) {
+        // probes belong to the running program, not to its snapshot
+        write(probed.statement());
+        return null;
+    }
+
+    @Override
+    public Void visitCoveredStatement(Stmt.Covered covered) {
+        write(covered.statement());
+        return null;
+    }
+}
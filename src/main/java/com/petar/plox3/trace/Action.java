@@ -0,0 +1,203 @@
+package com.petar.plox3.trace;
+
+import com.petar.plox3.coverage.CoveragePoint;
+import com.petar.plox3.parser.Return;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.scanner.Token;
+
+/**
+ * A compiled statement.
+ */
+abstract class Action {
+
+    abstract void exec(Frame frame);
+
+    static final class Evaluate extends Action {
+        private final Node expression;
+
+        Evaluate(Node expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            expression.eval(frame);
+        }
+    }
+
+    static final class Print extends Action {
+        private final Node expression;
+
+        Print(Node expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            frame.interpreter.print(expression.eval(frame));
+        }
+    }
+
+    static final class Declare extends Action {
+        private final int slot;
+        private final Node value;
+
+        Declare(int slot, Node value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            frame.slots[slot] = value == null ? null : value.eval(frame);
+        }
+    }
+
+    static final class DeclareFunction extends Action {
+        private final int slot;
+        private final Stmt.Function declaration;
+
+        DeclareFunction(int slot, Stmt.Function declaration) {
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            frame.slots[slot] = frame.interpreter.function(declaration);
+        }
+    }
+
+    static final class DeclareClass extends Action {
+        private final int slot;
+        private final Stmt.Class declaration;
+        private final Node superclass;
+
+        DeclareClass(int slot, Stmt.Class declaration, Node superclass) {
+            this.slot = slot;
+            this.declaration = declaration;
+            this.superclass = superclass;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            frame.slots[slot] = frame.interpreter.klass(declaration,
+                    superclass == null ? null : superclass.eval(frame));
+        }
+    }
+
+    // slots of a finished block are simply left behind: functions close
+    // over the globals only, so nothing can observe them
+    static final class Block extends Action {
+        private final Action[] actions;
+
+        Block(Action[] actions) {
+            this.actions = actions;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            for (Action action : actions) {
+                action.exec(frame);
+            }
+        }
+    }
+
+    static final class If extends Action {
+        private final Node condition;
+        private final Action then;
+        private final Action otherwise;
+        private final CoveragePoint branch;
+
+        If(Node condition, Action then, Action otherwise,
+           CoveragePoint branch) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+            this.branch = branch;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            boolean taken = condition.test(frame);
+            if (branch != null) {
+                branch.hit(taken ? 0 : 1);
+            }
+            if (taken) {
+                then.exec(frame);
+            } else if (otherwise != null) {
+                otherwise.exec(frame);
+            }
+        }
+    }
+
+    static final class Covered extends Action {
+        private final CoveragePoint point;
+        private final Action action;
+
+        Covered(CoveragePoint point, Action action) {
+            this.point = point;
+            this.action = action;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            point.hit();
+            action.exec(frame);
+        }
+    }
+
+    static final class Loop extends Action {
+        private final Token keyword;
+        private final Node condition;
+        private final Action body;
+        private final Node increment;
+
+        Loop(Token keyword, Node condition, Action body, Node increment) {
+            this.keyword = keyword;
+            this.condition = condition;
+            this.body = body;
+            this.increment = increment;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            while (condition.test(frame)) {
+                step(frame);
+            }
+        }
+
+        boolean test(Frame frame) {
+            return condition.test(frame);
+        }
+
+        // the rest of an iteration once the condition held
+        void step(Frame frame) {
+            body.exec(frame);
+            if (increment != null) {
+                increment.eval(frame);
+            }
+            if (frame.budget.due()) {
+                frame.budget.poll(keyword);
+                // leave the trace for the tree walker, which sees probes
+                // attached since it was compiled
+                if (frame.instrumentation.hasBeenInvalidated()) {
+                    frame.failed = true;
+                }
+            }
+        }
+    }
+
+    static final class ReturnValue extends Action {
+        private final Node value;
+
+        ReturnValue(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        void exec(Frame frame) {
+            throw new Return(value == null ? null : value.eval(frame));
+        }
+    }
+}
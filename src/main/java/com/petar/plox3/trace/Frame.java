@@ -0,0 +1,46 @@
+package com.petar.plox3.trace;
+
+import com.petar.plox3.Budget;
+import com.petar.plox3.Environment;
+import com.petar.plox3.GlobalEnvironment;
+import com.petar.plox3.parser.Interpreter;
+
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * The state of one run of a trace. Variables declared inside the loop live
+ * in slots; so do the loop's free variables that belong to local frames,
+ * which only this run can see until it copies them back. Free globals are
+ * read through their cells because other tasks may be using them.
+ */
+final class Frame {
+
+    final Interpreter interpreter;
+    final Budget budget;
+    // the environment the loop started in, for names that were not bound
+    final Environment environment;
+    final Object[] slots;
+    final GlobalEnvironment.Binding[] cells;
+    // by free variable, the local frame it is copied back to
+    final Environment[] owners;
+    // checked whenever the budget is polled
+    final SwitchPoint instrumentation;
+    // set when a guard fails; the loop leaves the trace at its back edge
+    boolean failed;
+
+    Frame(Interpreter interpreter, Environment environment, int slots,
+          int names, SwitchPoint instrumentation) {
+        this.interpreter = interpreter;
+        this.budget = interpreter.budget();
+        this.environment = environment;
+        this.slots = new Object[slots];
+        this.cells = new GlobalEnvironment.Binding[slots];
+        this.owners = new Environment[names];
+        this.instrumentation = instrumentation;
+    }
+
+    UnexpectedValue unexpected(Object value) {
+        failed = true;
+        return new UnexpectedValue(value);
+    }
+}
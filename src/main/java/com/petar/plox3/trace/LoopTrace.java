@@ -0,0 +1,85 @@
+package com.petar.plox3.trace;
+
+import com.petar.plox3.Environment;
+import com.petar.plox3.parser.Expression;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.scanner.Token;
+
+/**
+ * The trace state of one loop. The interpreter counts iterations here; once
+ * the loop is hot it records the types seen in one more iteration, compiles
+ * the loop against them and runs the rest of it, and every later entry,
+ * through the compiled form until a guard fails. A failed trace is dropped
+ * and the loop may be recorded again a few times before it is given up on.
+ * Set {@code -Dplox3.trace.threshold=0} to disable.
+ */
+public final class LoopTrace {
+
+    public static final int THRESHOLD =
+            Integer.getInteger("plox3.trace.threshold", 1000);
+    private static final int MAX_COMPILATIONS = 3;
+
+    private volatile Trace trace;
+    private int iterations = 0;
+    private int compilations = 0;
+
+    // called once per iteration run by the tree walker
+    public boolean isHot() {
+        if (trace != null) {
+            return true;
+        }
+        return THRESHOLD > 0 && compilations < MAX_COMPILATIONS &&
+                ++iterations >= THRESHOLD;
+    }
+
+    public boolean isCompiled() {
+        return trace != null;
+    }
+
+    // environment is where the loop runs, to classify its free variables
+    public void compile(Token keyword, Expression condition, Statement body,
+                        Expression increment, TraceRecorder recorder,
+                        Environment environment) {
+        try {
+            trace = new TraceCompiler(recorder, environment)
+                    .compile(keyword, condition, body, increment);
+            compilations++;
+        } catch (Untraceable e) {
+            // not counted, the loop may become traceable again once its
+            // probes are detached
+            iterations = 0;
+        }
+    }
+
+    // Runs the loop from its condition. True when the loop has finished,
+    // false if the trace was dropped and the tree walker should continue.
+    public boolean run(Interpreter interpreter, Environment environment) {
+        Trace trace = this.trace;
+        if (trace == null) {
+            return false;
+        }
+        Frame frame = trace.enter(interpreter, environment);
+        if (frame == null) {
+            drop();
+            return false;
+        }
+        try {
+            while (trace.loop.test(frame)) {
+                trace.loop.step(frame);
+                if (frame.failed) {
+                    drop();
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            trace.leave(frame);
+        }
+    }
+
+    private void drop() {
+        trace = null;
+        iterations = 0;
+    }
+}
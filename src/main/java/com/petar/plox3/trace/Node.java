@@ -0,0 +1,495 @@
+package com.petar.plox3.trace;
+
+import com.petar.plox3.PloxFunction;
+import com.petar.plox3.PloxInstance;
+import com.petar.plox3.PropertySite;
+import com.petar.plox3.coverage.CoveragePoint;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.parser.RuntimeError;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled expression. Nodes specialized for numbers compute unboxed and
+ * guard every operand; when one turns out not to be a number they finish
+ * with the tree walker's semantics and mark the frame as failed.
+ */
+abstract class Node {
+
+    abstract Object eval(Frame frame);
+
+    double evalDouble(Frame frame) {
+        Object value = eval(frame);
+        if (value instanceof Double number) {
+            return number;
+        }
+        throw frame.unexpected(value);
+    }
+
+    boolean test(Frame frame) {
+        return Interpreter.isTruthy(eval(frame));
+    }
+
+    static final class Constant extends Node {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return value;
+        }
+    }
+
+    static final class NumberConstant extends Node {
+        private final Double value;
+        private final double number;
+
+        NumberConstant(Double value) {
+            this.value = value;
+            this.number = value;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return value;
+        }
+
+        @Override
+        double evalDouble(Frame frame) {
+            return number;
+        }
+    }
+
+    static final class LocalRead extends Node {
+        private final int slot;
+
+        LocalRead(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return frame.slots[slot];
+        }
+    }
+
+    static final class GlobalRead extends Node {
+        private final int slot;
+
+        GlobalRead(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return frame.cells[slot].get();
+        }
+    }
+
+    // a name that was not bound when the loop started
+    static final class DynamicRead extends Node {
+        private final Token name;
+
+        DynamicRead(Token name) {
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return frame.environment.get(name);
+        }
+    }
+
+    static final class LocalWrite extends Node {
+        private final int slot;
+        private final Node value;
+
+        LocalWrite(int slot, Node value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            Object result = value.eval(frame);
+            frame.slots[slot] = result;
+            return result;
+        }
+    }
+
+    static final class GlobalWrite extends Node {
+        private final int slot;
+        private final Node value;
+
+        GlobalWrite(int slot, Node value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            Object result = value.eval(frame);
+            frame.cells[slot].set(result);
+            return result;
+        }
+    }
+
+    static final class DynamicWrite extends Node {
+        private final Token name;
+        private final Node value;
+
+        DynamicWrite(Token name, Node value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            Object result = value.eval(frame);
+            frame.environment.assign(name, result);
+            return result;
+        }
+    }
+
+    static final class Binary extends Node {
+        private final Token operator;
+        private final Node left;
+        private final Node right;
+
+        Binary(Token operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            Object leftValue = left.eval(frame);
+            return Interpreter.binary(frame.budget, operator, leftValue,
+                                      right.eval(frame));
+        }
+    }
+
+    static final class Arithmetic extends Node {
+        private final Token operator;
+        private final TokenType type;
+        private final Node left;
+        private final Node right;
+
+        Arithmetic(Token operator, Node left, Node right) {
+            this.operator = operator;
+            this.type = operator.type();
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            try {
+                return evalDouble(frame);
+            } catch (UnexpectedValue e) {
+                return e.value;
+            }
+        }
+
+        @Override
+        double evalDouble(Frame frame) {
+            double leftValue;
+            try {
+                leftValue = left.evalDouble(frame);
+            } catch (UnexpectedValue e) {
+                return resume(frame, Interpreter.binary(
+                        frame.budget, operator, e.value, right.eval(frame)));
+            }
+            double rightValue;
+            try {
+                rightValue = right.evalDouble(frame);
+            } catch (UnexpectedValue e) {
+                return resume(frame, Interpreter.binary(
+                        frame.budget, operator, leftValue, e.value));
+            }
+            return switch (type) {
+                case PLUS -> leftValue + rightValue;
+                case MINUS -> leftValue - rightValue;
+                case STAR -> leftValue * rightValue;
+                default -> {
+                    if (rightValue == 0) {
+                        throw new RuntimeError(operator, "Division by zero");
+                    }
+                    yield leftValue / rightValue;
+                }
+            };
+        }
+    }
+
+    static final class Comparison extends Node {
+        private final Token operator;
+        private final TokenType type;
+        private final Node left;
+        private final Node right;
+
+        Comparison(Token operator, Node left, Node right) {
+            this.operator = operator;
+            this.type = operator.type();
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return test(frame);
+        }
+
+        @Override
+        boolean test(Frame frame) {
+            double leftValue;
+            try {
+                leftValue = left.evalDouble(frame);
+            } catch (UnexpectedValue e) {
+                return (boolean) Interpreter.binary(operator, e.value,
+                                                    right.eval(frame));
+            }
+            double rightValue;
+            try {
+                rightValue = right.evalDouble(frame);
+            } catch (UnexpectedValue e) {
+                return (boolean) Interpreter.binary(operator, leftValue,
+                                                    e.value);
+            }
+            return switch (type) {
+                case LESS -> leftValue < rightValue;
+                case LESS_EQUAL -> leftValue <= rightValue;
+                case GREATER -> leftValue > rightValue;
+                case GREATER_EQUAL -> leftValue >= rightValue;
+                // the same as Double.equals, which the interpreter uses
+                case EQUAL_EQUAL -> Double.doubleToLongBits(leftValue) ==
+                        Double.doubleToLongBits(rightValue);
+                default -> Double.doubleToLongBits(leftValue) !=
+                        Double.doubleToLongBits(rightValue);
+            };
+        }
+    }
+
+    static final class Unary extends Node {
+        private final Token operator;
+        private final Node operand;
+
+        Unary(Token operator, Node operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return Interpreter.unary(operator, operand.eval(frame));
+        }
+    }
+
+    static final class Not extends Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return test(frame);
+        }
+
+        @Override
+        boolean test(Frame frame) {
+            return !operand.test(frame);
+        }
+    }
+
+    static final class Negate extends Node {
+        private final Token operator;
+        private final Node operand;
+
+        Negate(Token operator, Node operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            try {
+                return evalDouble(frame);
+            } catch (UnexpectedValue e) {
+                return e.value;
+            }
+        }
+
+        @Override
+        double evalDouble(Frame frame) {
+            try {
+                return -operand.evalDouble(frame);
+            } catch (UnexpectedValue e) {
+                // throws, since the operand is not a number
+                return (double) Interpreter.unary(operator, e.value);
+            }
+        }
+    }
+
+    static final class Logical extends Node {
+        private final boolean or;
+        private final Node left;
+        private final Node right;
+        private final CoveragePoint branch;
+
+        Logical(Token operator, Node left, Node right, CoveragePoint branch) {
+            this.or = operator.type() == TokenType.OR;
+            this.left = left;
+            this.right = right;
+            this.branch = branch;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            Object leftValue = left.eval(frame);
+            if (Interpreter.isTruthy(leftValue) == or) {
+                hit(0);
+                return leftValue;
+            }
+            hit(1);
+            return right.eval(frame);
+        }
+
+        @Override
+        boolean test(Frame frame) {
+            if (left.test(frame) == or) {
+                hit(0);
+                return or;
+            }
+            hit(1);
+            return right.test(frame);
+        }
+
+        private void hit(int outcome) {
+            if (branch != null) {
+                branch.hit(outcome);
+            }
+        }
+    }
+
+    static final class Call extends Node {
+        private final Node callee;
+        private final Node[] arguments;
+        private final Token paren;
+
+        Call(Node callee, Node[] arguments, Token paren) {
+            this.callee = callee;
+            this.arguments = arguments;
+            this.paren = paren;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            Object function = callee.eval(frame);
+            List<Object> values = new ArrayList<>(arguments.length);
+            for (Node argument : arguments) {
+                values.add(argument.eval(frame));
+            }
+            return frame.interpreter.call(function, values, paren);
+        }
+    }
+
+    // object.name(...) calls a method without binding it first
+    static final class Invoke extends Node {
+        private final Node object;
+        private final PropertySite property;
+        private final Node[] arguments;
+        private final Token paren;
+
+        Invoke(Node object, PropertySite property, Node[] arguments,
+               Token paren) {
+            this.object = object;
+            this.property = property;
+            this.arguments = arguments;
+            this.paren = paren;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            Object receiver = object.eval(frame);
+            PloxFunction method = property.method(receiver);
+            Object callee = method == null ? property.get(receiver) : null;
+            List<Object> values = new ArrayList<>(arguments.length);
+            for (Node argument : arguments) {
+                values.add(argument.eval(frame));
+            }
+            if (method == null) {
+                return frame.interpreter.call(callee, values, paren);
+            }
+            return frame.interpreter.callMethod(method, (PloxInstance) receiver,
+                                                values, paren);
+        }
+    }
+
+    static final class Get extends Node {
+        private final Node object;
+        private final PropertySite site;
+
+        Get(Node object, PropertySite site) {
+            this.object = object;
+            this.site = site;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return site.get(object.eval(frame));
+        }
+    }
+
+    static final class Set extends Node {
+        private final Node object;
+        private final Node value;
+        private final PropertySite site;
+
+        Set(Node object, Node value, PropertySite site) {
+            this.object = object;
+            this.value = value;
+            this.site = site;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            PloxInstance instance = site.instance(object.eval(frame), "fields");
+            Object result = value.eval(frame);
+            site.set(instance, result);
+            return result;
+        }
+    }
+
+    static final class Super extends Node {
+        private final Node superclass;
+        private final Node receiver;
+        private final Token method;
+
+        Super(Node superclass, Node receiver, Token method) {
+            this.superclass = superclass;
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        Object eval(Frame frame) {
+            return Interpreter.bindSuper(superclass.eval(frame),
+                                         receiver.eval(frame), method);
+        }
+    }
+
+    private static double resume(Frame frame, Object value) {
+        if (value instanceof Double number) {
+            return number;
+        }
+        throw frame.unexpected(value);
+    }
+}
@@ -0,0 +1,84 @@
+package com.petar.plox3.trace;
+
+import com.petar.plox3.BindingsEnvironment;
+import com.petar.plox3.Environment;
+import com.petar.plox3.GlobalEnvironment;
+import com.petar.plox3.instrument.Instrumenter;
+import com.petar.plox3.parser.Interpreter;
+import com.petar.plox3.scanner.Token;
+
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * A compiled loop together with how it reaches the variables it does not
+ * declare. Those were classified where the loop was recorded, and every run
+ * checks that they still resolve the same way before it starts.
+ */
+final class Trace {
+
+    static final int LOCAL = 0;
+    static final int GLOBAL = 1;
+    // not bound when the loop started, looked up on every access
+    static final int DYNAMIC = 2;
+
+    final Action.Loop loop;
+    private final int slots;
+    private final Token[] names;
+    private final int[] nameSlots;
+    private final int[] kinds;
+    // invalidated once a probe is swapped into the loop's statements
+    private final SwitchPoint instrumentation = Instrumenter.switchPoint();
+
+    Trace(Action.Loop loop, int slots, Token[] names, int[] nameSlots,
+          int[] kinds) {
+        this.loop = loop;
+        this.slots = slots;
+        this.names = names;
+        this.nameSlots = nameSlots;
+        this.kinds = kinds;
+    }
+
+    static int kindOf(Environment owner) {
+        // an embedder's globals have no cells, and may change under the
+        // loop like any global
+        if (owner == null || owner instanceof BindingsEnvironment) {
+            return DYNAMIC;
+        }
+        return owner instanceof GlobalEnvironment ? GLOBAL : LOCAL;
+    }
+
+    // null if a free variable now resolves differently, or probes may have
+    // been attached
+    Frame enter(Interpreter interpreter, Environment environment) {
+        if (instrumentation.hasBeenInvalidated()) {
+            return null;
+        }
+        Frame frame = new Frame(interpreter, environment, slots,
+                                names.length, instrumentation);
+        for (int i = 0; i < names.length; i++) {
+            Token name = names[i];
+            Environment owner = environment.resolve(name.symbol());
+            if (kindOf(owner) != kinds[i]) {
+                return null;
+            }
+            if (kinds[i] == LOCAL) {
+                frame.owners[i] = owner;
+                frame.slots[nameSlots[i]] = owner.get(name);
+            } else if (kinds[i] == GLOBAL) {
+                frame.cells[nameSlots[i]] =
+                        ((GlobalEnvironment) owner).binding(name.symbol());
+            }
+        }
+        return frame;
+    }
+
+    // copies the free locals back to the frames they came from
+    void leave(Frame frame) {
+        for (int i = 0; i < names.length; i++) {
+            if (kinds[i] == LOCAL) {
+                frame.owners[i].define(names[i].symbol(),
+                                       frame.slots[nameSlots[i]]);
+            }
+        }
+    }
+}
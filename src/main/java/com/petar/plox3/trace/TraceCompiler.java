@@ -0,0 +1,336 @@
+package com.petar.plox3.trace;
+
+import com.petar.plox3.Environment;
+import com.petar.plox3.coverage.CoveragePoint;
+import com.petar.plox3.parser.Expr;
+import com.petar.plox3.parser.ExprVisitor;
+import com.petar.plox3.parser.Expression;
+import com.petar.plox3.parser.Statement;
+import com.petar.plox3.parser.Stmt;
+import com.petar.plox3.parser.StmtVisitor;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+import com.petar.plox3.scanner.TokenType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a loop into nodes, specializing the operators whose operands were
+ * only ever numbers in the recorded iteration. Variables declared inside
+ * the loop are resolved to slots in declaration order, which is how the
+ * tree walker's fresh environment per block resolves them too.
+ */
+final class TraceCompiler implements ExprVisitor<Node>, StmtVisitor<Action> {
+
+    private static final Symbol THIS = Symbol.of("this");
+
+    private final TraceRecorder recorder;
+    private final Environment environment;
+    private final Deque<Map<Symbol, Integer>> scopes = new ArrayDeque<>();
+    // the names the loop uses without declaring them
+    private final Map<Symbol, Integer> free = new HashMap<>();
+    private final List<Token> freeNames = new ArrayList<>();
+    private final List<Integer> freeSlots = new ArrayList<>();
+    private final List<Integer> freeKinds = new ArrayList<>();
+    private int slots = 0;
+
+    TraceCompiler(TraceRecorder recorder, Environment environment) {
+        this.recorder = recorder;
+        this.environment = environment;
+    }
+
+    Trace compile(Token keyword, Expression condition, Statement body,
+                  Expression increment) {
+        Action.Loop loop = loop(keyword, condition, body, increment);
+        int[] nameSlots = new int[freeNames.size()];
+        int[] kinds = new int[freeNames.size()];
+        for (int i = 0; i < nameSlots.length; i++) {
+            nameSlots[i] = freeSlots.get(i);
+            kinds[i] = freeKinds.get(i);
+        }
+        return new Trace(loop, slots, freeNames.toArray(new Token[0]),
+                         nameSlots, kinds);
+    }
+
+    private Action.Loop loop(Token keyword, Expression condition,
+                             Statement body, Expression increment) {
+        return new Action.Loop(keyword, condition.accept(this),
+                               body.accept(this), increment == null ? null :
+                                       increment.accept(this));
+    }
+
+    private int declare(Token name) {
+        int slot = slots++;
+        scopes.peek().put(name.symbol(), slot);
+        return slot;
+    }
+
+    private Integer resolveLocal(Token name) {
+        for (Map<Symbol, Integer> scope : scopes) {
+            Integer slot = scope.get(name.symbol());
+            if (slot != null) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    // the index of a free name, assigning it a slot on first use
+    private int freeName(Token name) {
+        Integer index = free.get(name.symbol());
+        if (index == null) {
+            index = freeNames.size();
+            free.put(name.symbol(), index);
+            freeNames.add(name);
+            freeSlots.add(slots++);
+            freeKinds.add(Trace.kindOf(environment.resolve(name.symbol())));
+        }
+        return index;
+    }
+
+    // null once both outcomes have been recorded
+    private static CoveragePoint pending(CoveragePoint branch) {
+        if (branch == null || branch.isHit(0) && branch.isHit(1)) {
+            return null;
+        }
+        return branch;
+    }
+
+    private boolean numeric(Expression left, Expression right) {
+        return recorder.onlyNumbers(left) && recorder.onlyNumbers(right);
+    }
+
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+        Node left = expr.left().accept(this);
+        Node right = expr.right().accept(this);
+        if (!numeric(expr.left(), expr.right())) {
+            return new Node.Binary(expr.operator(), left, right);
+        }
+        return switch (expr.operator().type()) {
+            case PLUS, MINUS, STAR, SLASH ->
+                    new Node.Arithmetic(expr.operator(), left, right);
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL, EQUAL_EQUAL,
+                    BANG_EQUAL ->
+                    new Node.Comparison(expr.operator(), left, right);
+            default -> new Node.Binary(expr.operator(), left, right);
+        };
+    }
+
+    @Override
+    public Node visitUnaryExpr(Expr.Unary unary) {
+        Node operand = unary.expr().accept(this);
+        return switch (unary.operator().type()) {
+            case BANG -> new Node.Not(operand);
+            case MINUS -> recorder.onlyNumbers(unary.expr()) ?
+                    new Node.Negate(unary.operator(), operand) :
+                    new Node.Unary(unary.operator(), operand);
+            default -> new Node.Unary(unary.operator(), operand);
+        };
+    }
+
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping grouping) {
+        return grouping.expr().accept(this);
+    }
+
+    @Override
+    public Node visitLiteralExpr(Expr.Literal literal) {
+        if (literal.value() instanceof Double number) {
+            return new Node.NumberConstant(number);
+        }
+        return new Node.Constant(literal.value());
+    }
+
+    @Override
+    public Node visitVariableExpr(Expr.Variable variable) {
+        return read(variable.name());
+    }
+
+    private Node read(Token name) {
+        Integer local = resolveLocal(name);
+        if (local != null) {
+            return new Node.LocalRead(local);
+        }
+        int index = freeName(name);
+        int slot = freeSlots.get(index);
+        return switch (freeKinds.get(index)) {
+            case Trace.LOCAL -> new Node.LocalRead(slot);
+            case Trace.GLOBAL -> new Node.GlobalRead(slot);
+            default -> new Node.DynamicRead(name);
+        };
+    }
+
+    @Override
+    public Node visitAssignmentExpr(Expr.Assignment assignment) {
+        Node value = assignment.expression().accept(this);
+        Token name = assignment.name();
+        Integer local = resolveLocal(name);
+        if (local != null) {
+            return new Node.LocalWrite(local, value);
+        }
+        int index = freeName(name);
+        int slot = freeSlots.get(index);
+        return switch (freeKinds.get(index)) {
+            case Trace.LOCAL -> new Node.LocalWrite(slot, value);
+            case Trace.GLOBAL -> new Node.GlobalWrite(slot, value);
+            default -> new Node.DynamicWrite(name, value);
+        };
+    }
+
+    @Override
+    public Node visitLogicalExpr(Expr.Logical logical) {
+        return new Node.Logical(logical.operator(),
+                                logical.left().accept(this),
+                                logical.right().accept(this),
+                                pending(logical.branch()));
+    }
+
+    @Override
+    public Node visitCallExpr(Expr.Call call) {
+        if (call.callee() instanceof Expr.Get get) {
+            Node object = get.object().accept(this);
+            return new Node.Invoke(object, get.site(), arguments(call),
+                                   call.paren());
+        }
+        Node callee = call.callee().accept(this);
+        return new Node.Call(callee, arguments(call), call.paren());
+    }
+
+    private Node[] arguments(Expr.Call call) {
+        Node[] arguments = new Node[call.arguments().size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = call.arguments().get(i).accept(this);
+        }
+        return arguments;
+    }
+
+    @Override
+    public Node visitGetExpr(Expr.Get get) {
+        return new Node.Get(get.object().accept(this), get.site());
+    }
+
+    @Override
+    public Node visitSetExpr(Expr.Set set) {
+        Node object = set.object().accept(this);
+        return new Node.Set(object, set.value().accept(this), set.site());
+    }
+
+    @Override
+    public Node visitThisExpr(Expr.This thisExpr) {
+        return read(thisExpr.keyword());
+    }
+
+    @Override
+    public Node visitSuperExpr(Expr.Super superExpr) {
+        Token keyword = superExpr.keyword();
+        Token receiver = new Token(TokenType.THIS, "this", THIS,
+                                   keyword.line());
+        return new Node.Super(read(keyword), read(receiver),
+                              superExpr.method());
+    }
+
+    @Override
+    public Node visitInlinedExpr(Expr.Inlined inlined) {
+        return visitCallExpr(inlined.call());
+    }
+
+    @Override
+    public Action visitPrintStatement(Stmt.PrintStatement printStatement) {
+        return new Action.Print(printStatement.expression().accept(this));
+    }
+
+    @Override
+    public Action visitExprStatement(Stmt.ExprStatement exprStatement) {
+        return new Action.Evaluate(exprStatement.expression().accept(this));
+    }
+
+    @Override
+    public Action visitVarStatement(Stmt.VarStatement varStatement) {
+        // the initializer still sees any outer variable of the same name
+        Node value = varStatement.expression() == null ? null :
+                varStatement.expression().accept(this);
+        return new Action.Declare(declare(varStatement.name()), value);
+    }
+
+    @Override
+    public Action visitBlockStatement(Stmt.BlockStatement blockStatement) {
+        scopes.push(new HashMap<>());
+        List<Statement> statements = blockStatement.statementList();
+        Action[] actions = new Action[statements.size()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = statements.get(i).accept(this);
+        }
+        scopes.pop();
+        return new Action.Block(actions);
+    }
+
+    @Override
+    public Action visitIfStatement(Stmt.IfStmt ifStmt) {
+        return new Action.If(ifStmt.condition().accept(this),
+                             ifStmt.then().accept(this),
+                             ifStmt.elseStmt() == null ? null :
+                                     ifStmt.elseStmt().accept(this),
+                             pending(ifStmt.branch()));
+    }
+
+    @Override
+    public Action visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        return loop(whileStatement.keyword(), whileStatement.condition(),
+                    whileStatement.body(), null);
+    }
+
+    @Override
+    public Action visitCountedForStatement(Stmt.CountedFor countedFor) {
+        Node from = countedFor.from().accept(this);
+        scopes.push(new HashMap<>());
+        int counter = declare(countedFor.name());
+        Action.Loop loop = loop(countedFor.keyword(), countedFor.condition(),
+                                countedFor.body(), countedFor.increment());
+        scopes.pop();
+        return new Action.Block(new Action[]{
+                new Action.Declare(counter, from), loop});
+    }
+
+    @Override
+    public Action visitFunctionStatement(Stmt.Function function) {
+        return new Action.DeclareFunction(declare(function.name()), function);
+    }
+
+    @Override
+    public Action visitClassStatement(Stmt.Class classStatement) {
+        Node superclass = classStatement.superclass() == null ? null :
+                classStatement.superclass().accept(this);
+        return new Action.DeclareClass(declare(classStatement.name()),
+                                       classStatement, superclass);
+    }
+
+    @Override
+    public Action visitImportStatement(Stmt.Import importStatement) {
+        throw new Untraceable("import");
+    }
+
+    @Override
+    public Action visitCoveredStatement(Stmt.Covered covered) {
+        Action action = covered.statement().accept(this);
+        return covered.point().isHit() ? action :
+                new Action.Covered(covered.point(), action);
+    }
+
+    @Override
+    public Action visitProbedStatement(Stmt.Probed probed) {
+        throw new Untraceable("probe");
+    }
+
+    @Override
+    public Action visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+        return new Action.ReturnValue(returnStatement.value() == null ? null :
+                                              returnStatement.value()
+                                                             .accept(this));
+    }
+}
@@ -0,0 +1,48 @@
+package com.petar.plox3.trace;
+
+import com.petar.plox3.parser.Expression;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Collects the types of the values each expression produced while one
+ * iteration of a hot loop ran in the tree walker. Expressions that never
+ * ran are off the hot path and are compiled without specializing.
+ */
+public final class TraceRecorder {
+
+    static final int NUMBER = 1;
+    static final int STRING = 2;
+    static final int BOOLEAN = 4;
+    static final int NIL = 8;
+    static final int OTHER = 16;
+
+    private final Map<Expression, Integer> types = new IdentityHashMap<>();
+
+    public void observe(Expression expression, Object value) {
+        types.merge(expression, typeOf(value), (a, b) -> a | b);
+    }
+
+    private static int typeOf(Object value) {
+        if (value instanceof Double) {
+            return NUMBER;
+        }
+        if (value instanceof String) {
+            return STRING;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        return value == null ? NIL : OTHER;
+    }
+
+    // 0 when the expression never ran
+    int types(Expression expression) {
+        return types.getOrDefault(expression, 0);
+    }
+
+    boolean onlyNumbers(Expression expression) {
+        return types(expression) == NUMBER;
+    }
+}
@@ -0,0 +1,15 @@
+package com.petar.plox3.trace;
+
+/**
+ * Thrown by a node specialized for numbers when it produced something else,
+ * carrying that value so the caller can finish its work generically.
+ */
+final class UnexpectedValue extends RuntimeException {
+
+    final Object value;
+
+    UnexpectedValue(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
@@ -0,0 +1,12 @@
+package com.petar.plox3.trace;
+
+/**
+ * Thrown while compiling when a loop contains something traces do not
+ * handle. The loop then stays with the tree walker.
+ */
+final class Untraceable extends RuntimeException {
+
+    Untraceable(String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,156 @@
+package com.petar.plox3.parser;
+
+import com.petar.plox3.Plox3;
+import com.petar.plox3.scanner.Scanner;
+import com.petar.plox3.scanner.Symbol;
+import com.petar.plox3.scanner.Token;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class IncrementalParserTest {
+
+    private static final String SOURCE = """
+            class Point {
+                init(x, y) {
+                    this.x = x;
+                    this.y = y;
+                }
+
+                plus(other) {
+                    return Point(this.x + other.x, this.y + other.y);
+                }
+            }
+
+            // a comment between declarations
+            fun fib(n) {
+                if (n < 2) return n;
+                return fib(n - 1) + fib(n - 2);
+            }
+
+            var greeting = "hello
+            world";
+            var total = 0;
+            for (var i = 0; i < 10; i = i + 1) {
+                total = total + fib(i);
+            }
+            while (total > 100) total = total - 100;
+            {
+                var p = Point(1, 2).plus(Point(3, 4));
+                print p.x + p.y;
+            }
+            print greeting + " " + total;
+            """;
+
+    private static final String[] PIECES = {
+            "{", "}", "(", ")", ";", "\"", "\n", "//", " ", "a", "1", "+",
+            "=", "var ", "fun ", "if ", "else ", "print ", "@", "x = 2;\n",
+            "\n\n", "for (var i = 0; i < 3; i = i + 1) ", "return "
+    };
+
+    // statements, lines and errors match those of parsing the edited
+    // source from scratch after every one of many random edits
+    @Test
+    void matchesFullParse() {
+        for (long seed = 1; seed <= 8; seed++) {
+            Random random = new Random(seed);
+            IncrementalParser parser = new IncrementalParser(SOURCE);
+            for (int i = 0; i < 400; i++) {
+                String source = parser.source();
+                int offset = random.nextInt(source.length() + 1);
+                int deleted = random.nextInt(4) != 0 ? 0 :
+                        Math.min(source.length() - offset,
+                                 random.nextInt(12));
+                String inserted = random.nextInt(5) == 0 ? "" :
+                        PIECES[random.nextInt(PIECES.length)];
+                parser.edit(offset, deleted, inserted);
+                String edited = source.substring(0, offset) + inserted +
+                        source.substring(offset + deleted);
+                String where = "seed " + seed + ", edit " + i;
+                assertEquals(edited, parser.source(), where);
+
+                List<Plox3.CompileError> errors = new ArrayList<>();
+                Parser full = new Parser(Plox3.collectErrors(
+                        () -> new Scanner(edited).scanTokens(), errors));
+                List<Statement> statements =
+                        Plox3.collectErrors(full::parse, errors);
+                assertEquals(show(statements), show(parser.statements()),
+                             where);
+                assertEquals(lines(statements, full.lines()),
+                             lines(parser.statements(), parser.lines()),
+                             where);
+                assertEquals(errors, parser.errors(), where);
+            }
+        }
+    }
+
+    @Test
+    void keepsStatementsBelowAnEdit() {
+        IncrementalParser parser = new IncrementalParser(SOURCE);
+        List<Statement> before = new ArrayList<>(parser.statements());
+        List<Integer> lines = lines(before, parser.lines());
+        parser.edit(0, 0, "\n\n");
+        for (int i = 0; i < before.size(); i++) {
+            assertSame(before.get(i), parser.statements().get(i));
+            assertEquals(lines.get(i) + 2,
+                         parser.lines().get(parser.statements().get(i)));
+        }
+    }
+
+    private static List<Integer> lines(List<Statement> statements,
+                                       Map<Statement, Integer> lines) {
+        List<Integer> result = new ArrayList<>();
+        for (Statement statement : statements) {
+            result.add(statement == null ? null : lines.get(statement));
+        }
+        return result;
+    }
+
+    // a tree as text, leaving out the lines of tokens, which statements
+    // below a shifting edit keep from when they were scanned, and the
+    // numbers of names the parser makes up; calls a full parse inlines
+    // show as they were written
+    private static String show(Object node) {
+        if (node instanceof Expr.Inlined inlined) {
+            return show(inlined.call());
+        }
+        if (node instanceof Token token) {
+            return token.type() + ":" +
+                    token.lexeme().replaceAll("^\\$\\d+$", "\\$");
+        }
+        if (node instanceof List<?> list) {
+            StringBuilder text = new StringBuilder("[");
+            for (Object element : list) {
+                text.append(show(element)).append(",");
+            }
+            return text.append("]").toString();
+        }
+        if (node == null || node instanceof String ||
+                node instanceof Double || node instanceof Boolean ||
+                node instanceof Symbol) {
+            return String.valueOf(node);
+        }
+        if (!node.getClass().isRecord()) {
+            return "#";
+        }
+        StringBuilder text = new StringBuilder(
+                node.getClass().getSimpleName()).append("(");
+        for (RecordComponent component :
+                node.getClass().getRecordComponents()) {
+            try {
+                text.append(show(component.getAccessor().invoke(node)))
+                        .append(" ");
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return text.append(")").toString();
+    }
+}